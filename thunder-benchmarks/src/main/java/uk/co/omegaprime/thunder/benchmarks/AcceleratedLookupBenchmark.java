@@ -0,0 +1,145 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.omegaprime.thunder.BloomFilter;
+import uk.co.omegaprime.thunder.Database;
+import uk.co.omegaprime.thunder.DecodedValueCache;
+import uk.co.omegaprime.thunder.LongLongDatabase;
+import uk.co.omegaprime.thunder.Transaction;
+import uk.co.omegaprime.thunder.schema.BytesKeySchema;
+import uk.co.omegaprime.thunder.schema.LongSchema;
+import uk.co.omegaprime.thunder.schema.Utf8ValueSchema;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Lookups with and without the optional accelerators: a BloomFilter (which should only help misses) and a
+// DecodedValueCache (which should only help hits on a hot set of keys). The values are strings, so that decoding them
+// costs something. Also compares a LongLongDatabase with the equivalent boxed Database.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceleratedLookupBenchmark {
+    @Param({"none", "bloom", "cache"})
+    String accelerator;
+
+    @Param({"16", "256"})
+    int valueChars;
+
+    @Param({"100000"})
+    int entries;
+
+    // How many distinct keys the hit benchmark cycles through: below the cache size, so a warm cache always hits
+    @Param({"1000"})
+    int hotKeys;
+
+    BenchmarkEnvironment benchmarkEnvironment;
+    Database<byte[], String> database;
+    LongLongDatabase primitiveDatabase;
+    Database<Long, Long> boxedDatabase;
+    BloomFilter bloomFilter;
+    DecodedValueCache<String> cache;
+    byte[][] keys;
+    byte[][] missingKeys;
+    int[] order;
+    int next;
+    Transaction tx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        benchmarkEnvironment = new BenchmarkEnvironment();
+        database = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabase(tx, "Strings", BytesKeySchema.INSTANCE, Utf8ValueSchema.INSTANCE));
+        boxedDatabase = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabase(tx, "Longs", LongSchema.INSTANCE, LongSchema.INSTANCE));
+        primitiveDatabase = new LongLongDatabase(boxedDatabase);
+        keys = BenchmarkEnvironment.keys(entries, 16);
+        missingKeys = new byte[entries][];
+        for (int i = 0; i < entries; i++) {
+            missingKeys[i] = BenchmarkEnvironment.key(entries + i, 16);
+        }
+        order = BenchmarkEnvironment.shuffled(entries);
+
+        final char[] chars = new char[valueChars];
+        benchmarkEnvironment.env.write(tx -> {
+            for (int i = 0; i < entries; i++) {
+                Arrays.fill(chars, (char)('a' + i % 26));
+                database.put(tx, keys[i], new String(chars));
+                primitiveDatabase.put(tx, i, i);
+            }
+            return null;
+        });
+
+        if (accelerator.equals("bloom")) {
+            bloomFilter = BloomFilter.attach(benchmarkEnvironment.env, database, "StringsBloom", entries, 0.01);
+        } else if (accelerator.equals("cache")) {
+            cache = database.cacheValues(hotKeys * 2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (bloomFilter != null) bloomFilter.close();
+        if (cache != null) cache.close();
+        benchmarkEnvironment.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void begin() {
+        tx = benchmarkEnvironment.env.transaction(true);
+    }
+
+    @TearDown(Level.Iteration)
+    public void end() {
+        tx.close();
+    }
+
+    int nextIndex(int bound) {
+        final int result = order[next] % bound;
+        next = next + 1 == order.length ? 0 : next + 1;
+        return result;
+    }
+
+    @Benchmark
+    public String getHot() {
+        return database.get(tx, keys[nextIndex(hotKeys)]);
+    }
+
+    @Benchmark
+    public String getAny() {
+        return database.get(tx, keys[nextIndex(entries)]);
+    }
+
+    @Benchmark
+    public String getMissing() {
+        return database.get(tx, missingKeys[nextIndex(entries)]);
+    }
+
+    @Benchmark
+    public boolean containsMissing() {
+        return database.contains(tx, missingKeys[nextIndex(entries)]);
+    }
+
+    @Benchmark
+    public long getPrimitive() {
+        return primitiveDatabase.get(tx, nextIndex(entries), -1);
+    }
+
+    @Benchmark
+    public Long getBoxed() {
+        return boxedDatabase.get(tx, (long)nextIndex(entries));
+    }
+}
@@ -0,0 +1,172 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Records the benchmark results as a JSON baseline, or re-runs the benchmarks and compares them to one, so a release
+// can be diffed against the last. The file is a single object with one line per benchmark and parameter combination:
+//
+//   "uk.co.omegaprime.thunder.benchmarks.PointBenchmark.get entries=10000,keyBytes=8,valueBytes=16": {"mode": "thrpt", "score": 12.5, "error": 0.25, "unit": "ops/us"},
+//
+// which is easy both to read back here and to diff by eye or with any JSON tool.
+//
+// Usage: Baseline record <file> [benchmark regex]
+//        Baseline compare <file> [benchmark regex] [tolerated slowdown in percent, default 10]
+//
+// compare exits with status 1 if anything got slower by more than the tolerance.
+public final class Baseline {
+    private static final Pattern LINE = Pattern.compile(
+            "\\s*\"((?:[^\"\\\\]|\\\\.)*)\": \\{\"mode\": \"(\\w+)\", \"score\": ([^,]+), \"error\": ([^,]+), \"unit\": \"((?:[^\"\\\\]|\\\\.)*)\"\\},?");
+
+    static final class Score {
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+
+        Score(String mode, double score, double error, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        // Throughput-style modes report operations per unit time, the rest report time per operation
+        boolean higherIsBetter() {
+            return mode.equals("thrpt");
+        }
+    }
+
+    private Baseline() {}
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        if (args.length < 2 || !(args[0].equals("record") || args[0].equals("compare"))) {
+            System.err.println("Usage: Baseline record <file> [benchmark regex]");
+            System.err.println("       Baseline compare <file> [benchmark regex] [tolerated slowdown in percent]");
+            System.exit(2);
+            return;
+        }
+
+        final File file = new File(args[1]);
+        final String include = args.length > 2 ? args[2] : Baseline.class.getPackage().getName() + "\\..*";
+        if (args[0].equals("record")) {
+            write(file, run(include));
+        } else {
+            final double tolerance = args.length > 3 ? Double.parseDouble(args[3]) / 100 : 0.1;
+            final Map<String, Score> baseline = read(file);
+            final boolean regressed = compare(baseline, run(include), tolerance);
+            System.exit(regressed ? 1 : 0);
+        }
+    }
+
+    static Map<String, Score> run(String include) throws RunnerException {
+        final Collection<RunResult> results = new Runner(new OptionsBuilder().include(include).build()).run();
+        final Map<String, Score> scores = new TreeMap<>();
+        for (RunResult result : results) {
+            final Result<?> primary = result.getPrimaryResult();
+            scores.put(name(result.getParams()), new Score(result.getParams().getMode().shortLabel(), primary.getScore(), primary.getScoreError(), primary.getScoreUnit()));
+        }
+        return scores;
+    }
+
+    static String name(BenchmarkParams params) {
+        final StringBuilder sb = new StringBuilder(params.getBenchmark());
+        String separator = " ";
+        for (String key : params.getParamsKeys()) {
+            sb.append(separator).append(key).append('=').append(params.getParam(key));
+            separator = ",";
+        }
+        return sb.toString();
+    }
+
+    static void write(File file, Map<String, Score> scores) throws IOException {
+        try (final PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            pw.println("{");
+            int remaining = scores.size();
+            for (Map.Entry<String, Score> e : scores.entrySet()) {
+                final Score s = e.getValue();
+                pw.print("  \"" + escape(e.getKey()) + "\": {\"mode\": \"" + s.mode + "\", \"score\": " + number(s.score) + ", \"error\": " + number(s.error) + ", \"unit\": \"" + escape(s.unit) + "\"}");
+                pw.println(--remaining > 0 ? "," : "");
+            }
+            pw.println("}");
+        }
+    }
+
+    static Map<String, Score> read(File file) throws IOException {
+        final Map<String, Score> scores = new TreeMap<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            final Matcher m = LINE.matcher(line);
+            if (m.matches()) {
+                scores.put(unescape(m.group(1)), new Score(m.group(2), parseNumber(m.group(3)), parseNumber(m.group(4)), unescape(m.group(5))));
+            }
+        }
+        return scores;
+    }
+
+    // Prints the ratio of each new score to its baseline, oriented so that a ratio above 1 is always an improvement
+    static boolean compare(Map<String, Score> baseline, Map<String, Score> current, double tolerance) {
+        final List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Score> e : current.entrySet()) {
+            final Score now = e.getValue();
+            final Score then = baseline.get(e.getKey());
+            if (then == null || !then.mode.equals(now.mode) || !then.unit.equals(now.unit)) {
+                System.out.println(String.format("%-100s %12s", e.getKey(), "new"));
+                continue;
+            }
+
+            final double speedup = now.higherIsBetter() ? now.score / then.score : then.score / now.score;
+            System.out.println(String.format("%-100s %12.3g -> %-12.3g %s  x%.3f", e.getKey(), then.score, now.score, now.unit, speedup));
+            if (speedup < 1 - tolerance) {
+                regressions.add(e.getKey());
+            }
+        }
+
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println(String.format("%-100s %12s", key, "missing"));
+            }
+        }
+
+        if (!regressions.isEmpty()) {
+            System.out.println();
+            System.out.println(regressions.size() + " benchmark(s) slower than the baseline by more than " + Math.round(tolerance * 100) + "%:");
+            for (String key : regressions) {
+                System.out.println("  " + key);
+            }
+        }
+        return !regressions.isEmpty();
+    }
+
+    private static String number(double x) {
+        return Double.isNaN(x) || Double.isInfinite(x) ? "null" : Double.toString(x);
+    }
+
+    private static double parseNumber(String s) {
+        return s.equals("null") ? Double.NaN : Double.parseDouble(s);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String unescape(String s) {
+        return s.replaceAll("\\\\(.)", "$1");
+    }
+}
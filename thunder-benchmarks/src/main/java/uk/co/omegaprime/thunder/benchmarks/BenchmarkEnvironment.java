@@ -0,0 +1,82 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import uk.co.omegaprime.thunder.Environment;
+import uk.co.omegaprime.thunder.EnvironmentOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+// An Environment in a fresh temporary directory, deleted again on close, plus the synthetic keys and values the
+// benchmarks share. Key i always encodes the same way, and keys sort in the order of i.
+final class BenchmarkEnvironment implements AutoCloseable {
+    final File directory;
+    final Environment env;
+
+    BenchmarkEnvironment() {
+        try {
+            directory = Files.createTempDirectory("thunder-benchmark").toFile();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // Big enough for the largest parameter combinations: the map is sparse, so this costs nothing up front
+        env = new Environment(directory, new EnvironmentOptions().maxDatabases(16).mapSize(16L * 1024 * 1024 * 1024));
+    }
+
+    @Override
+    public void close() {
+        env.close();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // The index big-endian in the first four bytes, so that keys sort by index, padded out to the requested length
+    // with non-zero bytes so that escaping schemas don't inflate the padding
+    static byte[] key(int i, int keyBytes) {
+        final byte[] result = new byte[Math.max(4, keyBytes)];
+        result[0] = (byte)(i >>> 24);
+        result[1] = (byte)(i >>> 16);
+        result[2] = (byte)(i >>> 8);
+        result[3] = (byte)i;
+        for (int j = 4; j < result.length; j++) {
+            result[j] = (byte)(1 + j % 255);
+        }
+        return result;
+    }
+
+    static byte[][] keys(int count, int keyBytes) {
+        final byte[][] result = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            result[i] = key(i, keyBytes);
+        }
+        return result;
+    }
+
+    static byte[] value(int i, int valueBytes) {
+        final byte[] result = new byte[valueBytes];
+        new Random(i).nextBytes(result);
+        return result;
+    }
+
+    // A fixed pseudo-random visiting order of [0, count), so runs are comparable but access isn't sequential
+    static int[] shuffled(int count) {
+        final int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = i;
+        }
+        final Random random = new Random(1234);
+        for (int i = count - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,155 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.omegaprime.thunder.CursorWithDuplicateKeys;
+import uk.co.omegaprime.thunder.DatabaseWithDuplicateKeys;
+import uk.co.omegaprime.thunder.Transaction;
+import uk.co.omegaprime.thunder.schema.BytesKeySchema;
+import uk.co.omegaprime.thunder.schema.IntegerSchema;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Operations on a DatabaseWithDuplicateKeys: looking up one (key, value) pair, visiting all the values of a key,
+// fetching them for a batch of keys, and adding a value to a key that already has many
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DuplicateKeysBenchmark {
+    static final int BATCH = 16;
+
+    @Param({"1000"})
+    int keys;
+
+    @Param({"10", "1000"})
+    int valuesPerKey;
+
+    @Param({"16", "256"})
+    int valueBytes;
+
+    BenchmarkEnvironment benchmarkEnvironment;
+    DatabaseWithDuplicateKeys<Integer, byte[]> database;
+    byte[][] values;
+    int[] order;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        benchmarkEnvironment = new BenchmarkEnvironment();
+        database = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabaseWithDuplicateKeys(tx, "Duplicates", IntegerSchema.INSTANCE, BytesKeySchema.INSTANCE));
+        // Sorted like the keys, so value j is the j-th of every key
+        values = BenchmarkEnvironment.keys(valuesPerKey + 1, valueBytes);
+        order = BenchmarkEnvironment.shuffled(keys * valuesPerKey);
+
+        benchmarkEnvironment.env.write(tx -> {
+            for (int k = 0; k < keys; k++) {
+                for (int j = 0; j < valuesPerKey; j++) {
+                    database.put(tx, k, values[j]);
+                }
+            }
+            return null;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEnvironment.close();
+    }
+
+    int nextIndex() {
+        final int result = order[next];
+        next = next + 1 == order.length ? 0 : next + 1;
+        return result;
+    }
+
+    @State(Scope.Thread)
+    public static class Read {
+        Transaction tx;
+
+        @Setup(Level.Iteration)
+        public void begin(DuplicateKeysBenchmark benchmark) {
+            tx = benchmark.benchmarkEnvironment.env.transaction(true);
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            tx.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Write {
+        Transaction tx;
+
+        @Setup(Level.Iteration)
+        public void begin(DuplicateKeysBenchmark benchmark) {
+            tx = benchmark.benchmarkEnvironment.env.transaction(false);
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            tx.abort();
+        }
+    }
+
+    @Benchmark
+    public boolean containsPair(Read read) {
+        final int i = nextIndex();
+        return database.contains(read.tx, i / valuesPerKey, values[i % valuesPerKey]);
+    }
+
+    @Benchmark
+    public void valuesOfKey(Read read, Blackhole blackhole) {
+        try (final CursorWithDuplicateKeys<Integer, byte[]> cursor = database.createCursor(read.tx)) {
+            if (cursor.moveTo(nextIndex() / valuesPerKey)) {
+                do {
+                    blackhole.consume(cursor.getValue());
+                } while (cursor.moveNextOfKey());
+            }
+        }
+    }
+
+    @Benchmark
+    public long keyItemCount(Read read) {
+        try (final CursorWithDuplicateKeys<Integer, byte[]> cursor = database.createCursor(read.tx)) {
+            return cursor.moveTo(nextIndex() / valuesPerKey) ? cursor.keyItemCount() : 0;
+        }
+    }
+
+    @Benchmark
+    public List<List<byte[]>> getAllDuplicates(Read read) {
+        final Integer[] batch = new Integer[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = nextIndex() / valuesPerKey;
+        }
+        return database.getAllDuplicates(read.tx, batch);
+    }
+
+    // A value that sorts after all the existing ones, so each put adds a new duplicate (until the iteration revisits a key)
+    @Benchmark
+    public void putNewDuplicate(Write write) {
+        database.put(write.tx, nextIndex() / valuesPerKey, values[valuesPerKey]);
+    }
+
+    @Benchmark
+    public boolean removePair(Write write) {
+        final int i = nextIndex();
+        return database.remove(write.tx, i / valuesPerKey, values[i % valuesPerKey]);
+    }
+}
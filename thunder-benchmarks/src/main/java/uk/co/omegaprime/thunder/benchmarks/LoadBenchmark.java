@@ -0,0 +1,107 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.omegaprime.thunder.BulkLoader;
+import uk.co.omegaprime.thunder.Database;
+import uk.co.omegaprime.thunder.Transaction;
+import uk.co.omegaprime.thunder.schema.BytesKeySchema;
+import uk.co.omegaprime.thunder.schema.BytesValueSchema;
+
+import java.util.concurrent.TimeUnit;
+
+// Filling an empty database in one write transaction, which is aborted afterwards so every invocation starts from
+// empty. order is whether the items arrive sorted (which BulkLoader appends) or shuffled (which it sorts first).
+//
+// size is keyBytes/valueBytes/entries. It is one parameter rather than three so that only small items are loaded a
+// million at a time: a million large ones would dirty more pages than LMDB allows in one write transaction.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+    @Param({"8/16/100000", "8/16/1000000", "8/256/100000", "64/16/100000", "64/256/100000"})
+    String size;
+
+    @Param({"sorted", "shuffled"})
+    String order;
+
+    BenchmarkEnvironment benchmarkEnvironment;
+    int keyBytes;
+    int valueBytes;
+    int entries;
+    Database<byte[], byte[]> database;
+    byte[][] keys;
+    byte[][] values;
+    Transaction tx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final String[] parts = size.split("/");
+        keyBytes = Integer.parseInt(parts[0]);
+        valueBytes = Integer.parseInt(parts[1]);
+        entries = Integer.parseInt(parts[2]);
+
+        benchmarkEnvironment = new BenchmarkEnvironment();
+        database = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabase(tx, "Load", BytesKeySchema.INSTANCE, BytesValueSchema.INSTANCE));
+
+        final byte[][] sortedKeys = BenchmarkEnvironment.keys(entries, keyBytes);
+        final int[] permutation = order.equals("sorted") ? null : BenchmarkEnvironment.shuffled(entries);
+        keys = new byte[entries][];
+        values = new byte[entries][];
+        for (int i = 0; i < entries; i++) {
+            final int j = permutation == null ? i : permutation[i];
+            keys[i] = sortedKeys[j];
+            values[i] = BenchmarkEnvironment.value(j, valueBytes);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEnvironment.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void begin() {
+        tx = benchmarkEnvironment.env.transaction(false);
+    }
+
+    @TearDown(Level.Invocation)
+    public void end() {
+        tx.abort();
+    }
+
+    @Benchmark
+    public void putEach() {
+        for (int i = 0; i < entries; i++) {
+            database.put(tx, keys[i], values[i]);
+        }
+    }
+
+    @Benchmark
+    public void putAll() {
+        database.putAll(tx, keys, values);
+    }
+
+    @Benchmark
+    public void bulkLoader() {
+        try (final BulkLoader<byte[], byte[]> loader = new BulkLoader<>(tx, database)) {
+            for (int i = 0; i < entries; i++) {
+                loader.add(keys[i], values[i]);
+            }
+        }
+    }
+}
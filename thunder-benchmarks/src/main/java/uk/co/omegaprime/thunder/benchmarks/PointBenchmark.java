@@ -0,0 +1,185 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.omegaprime.thunder.Database;
+import uk.co.omegaprime.thunder.Pair;
+import uk.co.omegaprime.thunder.Transaction;
+import uk.co.omegaprime.thunder.ValueView;
+import uk.co.omegaprime.thunder.schema.BytesKeySchema;
+import uk.co.omegaprime.thunder.schema.BytesValueSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Single-key reads and writes: Database.get/getView/contains/getAll and put/putIfAbsent/putAll. Reads share one read
+// transaction per iteration, writes one write transaction per iteration that is aborted at the end, so every iteration
+// sees the same database.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointBenchmark {
+    static final int BATCH = 100;
+
+    @Param({"8", "64"})
+    int keyBytes;
+
+    @Param({"16", "256", "4096"})
+    int valueBytes;
+
+    @Param({"10000", "200000"})
+    int entries;
+
+    BenchmarkEnvironment benchmarkEnvironment;
+    Database<byte[], byte[]> database;
+    byte[][] keys;
+    byte[][] missingKeys;
+    byte[] value;
+    int[] order;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        benchmarkEnvironment = new BenchmarkEnvironment();
+        database = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabase(tx, "Point", BytesKeySchema.INSTANCE, BytesValueSchema.INSTANCE));
+        keys = BenchmarkEnvironment.keys(entries, keyBytes);
+        missingKeys = new byte[entries][];
+        for (int i = 0; i < entries; i++) {
+            missingKeys[i] = BenchmarkEnvironment.key(entries + i, keyBytes);
+        }
+        value = BenchmarkEnvironment.value(0, valueBytes);
+        order = BenchmarkEnvironment.shuffled(entries);
+
+        benchmarkEnvironment.env.write(tx -> {
+            for (int i = 0; i < entries; i++) {
+                database.put(tx, keys[i], BenchmarkEnvironment.value(i, valueBytes));
+            }
+            return null;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEnvironment.close();
+    }
+
+    int nextIndex() {
+        final int result = order[next];
+        next = next + 1 == order.length ? 0 : next + 1;
+        return result;
+    }
+
+    @State(Scope.Thread)
+    public static class Read {
+        Transaction tx;
+
+        @Setup(Level.Iteration)
+        public void begin(PointBenchmark benchmark) {
+            tx = benchmark.benchmarkEnvironment.env.transaction(true);
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            tx.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Write {
+        Transaction tx;
+
+        @Setup(Level.Iteration)
+        public void begin(PointBenchmark benchmark) {
+            tx = benchmark.benchmarkEnvironment.env.transaction(false);
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            tx.abort();
+        }
+    }
+
+    @Benchmark
+    public byte[] get(Read read) {
+        return database.get(read.tx, keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public byte[] getMissing(Read read) {
+        return database.get(read.tx, missingKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public long getView(Read read) {
+        final ValueView view = database.getView(read.tx, keys[nextIndex()]);
+        return view.size();
+    }
+
+    @Benchmark
+    public boolean contains(Read read) {
+        return database.contains(read.tx, keys[nextIndex()]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<byte[]> getAll(Read read) {
+        final byte[][] batch = new byte[BATCH][];
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = keys[nextIndex()];
+        }
+        return database.getAll(read.tx, batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void getEach(Read read, Blackhole blackhole) {
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(database.get(read.tx, keys[nextIndex()]));
+        }
+    }
+
+    @Benchmark
+    public void put(Write write) {
+        database.put(write.tx, keys[nextIndex()], value);
+    }
+
+    @Benchmark
+    public byte[] putIfAbsent(Write write) {
+        return database.putIfAbsent(write.tx, keys[nextIndex()], value);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putAll(Write write) {
+        final List<Pair<byte[], byte[]>> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(new Pair<>(keys[nextIndex()], value));
+        }
+        database.putAll(write.tx, batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putEach(Write write) {
+        for (int i = 0; i < BATCH; i++) {
+            database.put(write.tx, keys[nextIndex()], value);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.omegaprime.thunder.Cursor;
+import uk.co.omegaprime.thunder.Database;
+import uk.co.omegaprime.thunder.Direction;
+import uk.co.omegaprime.thunder.FilteredView;
+import uk.co.omegaprime.thunder.Pair;
+import uk.co.omegaprime.thunder.RangeIterator;
+import uk.co.omegaprime.thunder.RawPredicate;
+import uk.co.omegaprime.thunder.SubcursorView;
+import uk.co.omegaprime.thunder.Transaction;
+import uk.co.omegaprime.thunder.schema.BytesKeySchema;
+import uk.co.omegaprime.thunder.schema.BytesValueSchema;
+import uk.co.omegaprime.thunder.schema.IntegerSchema;
+import uk.co.omegaprime.thunder.schema.Schema;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+// Whole-database and partial scans, each measured as the time to visit every item it covers: cursors, the iterators,
+// streams, range iterators, SubcursorView prefix scans and FilteredView scans at 1% selectivity with a typed predicate
+// (which decodes every item) and a RawPredicate (which decodes only the matches).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    // Items sharing each SubcursorView prefix
+    static final int GROUP = 100;
+
+    @Param({"8", "64"})
+    int keyBytes;
+
+    @Param({"16", "256"})
+    int valueBytes;
+
+    @Param({"10000", "200000"})
+    int entries;
+
+    BenchmarkEnvironment benchmarkEnvironment;
+    // Values are (i % 100, payload), so matching on the first field selects 1% of them
+    Database<byte[], Pair<Integer, byte[]>> database;
+    Database<Pair<Integer, Integer>, byte[]> grouped;
+    byte[][] keys;
+    int nextGroup;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        benchmarkEnvironment = new BenchmarkEnvironment();
+        database = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabase(tx, "Scan",
+                BytesKeySchema.INSTANCE, Schema.zip(IntegerSchema.INSTANCE, BytesValueSchema.INSTANCE)));
+        grouped = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabase(tx, "Grouped",
+                Schema.zip(IntegerSchema.INSTANCE, IntegerSchema.INSTANCE), BytesValueSchema.INSTANCE));
+        keys = BenchmarkEnvironment.keys(entries, keyBytes);
+
+        benchmarkEnvironment.env.write(tx -> {
+            for (int i = 0; i < entries; i++) {
+                final byte[] value = BenchmarkEnvironment.value(i, valueBytes);
+                database.put(tx, keys[i], new Pair<>(i % 100, value));
+                grouped.put(tx, new Pair<>(i / GROUP, i % GROUP), value);
+            }
+            return null;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEnvironment.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Read {
+        Transaction tx;
+
+        @Setup(Level.Iteration)
+        public void begin(ScanBenchmark benchmark) {
+            tx = benchmark.benchmarkEnvironment.env.transaction(true);
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            tx.close();
+        }
+    }
+
+    @Benchmark
+    public void cursorKeysAndValues(Read read, Blackhole blackhole) {
+        try (final Cursor<byte[], Pair<Integer, byte[]>> cursor = database.createCursor(read.tx)) {
+            for (boolean positioned = cursor.moveFirst(); positioned; positioned = cursor.moveNext()) {
+                blackhole.consume(cursor.getKey());
+                blackhole.consume(cursor.getValue());
+            }
+        }
+    }
+
+    @Benchmark
+    public void cursorBackwards(Read read, Blackhole blackhole) {
+        try (final Cursor<byte[], Pair<Integer, byte[]>> cursor = database.createCursor(read.tx)) {
+            for (boolean positioned = cursor.moveLast(); positioned; positioned = cursor.movePrevious()) {
+                blackhole.consume(cursor.getKey());
+            }
+        }
+    }
+
+    @Benchmark
+    public void keysIterator(Read read, Blackhole blackhole) {
+        final Iterator<byte[]> it = database.keys(read.tx);
+        while (it.hasNext()) {
+            blackhole.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public void keyValuesIterator(Read read, Blackhole blackhole) {
+        final Iterator<Pair<byte[], Pair<Integer, byte[]>>> it = database.keyValues(read.tx);
+        while (it.hasNext()) {
+            blackhole.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public long stream(Read read) {
+        return database.stream(read.tx).count();
+    }
+
+    // Holds no transaction of its own: every piece of the split reads in one from the supplier
+    @Benchmark
+    public long parallelStream() {
+        return database.parallelStream(() -> benchmarkEnvironment.env.transaction(true)).count();
+    }
+
+    // The middle tenth of the keys
+    @Benchmark
+    public void range(Read read, Blackhole blackhole) {
+        try (final RangeIterator<byte[], Pair<Integer, byte[]>> it = database.range(read.tx, keys[entries * 9 / 20], true, keys[entries * 11 / 20], false, Direction.ASCENDING)) {
+            while (it.hasNext()) {
+                blackhole.consume(it.next());
+            }
+        }
+    }
+
+    // One prefix's worth of items per invocation
+    @Benchmark
+    public void subcursorPrefix(Read read, Blackhole blackhole) {
+        nextGroup = (nextGroup + 1) % Math.max(1, entries / GROUP);
+        try (final Cursor<Pair<Integer, Integer>, byte[]> cursor = grouped.createCursor(read.tx)) {
+            final SubcursorView<Integer, Integer, byte[]> view = new SubcursorView<>(cursor, IntegerSchema.INSTANCE, IntegerSchema.INSTANCE, nextGroup);
+            for (boolean positioned = view.moveFirst(); positioned; positioned = view.moveNext()) {
+                blackhole.consume(view.getKey());
+                blackhole.consume(view.getValue());
+            }
+        }
+    }
+
+    @Benchmark
+    public void filteredTyped(Read read, Blackhole blackhole) {
+        try (final Cursor<byte[], Pair<Integer, byte[]>> cursor = database.createCursor(read.tx)) {
+            final FilteredView<byte[], Pair<Integer, byte[]>> view = new FilteredView<>(cursor, (k, v) -> v.k == 0);
+            for (boolean positioned = view.moveFirst(); positioned; positioned = view.moveNext()) {
+                blackhole.consume(view.getValue());
+            }
+        }
+    }
+
+    @Benchmark
+    public void filteredRaw(Read read, Blackhole blackhole) {
+        try (final Cursor<byte[], Pair<Integer, byte[]>> cursor = database.createCursor(read.tx)) {
+            final FilteredView<byte[], Pair<Integer, byte[]>> view = new FilteredView<>(cursor, RawPredicate.valueFieldEquals(0, IntegerSchema.INSTANCE, 0));
+            for (boolean positioned = view.moveFirst(); positioned; positioned = view.moveNext()) {
+                blackhole.consume(view.getValue());
+            }
+        }
+    }
+}
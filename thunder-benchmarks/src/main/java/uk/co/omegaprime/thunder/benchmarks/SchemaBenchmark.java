@@ -0,0 +1,204 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.omegaprime.thunder.BitStream;
+import uk.co.omegaprime.thunder.Bits;
+import uk.co.omegaprime.thunder.Pair;
+import uk.co.omegaprime.thunder.schema.BooleanSchema;
+import uk.co.omegaprime.thunder.schema.ByteArraySchema;
+import uk.co.omegaprime.thunder.schema.BytesKeySchema;
+import uk.co.omegaprime.thunder.schema.BytesValueSchema;
+import uk.co.omegaprime.thunder.schema.DoubleSchema;
+import uk.co.omegaprime.thunder.schema.FloatSchema;
+import uk.co.omegaprime.thunder.schema.InstantSchema;
+import uk.co.omegaprime.thunder.schema.IntegerSchema;
+import uk.co.omegaprime.thunder.schema.Latin1StringSchema;
+import uk.co.omegaprime.thunder.schema.ListSchema;
+import uk.co.omegaprime.thunder.schema.LocalDateSchema;
+import uk.co.omegaprime.thunder.schema.LongSchema;
+import uk.co.omegaprime.thunder.schema.NullFreeStringSchema;
+import uk.co.omegaprime.thunder.schema.RecordSchema;
+import uk.co.omegaprime.thunder.schema.Schema;
+import uk.co.omegaprime.thunder.schema.StringSchema;
+import uk.co.omegaprime.thunder.schema.UnsignedIntegerSchema;
+import uk.co.omegaprime.thunder.schema.UnsignedLongSchema;
+import uk.co.omegaprime.thunder.schema.Utf8KeySchema;
+import uk.co.omegaprime.thunder.schema.Utf8ValueSchema;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
+
+// Encoding and decoding a single value with each schema, through an off-heap buffer the way BufferedSchema does it but
+// without LMDB in the way. length is the number of characters, bytes or list elements in the variable-size values.
+// Record and RecordZipWith encode the same Trade to the same bytes, with RecordSchema and with the equivalent hand-built
+// chain of Schema.zipWith calls respectively.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaBenchmark {
+    @Param({"Integer", "UnsignedInteger", "Long", "UnsignedLong", "Float", "Double", "Instant", "LocalDate",
+            "Latin1String", "String", "NullFreeString", "Utf8Key", "Utf8Value",
+            "ByteArray", "BytesKey", "BytesValue", "List", "Optional", "Zip", "Record", "RecordZipWith"})
+    String schemaName;
+
+    @Param({"8", "256"})
+    int length;
+
+    static final class Trade {
+        @RecordSchema.Field(0) long id;
+        @RecordSchema.Field(1) boolean buy;
+        @RecordSchema.Field(2) double price;
+        @RecordSchema.Field(3) String venue;
+        @RecordSchema.Field(4) int quantity;
+    }
+
+    // What RecordSchema.of(Trade.class) replaces: each level decodes one field into the Trade built by the levels below it
+    static final Schema<Trade> TRADE_ZIP_WITH_SCHEMA =
+            Schema.zipWith(LongSchema.INSTANCE, (Trade t) -> t.id,
+            Schema.zipWith(BooleanSchema.INSTANCE, (Trade t) -> t.buy,
+            Schema.zipWith(DoubleSchema.INSTANCE, (Trade t) -> t.price,
+            Schema.zipWith(StringSchema.INSTANCE, (Trade t) -> t.venue, IntegerSchema.INSTANCE, (Trade t) -> t.quantity,
+                           (venue, quantity) -> { final Trade t = new Trade(); t.venue = venue; t.quantity = quantity; return t; }),
+                           t -> t, (price, t) -> { t.price = price; return t; }),
+                           t -> t, (buy, t) -> { t.buy = buy; return t; }),
+                           t -> t, (id, t) -> { t.id = id; return t; });
+
+    Schema<Object> schema;
+    Object value;
+    final BitStream bs = new BitStream();
+    long ptr;
+    int encodedBytes;
+
+    @SuppressWarnings("unchecked")
+    private static Schema<Object> erase(Schema<?> schema) {
+        return (Schema<Object>)schema;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        final String string = new String(chars);
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte)7);
+
+        switch (schemaName) {
+            case "Integer":         schema = erase(IntegerSchema.INSTANCE);         value = 123456789; break;
+            case "UnsignedInteger": schema = erase(UnsignedIntegerSchema.INSTANCE); value = 123456789; break;
+            case "Long":            schema = erase(LongSchema.INSTANCE);            value = 123456789012345L; break;
+            case "UnsignedLong":    schema = erase(UnsignedLongSchema.INSTANCE);    value = 123456789012345L; break;
+            case "Float":           schema = erase(FloatSchema.INSTANCE);           value = 1.5f; break;
+            case "Double":          schema = erase(DoubleSchema.INSTANCE);          value = 1.5; break;
+            case "Instant":         schema = erase(InstantSchema.INSTANCE_SECOND_RESOLUTION); value = Instant.ofEpochSecond(1500000000L); break;
+            case "LocalDate":       schema = erase(LocalDateSchema.INSTANCE);       value = LocalDate.of(2017, 7, 14); break;
+            case "Latin1String":    schema = erase(Latin1StringSchema.INSTANCE);    value = string; break;
+            case "String":          schema = erase(StringSchema.INSTANCE);          value = string; break;
+            case "NullFreeString":  schema = erase(NullFreeStringSchema.INSTANCE);  value = string; break;
+            case "Utf8Key":         schema = erase(Utf8KeySchema.INSTANCE);         value = string; break;
+            case "Utf8Value":       schema = erase(Utf8ValueSchema.INSTANCE);       value = string; break;
+            case "ByteArray":       schema = erase(ByteArraySchema.INSTANCE);       value = bytes; break;
+            case "BytesKey":        schema = erase(BytesKeySchema.INSTANCE);        value = bytes; break;
+            case "BytesValue":      schema = erase(BytesValueSchema.INSTANCE);      value = bytes; break;
+            case "List": {
+                final List<Integer> list = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) list.add(i);
+                schema = erase(ListSchema.of(IntegerSchema.INSTANCE));
+                value = list;
+                break;
+            }
+            case "Optional":        schema = erase(Schema.optional(LongSchema.INSTANCE)); value = Optional.of(42L); break;
+            case "Zip":             schema = erase(Schema.zip(LongSchema.INSTANCE, StringSchema.INSTANCE)); value = new Pair<>(42L, string); break;
+            case "Record":          schema = erase(RecordSchema.of(Trade.class));   value = trade(string); break;
+            case "RecordZipWith":   schema = erase(TRADE_ZIP_WITH_SCHEMA);          value = trade(string); break;
+            default:
+                throw new IllegalArgumentException("Unknown schema " + schemaName);
+        }
+
+        // Otherwise the two numbers wouldn't be measuring the same work
+        if (value instanceof Trade && !Arrays.equals(bytes(RecordSchema.of(Trade.class), (Trade)value), bytes(TRADE_ZIP_WITH_SCHEMA, (Trade)value))) {
+            throw new IllegalStateException("RecordSchema and the zipWith chain encode " + schemaName + " differently");
+        }
+
+        encodedBytes = bitsToBytes(schema.sizeBits(value));
+        ptr = Bits.unsafe.allocateMemory(Math.max(1, encodedBytes));
+        encode();
+    }
+
+    private static Trade trade(String venue) {
+        final Trade trade = new Trade();
+        trade.id = 42;
+        trade.buy = true;
+        trade.price = 101.25;
+        trade.venue = venue;
+        trade.quantity = 1000;
+        return trade;
+    }
+
+    private static <T> byte[] bytes(Schema<T> schema, T x) {
+        final int sz = bitsToBytes(schema.sizeBits(x));
+        final long ptr = Bits.unsafe.allocateMemory(Math.max(1, sz));
+        try {
+            final BitStream bs = new BitStream();
+            bs.initialize(ptr, sz);
+            schema.write(bs, x);
+            if (!schema.isByteAligned()) {
+                bs.zeroFill();
+            }
+            final byte[] result = new byte[sz];
+            for (int i = 0; i < sz; i++) {
+                result[i] = Bits.unsafe.getByte(ptr + i);
+            }
+            return result;
+        } finally {
+            Bits.unsafe.freeMemory(ptr);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Bits.unsafe.freeMemory(ptr);
+    }
+
+    @Benchmark
+    public int sizeBits() {
+        return schema.sizeBits(value);
+    }
+
+    @Benchmark
+    public void encode() {
+        final int sz = bitsToBytes(schema.sizeBits(value));
+        bs.initialize(ptr, sz);
+        schema.write(bs, value);
+        if (!schema.isByteAligned()) {
+            bs.zeroFill();
+        }
+    }
+
+    @Benchmark
+    public Object decode() {
+        bs.initialize(ptr, encodedBytes);
+        return schema.read(bs);
+    }
+}
@@ -0,0 +1,144 @@
+package uk.co.omegaprime.thunder.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.omegaprime.thunder.Database;
+import uk.co.omegaprime.thunder.ResourceMetrics;
+import uk.co.omegaprime.thunder.Transaction;
+import uk.co.omegaprime.thunder.schema.BytesValueSchema;
+import uk.co.omegaprime.thunder.schema.StringSchema;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Gets and puts with StringSchema keys, whose scratch space is an arena rather than a malloc and free per operation.
+// Besides the time per operation, the allocatorCallsPerOperation counter reports how often the scratch space was
+// malloc'd, realloc'd or freed per operation during each iteration, which should be 0 once warmed up. Keys are between
+// 1 and 2 times length characters long, so that the arena has to grow to fit the longest of them.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringKeyBenchmark {
+    @Param({"8", "256"})
+    int length;
+
+    @Param({"10000"})
+    int entries;
+
+    BenchmarkEnvironment benchmarkEnvironment;
+    Database<String, byte[]> database;
+    String[] keys;
+    byte[] value;
+    int[] order;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        benchmarkEnvironment = new BenchmarkEnvironment();
+        database = benchmarkEnvironment.env.write(tx -> benchmarkEnvironment.env.createDatabase(tx, "StringKey", StringSchema.INSTANCE, BytesValueSchema.INSTANCE));
+
+        keys = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            final char[] padding = new char[length + i % (length + 1)];
+            Arrays.fill(padding, 'x');
+            keys[i] = String.format("%08d", i) + new String(padding);
+        }
+        value = BenchmarkEnvironment.value(0, 16);
+        order = BenchmarkEnvironment.shuffled(entries);
+
+        benchmarkEnvironment.env.write(tx -> {
+            for (String key : keys) {
+                database.put(tx, key, value);
+            }
+            return null;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEnvironment.close();
+    }
+
+    String nextKey() {
+        final String result = keys[order[next]];
+        next = next + 1 == order.length ? 0 : next + 1;
+        return result;
+    }
+
+    // ResourceMetrics counts calls from every thread, but nothing else in the benchmark JVM touches scratch space
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class AllocatorCalls {
+        public double allocatorCallsPerOperation;
+        long operations;
+        long allocatorCallsBefore;
+
+        @Setup(Level.Iteration)
+        public void begin() {
+            operations = 0;
+            allocatorCallsBefore = ResourceMetrics.scratchAllocatorCalls();
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            allocatorCallsPerOperation = (double)(ResourceMetrics.scratchAllocatorCalls() - allocatorCallsBefore) / Math.max(1, operations);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Read {
+        Transaction tx;
+
+        @Setup(Level.Iteration)
+        public void begin(StringKeyBenchmark benchmark) {
+            tx = benchmark.benchmarkEnvironment.env.transaction(true);
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            tx.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Write {
+        Transaction tx;
+
+        @Setup(Level.Iteration)
+        public void begin(StringKeyBenchmark benchmark) {
+            tx = benchmark.benchmarkEnvironment.env.transaction(false);
+        }
+
+        @TearDown(Level.Iteration)
+        public void end() {
+            tx.abort();
+        }
+    }
+
+    @Benchmark
+    public byte[] get(Read read, AllocatorCalls allocatorCalls) {
+        allocatorCalls.operations++;
+        return database.get(read.tx, nextKey());
+    }
+
+    @Benchmark
+    public void put(Write write, AllocatorCalls allocatorCalls) {
+        allocatorCalls.operations++;
+        database.put(write.tx, nextKey(), value);
+    }
+}
@@ -1,5 +1,9 @@
 package uk.co.omegaprime.thunder;
 
+import sun.misc.Unsafe;
+
+import java.nio.ByteOrder;
+
 import static uk.co.omegaprime.thunder.Bits.bigEndian;
 import static uk.co.omegaprime.thunder.Bits.unsafe;
 
@@ -8,6 +12,9 @@ public class BitStream {
     private long endPtr;
     private byte bitOffset;
 
+    private static final int MAX_RETAINED_SCRATCH_BYTES = 64 * 1024;
+    private byte[] scratch = new byte[0];
+
     public BitStream() {
         this(0, 0);
     }
@@ -102,9 +109,85 @@ public class BitStream {
         }
     }
 
-    // NB: can't implement remainingBits since we only get an endPtr, not an endBitOffset
+    // NB: can't implement remainingBits exactly since we only get an endPtr, not an endBitOffset
     public int remainingBytes() {
-        return (int)(endPtr - ptr) - bitOffset == 0 ? 0 : 1;
+        return (int)(endPtr - ptr) - (bitOffset == 0 ? 0 : 1);
+    }
+
+    // An upper bound on the number of bits left to read: the true figure may be less by up to 7 bits of padding
+    public long maximumRemainingBits() {
+        return (endPtr - ptr) * 8 - bitOffset;
+    }
+
+    // Returns a scratch array of at least the given length, for schemas that need somewhere to decode into before they
+    // know exactly how long their result is. The contents are clobbered by the next call. We hang on to small arrays so
+    // that decoding short keys over and over doesn't allocate, but not to big ones, so a single huge value can't pin memory.
+    public byte[] scratch(int length) {
+        if (scratch.length >= length) {
+            return scratch;
+        }
+
+        final byte[] result = new byte[Math.max(length, Math.max(64, 2 * scratch.length))];
+        if (result.length <= MAX_RETAINED_SCRATCH_BYTES) {
+            scratch = result;
+        }
+        return result;
+    }
+
+    // Doubles the size of an array returned by scratch(), preserving the first used bytes
+    public byte[] growScratch(byte[] current, int used) {
+        final byte[] result = scratch(Math.max(64, 2 * current.length));
+        System.arraycopy(current, 0, result, 0, used);
+        return result;
+    }
+
+    // Returns the next nBits <= 25 bits, packed into the low bits of the result, without moving. Where possible we do
+    // this with a single 32-bit load rather than one load per bit or byte, e.g. for the boolean + byte pairs that
+    // ByteArraySchema is made of. Bits beyond the end of the stream read as zero.
+    public int peekBits(int nBits) {
+        if (ptr + 4 <= endPtr) {
+            return (bigEndian(unsafe.getInt(ptr)) << bitOffset) >>> (32 - nBits);
+        } else {
+            // Near the end of the buffer: don't load beyond it
+            int window = 0;
+            for (int i = 0; i < 4; i++) {
+                window = (window << 8) | (ptr + i < endPtr ? unsafe.getByte(ptr + i) & 0xFF : 0);
+            }
+            return (window << bitOffset) >>> (32 - nBits);
+        }
+    }
+
+    // If the stream is byte aligned, returns how many bytes there are before the next zero byte (or until the end of the
+    // stream, if there is no zero byte) without moving. Scans a word at a time. Returns -1 if the stream is not byte aligned.
+    public int nextZeroByteOffset() {
+        if (bitOffset != 0) {
+            return -1;
+        }
+
+        long p = ptr;
+        for (; p + 8 <= endPtr; p += 8) {
+            final long word = unsafe.getLong(p);
+            // The high bit of each byte of zeroes is set iff that byte of word is zero. (The cheaper (word - 0x01..) & ~word
+            // & 0x80.. trick can give false positives after a zero byte, which matters on big-endian machines.)
+            final long zeroes = ~(((word & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | word | 0x7F7F7F7F7F7F7F7FL);
+            if (zeroes != 0) {
+                final int byteInWord = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? Long.numberOfTrailingZeros(zeroes) / 8
+                                                                                          : Long.numberOfLeadingZeros(zeroes) / 8;
+                return (int)(p - ptr) + byteInWord;
+            }
+        }
+        for (; p < endPtr; p++) {
+            if (unsafe.getByte(p) == 0) {
+                break;
+            }
+        }
+        return (int)(p - ptr);
+    }
+
+    // True if the next read or write starts on a byte boundary, in which case we can skip all the shifting and masking.
+    // This is the usual case: only schemas that use booleans (e.g. ByteArraySchema, Schema.optional) knock us off it.
+    public boolean isByteAligned() {
+        return bitOffset == 0;
     }
 
     public boolean getBoolean() {
@@ -115,6 +198,10 @@ public class BitStream {
     }
 
     public byte getByte() {
+        if (bitOffset == 0) {
+            return unsafe.getByte(ptr++);
+        }
+
         short x = bigEndian(unsafe.getShort(ptr));
         byte result = (byte)((x << bitOffset) >> 8);
         advance(1);
@@ -122,6 +209,12 @@ public class BitStream {
     }
 
     public int getInt() {
+        if (bitOffset == 0) {
+            final int result = bigEndian(unsafe.getInt(ptr));
+            ptr += 4;
+            return result;
+        }
+
         long x = bigEndian(unsafe.getLong(ptr));
         int result = (int)((x << bitOffset) >> 32);
         advance(4);
@@ -129,6 +222,12 @@ public class BitStream {
     }
 
     public long getLong() {
+        if (bitOffset == 0) {
+            final long result = bigEndian(unsafe.getLong(ptr));
+            ptr += 8;
+            return result;
+        }
+
         long x0 = bigEndian(unsafe.getLong(ptr));
         long result0 = ((x0 << bitOffset) >>> 32);
         long x1 = bigEndian(unsafe.getLong(ptr + 4));
@@ -137,6 +236,17 @@ public class BitStream {
         return (result0 << 32) | result1;
     }
 
+    public void getBytes(byte[] xs, int offset, int length) {
+        if (bitOffset == 0) {
+            unsafe.copyMemory(null, ptr, xs, Unsafe.ARRAY_BYTE_BASE_OFFSET + offset, length);
+            ptr += length;
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                xs[i] = getByte();
+            }
+        }
+    }
+
     public void putBoolean(boolean x) {
         byte current = unsafe.getByte(ptr);
         int mask = 1 << (7 - bitOffset);
@@ -145,13 +255,24 @@ public class BitStream {
     }
 
     public void putByte(byte x) {
+        if (bitOffset == 0) {
+            unsafe.putByte(ptr++, x);
+            return;
+        }
+
         final int mask = 0xFF << (8 - bitOffset);
         int cleared = bigEndian(unsafe.getShort(ptr)) & ~mask;
-        unsafe.putShort(ptr, bigEndian((short) (cleared | (x << (8 - bitOffset)))));
+        unsafe.putShort(ptr, bigEndian((short) (cleared | ((x & 0xFF) << (8 - bitOffset)))));
         advance(1);
     }
 
     public void putInt(int x) {
+        if (bitOffset == 0) {
+            unsafe.putInt(ptr, bigEndian(x));
+            ptr += 4;
+            return;
+        }
+
         final long mask = 0xFFFFFFFFl << (32 - bitOffset);
         long cleared = bigEndian(unsafe.getLong(ptr)) & ~mask;
         unsafe.putLong(ptr, bigEndian(cleared | ((x & 0xFFFFFFFFl) << (32 - bitOffset))));
@@ -159,6 +280,12 @@ public class BitStream {
     }
 
     public void putLong(long x) {
+        if (bitOffset == 0) {
+            unsafe.putLong(ptr, bigEndian(x));
+            ptr += 8;
+            return;
+        }
+
         // Fake it by doing two 32-bit writes:
         final long mask = 0xFFFFFFFFl << (32 - bitOffset);
         {
@@ -172,6 +299,17 @@ public class BitStream {
         advance(8);
     }
 
+    public void putBytes(byte[] xs, int offset, int length) {
+        if (bitOffset == 0) {
+            unsafe.copyMemory(xs, Unsafe.ARRAY_BYTE_BASE_OFFSET + offset, null, ptr, length);
+            ptr += length;
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                putByte(xs[i]);
+            }
+        }
+    }
+
     public void advance(int nBytes) {
         advanceBits(nBytes * 8);
     }
@@ -4,6 +4,7 @@ import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 public class Bits {
     public static final Unsafe unsafe = getUnsafe();
@@ -31,4 +32,103 @@ public class Bits {
     public static int bitsToBytes(int bits) {
         return (bits / 8) + (bits % 8 != 0 ? 1 : 0);
     }
+
+    // Compares two off-heap byte strings in the same order that LMDB sorts keys by default: unsigned
+    // lexicographic, with a proper prefix sorting before anything it is a prefix of.
+    public static int compareBytes(long aPtr, long aSz, long bPtr, long bSz) {
+        final long sz = Math.min(aSz, bSz);
+        long i = 0;
+        for (; i + 8 <= sz; i += 8) {
+            final long a = unsafe.getLong(aPtr + i), b = unsafe.getLong(bPtr + i);
+            if (a != b) return Long.compareUnsigned(bigEndian(a), bigEndian(b));
+        }
+        for (; i < sz; i++) {
+            final int a = unsafe.getByte(aPtr + i) & 0xFF, b = unsafe.getByte(bPtr + i) & 0xFF;
+            if (a != b) return a - b;
+        }
+        return Long.compare(aSz, bSz);
+    }
+
+    public static int compareBytes(long aPtr, long aSz, byte[] bs) {
+        final long sz = Math.min(aSz, bs.length);
+        long i = 0;
+        for (; i + 8 <= sz; i += 8) {
+            final long a = unsafe.getLong(aPtr + i), b = unsafe.getLong(bs, Unsafe.ARRAY_BYTE_BASE_OFFSET + i);
+            if (a != b) return Long.compareUnsigned(bigEndian(a), bigEndian(b));
+        }
+        for (; i < sz; i++) {
+            final int a = unsafe.getByte(aPtr + i) & 0xFF, b = bs[(int)i] & 0xFF;
+            if (a != b) return a - b;
+        }
+        return Long.compare(aSz, bs.length);
+    }
+
+    // The smallest byte string that sorts after every string starting with the first nBits bits of prefix (the same trick
+    // as BitStream.incrementBitStreamFromMark), or null if there is none because those bits are all ones
+    public static byte[] incrementPrefix(byte[] prefix, int nBits) {
+        final byte[] result = Arrays.copyOf(prefix, bitsToBytes(nBits));
+        int increment = 1;
+        if (nBits % 8 != 0) {
+            result[result.length - 1] &= (byte)(0xFF << (8 - nBits % 8));
+            increment = 1 << (8 - nBits % 8);
+        }
+
+        for (int i = result.length - 1; i >= 0; i--) {
+            final int sum = (result[i] & 0xFF) + increment;
+            result[i] = (byte)sum;
+            if (sum <= 0xFF) return result;
+            increment = 1;
+        }
+        return null;
+    }
+
+    // True if the off-heap byte string has the first nBits bits of pattern starting at the given byte offset. Patterns that
+    // come from a Schema may end part way through a byte, in which case whatever follows them in that byte is ignored.
+    public static boolean bitsEqual(long ptr, long sz, long offset, byte[] pattern, int nBits) {
+        if (offset < 0 || offset + bitsToBytes(nBits) > sz) return false;
+
+        for (int i = 0; i < nBits / 8; i++) {
+            if (unsafe.getByte(ptr + offset + i) != pattern[i]) return false;
+        }
+        if (nBits % 8 != 0) {
+            final int mask = (0xFF << (8 - nBits % 8)) & 0xFF;
+            if ((unsafe.getByte(ptr + offset + nBits / 8) & mask) != (pattern[nBits / 8] & mask)) return false;
+        }
+        return true;
+    }
+
+    public static int compareBytes(byte[] as, byte[] bs) {
+        final int sz = Math.min(as.length, bs.length);
+        for (int i = 0; i < sz; i++) {
+            final int a = as[i] & 0xFF, b = bs[i] & 0xFF;
+            if (a != b) return a - b;
+        }
+        return Integer.compare(as.length, bs.length);
+    }
+
+    // A 64-bit hash of an off-heap byte string. Reads it big-endian, so the hash is the same on any machine and can be persisted.
+    public static long hashBytes(long ptr, long sz) {
+        long h = 0x9E3779B97F4A7C15L ^ (sz * 0xC2B2AE3D27D4EB4FL);
+        long i = 0;
+        for (; i + 8 <= sz; i += 8) {
+            h = Long.rotateLeft(h ^ mix(bigEndian(unsafe.getLong(ptr + i))), 27) * 0x9E3779B97F4A7C15L + 0x52DCE729L;
+        }
+        long tail = 0;
+        for (; i < sz; i++) {
+            tail = (tail << 8) | (unsafe.getByte(ptr + i) & 0xFF);
+        }
+        h ^= mix(tail);
+
+        // MurmurHash3's finalizer
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long mix(long x) {
+        return Long.rotateLeft(x * 0xC2B2AE3D27D4EB4FL, 31) * 0x87C37B91114253D5L;
+    }
 }
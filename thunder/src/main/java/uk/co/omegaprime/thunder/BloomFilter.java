@@ -0,0 +1,367 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+import uk.co.omegaprime.thunder.schema.BytesValueSchema;
+import uk.co.omegaprime.thunder.schema.IntegerSchema;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static uk.co.omegaprime.thunder.Bits.unsafe;
+
+// An off-heap Bloom filter over the encoded keys of one database, which lets get, getView and contains answer most
+// lookups of absent keys without crossing into JNI to walk the B-tree. It is blocked: all the bits for a key lie in the
+// same 64-byte cache line, so a lookup costs a single cache miss.
+//
+// Every put of a key (by any Database, cursor, batch or bulk loader over the same database in this Environment) sets its
+// bits before LMDB sees it, and deletes never clear any, so the filter can only be wrong in the safe direction. Its one
+// blind spot is keys that were deleted and then restored by a rebuild racing an old reader: a transaction only trusts
+// the filter if its snapshot is known to be no older than the one the filter was built from. Writes to the database
+// from other processes, or from before the filter was attached in this one, are not seen at all, so it must be attached
+// before any writes are made.
+//
+// The filter is saved to a side database when built and by save(), and reused when attached again if no write
+// transaction has committed since then. Otherwise it is rebuilt by scanning the keys. Deleted keys linger in the filter
+// until it is rebuilt, which rebuildIfStale does once enough have accumulated to matter.
+public final class BloomFilter implements AutoCloseable {
+    private static final int BLOCK_BYTES = 64;
+    private static final int BLOCK_BITS = BLOCK_BYTES * 8;
+    private static final int HEADER_BYTES = 8 + 4 + 4 + 8 + 8;
+    // So that the saved form of the filter still fits in a byte[]
+    private static final int MAX_BLOCKS = (Integer.MAX_VALUE - 8 - HEADER_BYTES) / BLOCK_BYTES;
+    // Reader counts are striped by thread, each stripe on its own cache line
+    private static final int READER_STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2);
+    private static final int READER_STRIPE_LONGS = 8;
+
+    private final Environment env;
+    private final UntypedDatabase udb;
+    private final Database<Integer, byte[]> sideDatabase;
+    private final long expectedKeys;
+    private final double falsePositiveRate;
+
+    private volatile Table table;
+    // Guarded by this
+    private boolean closed;
+    // Keys removed since the table was built, to tell when it is worth rebuilding
+    private final LongAdder removals = new LongAdder();
+    // Only ever updated with the write lock held
+    private volatile long rebuilds;
+
+    // An immutable (apart from bits being set) generation of the filter. Anyone probing or setting its bits must enter()
+    // it first and exit() afterwards: once a rebuild or close has retired the table, its memory is freed as soon as the
+    // last of them exits, rather than waiting for the GC to notice that the (small) Table object is garbage.
+    static final class Table {
+        final long ptr;
+        final int blocks;
+        final int hashes;
+        // The filter is only valid for transactions whose snapshot is at least this new
+        final long validFrom;
+        // Only written before the table is published
+        long keys;
+        final long sizedForKeys;
+
+        private final AtomicLongArray readers = new AtomicLongArray(READER_STRIPES * READER_STRIPE_LONGS);
+        private volatile boolean retired;
+        private final ResourceCleaner cleaner;
+
+        Table(int blocks, int hashes, long validFrom, long keys, long sizedForKeys) {
+            if (blocks < 1 || blocks > MAX_BLOCKS) {
+                throw new IllegalArgumentException("A filter must have between 1 and " + MAX_BLOCKS + " blocks, not " + blocks);
+            }
+
+            final long ptr = unsafe.allocateMemory((long)blocks * BLOCK_BYTES);
+            unsafe.setMemory(ptr, (long)blocks * BLOCK_BYTES, (byte)0);
+            this.ptr = ptr;
+            this.blocks = blocks;
+            this.hashes = hashes;
+            this.validFrom = validFrom;
+            this.keys = keys;
+            this.sizedForKeys = sizedForKeys;
+            // The GC frees it if the filter is dropped without being closed
+            this.cleaner = ResourceCleaner.register(this, ResourceMetrics.Kind.BUFFER, () -> unsafe.freeMemory(ptr));
+        }
+
+        // Returns false if the table has been retired, in which case it must not be touched (or exited)
+        boolean enter() {
+            readers.getAndIncrement(readerIndex());
+            // Pairs with retire(): either it sees our count, or we see that it has retired the table
+            if (retired) {
+                exit();
+                return false;
+            }
+            return true;
+        }
+
+        void exit() {
+            readers.getAndDecrement(readerIndex());
+            if (retired) {
+                freeIfUnused();
+            }
+        }
+
+        // The table must no longer be reachable from the BloomFilter, so that only those who have already entered it
+        // can still be using it
+        void retire() {
+            retired = true;
+            freeIfUnused();
+        }
+
+        boolean isFreed() {
+            return cleaner.isReleased();
+        }
+
+        private void freeIfUnused() {
+            // Every stripe only counts those who entered and haven't yet exited on it, so it is never negative
+            for (int i = 0; i < readers.length(); i += READER_STRIPE_LONGS) {
+                if (readers.get(i) != 0) return;
+            }
+            cleaner.close();
+        }
+
+        private static int readerIndex() {
+            return ((int)Thread.currentThread().getId() & (READER_STRIPES - 1)) * READER_STRIPE_LONGS;
+        }
+
+        static Table sizedFor(long keys, double falsePositiveRate, long validFrom) {
+            // The textbook sizing, plus a little to make up for the uneven load on the blocks
+            final double bitsPerKey = 1.1 * -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+            final int hashes = (int)Math.max(1, Math.min(16, Math.round(bitsPerKey * Math.log(2))));
+            final int blocks = (int)Math.max(1, Math.min(MAX_BLOCKS, (long)Math.ceil(keys * bitsPerKey / BLOCK_BITS)));
+            return new Table(blocks, hashes, validFrom, 0, keys);
+        }
+
+        void add(long dataPtr, long sz) {
+            final long h = Bits.hashBytes(dataPtr, sz);
+            final long block = ptr + blockIndex(h) * BLOCK_BYTES;
+            final int h1 = (int)(h * 0x9E3779B97F4A7C15L), h2 = (int)((h * 0x9E3779B97F4A7C15L) >>> 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                final int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+                final long wordPtr = block + (bit >>> 6) * 8;
+                final long mask = 1L << (bit & 63);
+                // Another writer can't be running, but a close or an aborted transaction's leftovers could be: be safe
+                long word;
+                do {
+                    word = unsafe.getLongVolatile(null, wordPtr);
+                    if ((word & mask) != 0) break;
+                } while (!unsafe.compareAndSwapLong(null, wordPtr, word, word | mask));
+            }
+        }
+
+        boolean mightContain(long dataPtr, long sz) {
+            final long h = Bits.hashBytes(dataPtr, sz);
+            final long block = ptr + blockIndex(h) * BLOCK_BYTES;
+            final int h1 = (int)(h * 0x9E3779B97F4A7C15L), h2 = (int)((h * 0x9E3779B97F4A7C15L) >>> 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                final int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+                if ((unsafe.getLongVolatile(null, block + (bit >>> 6) * 8) & (1L << (bit & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long blockIndex(long h) {
+            return ((h >>> 32) * blocks) >>> 32;
+        }
+
+        // Words are stored big-endian so that a saved filter can be read back on a machine of either endianness
+        byte[] toBytes(long savedAt) {
+            final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + blocks * BLOCK_BYTES);
+            bb.putLong(savedAt).putInt(blocks).putInt(hashes).putLong(keys).putLong(sizedForKeys);
+            for (long i = 0; i < (long)blocks * BLOCK_BYTES; i += 8) {
+                bb.putLong(unsafe.getLongVolatile(null, ptr + i));
+            }
+            return bb.array();
+        }
+
+        static Table fromBytes(byte[] bytes, long validFrom) {
+            final ByteBuffer bb = ByteBuffer.wrap(bytes);
+            bb.getLong();
+            final Table table = new Table(bb.getInt(), bb.getInt(), validFrom, bb.getLong(), bb.getLong());
+            for (long i = 0; i < (long)table.blocks * BLOCK_BYTES; i += 8) {
+                unsafe.putLong(table.ptr + i, bb.getLong());
+            }
+            return table;
+        }
+
+        static long savedAt(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getLong();
+        }
+    }
+
+    private BloomFilter(Environment env, UntypedDatabase udb, Database<Integer, byte[]> sideDatabase, long expectedKeys, double falsePositiveRate) {
+        this.env = env;
+        this.udb = udb;
+        this.sideDatabase = sideDatabase;
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    // Like Environment.write, must be called from a thread with no open transaction
+    public static BloomFilter attach(Environment env, Database<?, ?> database, String sideDatabaseName, long expectedKeys, double falsePositiveRate) {
+        if (expectedKeys < 1) {
+            throw new IllegalArgumentException("Must expect at least one key");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("The false positive rate must lie strictly between 0 and 1");
+        }
+
+        final UntypedDatabase udb = database.getUntypedDatabase();
+        return env.write(tx -> {
+            final Database<Integer, byte[]> sideDatabase = env.createDatabase(tx, sideDatabaseName, IntegerSchema.INSTANCE, BytesValueSchema.INSTANCE);
+            final BloomFilter filter = new BloomFilter(env, udb, sideDatabase, expectedKeys, falsePositiveRate);
+
+            // We hold the write lock, so nothing can commit between deciding what to use and registering it
+            final long lastCommitted = env.lastCommittedTransactionId();
+            final byte[] saved = sideDatabase.get(tx, 0);
+            if (saved != null && Table.savedAt(saved) == lastCommitted) {
+                filter.table = Table.fromBytes(saved, lastCommitted);
+            } else {
+                filter.rebuild(tx);
+            }
+            // Registering before commit means that the first write after ours already sets bits in the filter
+            env.attachBloomFilter(udb.dbi, filter);
+            return filter;
+        });
+    }
+
+    // Package-private hooks for the write and lookup paths, which take the MDB_val of the encoded key
+
+    void keyAdded(long dataPtr, long sz) {
+        final Table table = enterTable();
+        if (table == null) return;
+        try {
+            table.add(dataPtr, sz);
+        } finally {
+            table.exit();
+        }
+    }
+
+    void keyRemoved() {
+        removals.increment();
+    }
+
+    boolean mightContain(Transaction tx, long dataPtr, long sz) {
+        final Table table = enterTable();
+        if (table == null) return true;
+        try {
+            return tx.snapshotAtLeast < table.validFrom || table.mightContain(dataPtr, sz);
+        } finally {
+            table.exit();
+        }
+    }
+
+    // The current table, entered, or null if the filter has been closed
+    private Table enterTable() {
+        while (true) {
+            final Table table = this.table;
+            if (table.enter()) return table;
+            // Retired by close rather than replaced by a rebuild
+            if (table == this.table) return null;
+        }
+    }
+
+    // Saves the filter so that it can be reused by the next attach, e.g. just before closing the Environment. Like
+    // Environment.write, must be called from a thread with no open transaction.
+    public void save() {
+        env.write(tx -> {
+            final Table table = enterTable();
+            if (table == null) {
+                throw new IllegalStateException("The filter has been closed");
+            }
+            try {
+                // The write transaction we're in will get the next ID
+                sideDatabase.put(tx, 0, table.toBytes(env.lastCommittedTransactionId() + 1));
+            } finally {
+                table.exit();
+            }
+            return null;
+        });
+    }
+
+    // Builds the filter afresh from the keys currently in the database, which clears out the bits of deleted keys and
+    // resizes it if the database has outgrown it. Like Environment.write, must be called from a thread with no open
+    // transaction.
+    public void rebuild() {
+        env.write(tx -> {
+            rebuild(tx);
+            return null;
+        });
+    }
+
+    // Rebuilds if at least a quarter of the keys the filter was built with have since been removed, or if the database
+    // has grown to more than twice the size the filter was built for, when false positives will have become common.
+    // Call it periodically, e.g. from a scheduled task. Returns true if it rebuilt.
+    public boolean rebuildIfStale() {
+        final long entries;
+        try (final Transaction tx = env.transaction(true)) {
+            entries = udb.entryCount(tx);
+        }
+
+        final Table table = this.table;
+        if (removals.sum() * 4 < Math.max(1, table.keys) && entries <= 2 * table.sizedForKeys) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+
+    // Must be run in a write transaction: holding the write lock means no key can be added between our scan and the swap
+    private void rebuild(Transaction tx) {
+        final long entries = udb.entryCount(tx);
+        final Table fresh = Table.sizedFor(Math.max(expectedKeys, entries + entries / 2), falsePositiveRate, env.lastCommittedTransactionId());
+
+        final Table old;
+        boolean published = false;
+        try {
+            final UntypedCursor cursor = udb.createCursor(tx);
+            try {
+                final boolean duplicateKeys = cursor instanceof UntypedCursorWithDuplicateKeys;
+                for (boolean positioned = cursor.moveFirst(); positioned;
+                     positioned = duplicateKeys ? ((UntypedCursorWithDuplicateKeys)cursor).moveFirstOfNextKey() : cursor.moveNext()) {
+                    fresh.add(unsafe.getAddress(cursor.bufferPtr + Unsafe.ADDRESS_SIZE), unsafe.getAddress(cursor.bufferPtr));
+                    fresh.keys++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            sideDatabase.put(tx, 0, fresh.toBytes(env.lastCommittedTransactionId() + 1));
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The filter has been closed");
+                }
+                old = this.table;
+                this.table = fresh;
+            }
+            published = true;
+        } finally {
+            if (!published) {
+                fresh.retire();
+            }
+        }
+
+        removals.reset();
+        rebuilds++;
+        // Null when called from attach
+        if (old != null) {
+            old.retire();
+        }
+    }
+
+    // Number of times the filter has been built from the keys in the database, including by attach if there was no
+    // saved copy up to date enough to reuse
+    public long rebuilds() { return rebuilds; }
+
+    // Detaches the filter. Lookups then go straight to LMDB again. The saved copy is left in the side database.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        env.detachBloomFilter(udb.dbi, this);
+        table.retire();
+    }
+}
@@ -1,6 +1,7 @@
 package uk.co.omegaprime.thunder;
 
 import sun.misc.Unsafe;
+import uk.co.omegaprime.thunder.schema.EncodingSchema;
 import uk.co.omegaprime.thunder.schema.Schema;
 import uk.co.omegaprime.thunder.schema.VoidSchema;
 
@@ -9,35 +10,112 @@ import static uk.co.omegaprime.thunder.Bits.unsafe;
 
 // Holds a pointer to a scratch mdb_val structure to avoid us having to reallocate one upon every call.
 // Unlike Schema (which is immutable and thread safe) this class is mutable and not thread safe.
+//
+// For fixed-size schemas the buffer is allocated up front. For variable-size ones (strings, byte arrays, lists) it is an
+// arena that grows geometrically to fit the biggest value we've been asked for, so that in the steady state we don't
+// call the allocator at all. So that one huge value can't pin memory forever, every SHRINK_CHECK_INTERVAL allocations
+// we look at the biggest of them (the high-water mark) and shrink the arena back down to that if it has grown beyond
+// both twice that and maxRetainedBytes.
+//
+// Either way there is only one buffer, so each allocate must be followed by the corresponding free before the next.
 final class BufferedSchema<T> {
-    public static final BufferedSchema<Void> VOID = new BufferedSchema<Void>(VoidSchema.INSTANCE, 0);
+    public static final BufferedSchema<Void> VOID = new BufferedSchema<Void>(VoidSchema.INSTANCE, 0, false, 0);
+
+    static final int DEFAULT_MAX_RETAINED_BYTES = 64 * 1024;
+    private static final int MIN_ARENA_BYTES = 64;
+    private static final int SHRINK_CHECK_INTERVAL = 1024;
+
+    // Kept apart from the BufferedSchema so that the cleaner can free it without keeping the BufferedSchema reachable
+    private static final class Memory implements Runnable {
+        long bufferPtr;
+        long arenaPtr;
+
+        public void run() {
+            if (bufferPtr != 0) {
+                ResourceMetrics.recordScratchAllocatorCall();
+                unsafe.freeMemory(bufferPtr);
+                bufferPtr = 0;
+            }
+            if (arenaPtr != 0) {
+                ResourceMetrics.recordScratchAllocatorCall();
+                unsafe.freeMemory(arenaPtr);
+                arenaPtr = 0;
+            }
+        }
+    }
 
     private final Schema<T> schema;
     private final long bufferPtr;
+    private final boolean useArena;
+    private final int maxRetainedBytes;
+    private final Memory memory = new Memory();
+    private final ResourceCleaner cleaner;
+    private int arenaCapacity;
+    private int highWaterMark;
+    private int allocationsSinceShrinkCheck;
+    // Number of times this BufferedSchema has called allocateMemory, reallocateMemory or freeMemory, not counting the
+    // final free once it is closed or collected. Only for monitoring, and only exact for those that belong to one thread.
+    private long allocatorCalls;
+    // Byte-aligned schemas fill exactly sizeBits(x) / 8 bytes, so there is never any padding to zero
+    private final boolean byteAligned;
+    // Non-null if the schema is an EncodingSchema, in which case sizeBits remembers the encoding of the value it was
+    // given so that a following write of that same value can use it rather than encoding it all over again
+    private final EncodingSchema<T, Object> encodingSchema;
+    private boolean haveEncoding;
+    private T encodedValue;
+    private Object encoding;
     final BitStream bs = new BitStream();
 
     public BufferedSchema(Schema<T> schema) {
-        // TODO: speculatively allocate a reasonable amount of memory that most allocations of interest might fit into?
-        this(schema, schema.maximumSizeBits() < 0 ? 0 : allocateMdbVal(bitsToBytes(schema.maximumSizeBits())));
+        this(schema, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    public BufferedSchema(Schema<T> schema, int maxRetainedBytes) {
+        this(schema, schema.maximumSizeBits() < 0 ? 0 : allocateMdbVal(bitsToBytes(schema.maximumSizeBits())), schema.maximumSizeBits() < 0, maxRetainedBytes);
     }
 
-    private BufferedSchema(Schema<T> schema, long bufferPtr) {
+    // VOID is shared between threads, so it can't have an arena and just allocates afresh each time
+    @SuppressWarnings("unchecked")
+    private BufferedSchema(Schema<T> schema, long bufferPtr, boolean useArena, int maxRetainedBytes) {
         this.schema = schema;
         this.bufferPtr = bufferPtr;
+        this.useArena = useArena;
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.byteAligned = schema.isByteAligned();
+        this.encodingSchema = schema instanceof EncodingSchema ? (EncodingSchema<T, Object>)schema : null;
+        this.memory.bufferPtr = bufferPtr;
+        if (bufferPtr != 0) {
+            countAllocatorCall();
+        }
+        this.cleaner = bufferPtr != 0 || useArena ? ResourceCleaner.register(this, ResourceMetrics.Kind.BUFFER, memory) : null;
     }
 
     public Schema<T> getSchema() {
         return schema;
     }
 
-    @Override
-    public void finalize() throws Throwable {
-        if (bufferPtr != 0) {
-            unsafe.freeMemory(bufferPtr);
+    long allocatorCalls() {
+        return allocatorCalls;
+    }
+
+    private void countAllocatorCall() {
+        allocatorCalls++;
+        ResourceMetrics.recordScratchAllocatorCall();
+    }
+
+    // Null if there is nothing to free. Lets us see whether the memory has been freed after the BufferedSchema has gone.
+    ResourceCleaner cleaner() {
+        return cleaner;
+    }
+
+    // Frees the buffer now rather than waiting for the GC. The BufferedSchema must not be used afterwards.
+    public void close() {
+        if (cleaner != null) {
+            cleaner.close();
         }
-        super.finalize();
     }
 
+    // The caller must count the call
     private static long allocateMdbVal(int sz) {
         return unsafe.allocateMemory(2 * Unsafe.ADDRESS_SIZE + sz);
     }
@@ -45,27 +123,96 @@ final class BufferedSchema<T> {
     public long allocate(int sz) {
         if (bufferPtr != 0) {
             return bufferPtr;
-        } else {
+        } else if (!useArena) {
+            countAllocatorCall();
             return allocateMdbVal(sz);
         }
+
+        highWaterMark = Math.max(highWaterMark, sz);
+        // Even a zero-sized request needs an arena: the mdb_val header lives in it, and LMDB rejects a NULL one
+        if (memory.arenaPtr == 0 || sz > arenaCapacity) {
+            // We don't care about the old contents, so free-and-allocate rather than reallocate, which might copy them
+            final int newCapacity = (int)Math.min(Integer.MAX_VALUE, Math.max((long)sz, Math.max(MIN_ARENA_BYTES, 2L * arenaCapacity)));
+            if (memory.arenaPtr != 0) {
+                countAllocatorCall();
+                unsafe.freeMemory(memory.arenaPtr);
+                memory.arenaPtr = 0;
+                arenaCapacity = 0;
+            }
+            countAllocatorCall();
+            memory.arenaPtr = allocateMdbVal(newCapacity);
+            arenaCapacity = newCapacity;
+        }
+        return memory.arenaPtr;
     }
 
     public long allocateAndCopy(long bufferPtrToCopy) {
         int sz = (int)unsafe.getAddress(bufferPtrToCopy);
         long bufferPtrNow = allocate(sz);
         unsafe.putAddress(bufferPtrNow,                       sz);
-        unsafe.putAddress(bufferPtrNow + Unsafe.ADDRESS_SIZE, bufferPtr + 2 * Unsafe.ADDRESS_SIZE);
-        unsafe.copyMemory(unsafe.getAddress(bufferPtrToCopy + Unsafe.ADDRESS_SIZE), bufferPtr + 2 * Unsafe.ADDRESS_SIZE, sz);
+        unsafe.putAddress(bufferPtrNow + Unsafe.ADDRESS_SIZE, bufferPtrNow + 2 * Unsafe.ADDRESS_SIZE);
+        unsafe.copyMemory(unsafe.getAddress(bufferPtrToCopy + Unsafe.ADDRESS_SIZE), bufferPtrNow + 2 * Unsafe.ADDRESS_SIZE, sz);
         return bufferPtrNow;
     }
 
     public void free(long bufferPtrNow) {
-        if (bufferPtr == 0) {
+        if (bufferPtr != 0) {
+            return;
+        } else if (!useArena) {
+            countAllocatorCall();
             unsafe.freeMemory(bufferPtrNow);
+            return;
+        }
+
+        if (++allocationsSinceShrinkCheck >= SHRINK_CHECK_INTERVAL) {
+            final int target = Math.max(MIN_ARENA_BYTES, highWaterMark);
+            if (arenaCapacity > maxRetainedBytes && arenaCapacity / 2 > target) {
+                countAllocatorCall();
+                memory.arenaPtr = unsafe.reallocateMemory(memory.arenaPtr, 2 * Unsafe.ADDRESS_SIZE + target);
+                arenaCapacity = target;
+            }
+            allocationsSinceShrinkCheck = 0;
+            highWaterMark = 0;
         }
     }
 
-    // INVARIANT: sz == schema.size(x)
+    // Use this rather than getSchema().sizeBits(x) if x is about to be written
+    public int sizeBits(T x) {
+        if (encodingSchema == null) {
+            return schema.sizeBits(x);
+        }
+
+        encoding = encodingSchema.encode(x);
+        encodedValue = x;
+        haveEncoding = true;
+        return encodingSchema.encodedSizeBits(encoding);
+    }
+
+    // For when we need to size several values before writing any of them: these work for any schema, but only
+    // save anything for an EncodingSchema
+    public Object encode(T x) {
+        return encodingSchema == null ? x : encodingSchema.encode(x);
+    }
+
+    @SuppressWarnings("unchecked")
+    public int encodedSizeBits(Object encoded) {
+        return encodingSchema == null ? schema.sizeBits((T)encoded) : encodingSchema.encodedSizeBits(encoded);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void writeEncodedDirect(long bufferPtr, int sz, Object encoded) {
+        bs.initialize(bufferPtr, sz);
+        if (encodingSchema == null) {
+            schema.write(bs, (T)encoded);
+        } else {
+            encodingSchema.writeEncoded(bs, encoded);
+        }
+        if (!byteAligned) {
+            bs.zeroFill();
+        }
+    }
+
+    // INVARIANT: sz == sizeBits(x)
     public void write(long bufferPtr, int sz, T x) {
         unsafe.putAddress(bufferPtr, sz);
         unsafe.putAddress(bufferPtr + Unsafe.ADDRESS_SIZE, bufferPtr + 2 * Unsafe.ADDRESS_SIZE);
@@ -74,8 +221,48 @@ final class BufferedSchema<T> {
 
     public void writeDirect(long bufferPtr, int sz, T x) {
         bs.initialize(bufferPtr, sz);
-        schema.write(bs, x);
-        bs.zeroFill();
+        if (haveEncoding && encodedValue == x) {
+            encodingSchema.writeEncoded(bs, encoding);
+        } else {
+            schema.write(bs, x);
+        }
+        // Don't keep the value alive, and don't trust the encoding if the caller mutates it before the next write
+        haveEncoding = false;
+        encodedValue = null;
+        encoding = null;
+        if (!byteAligned) {
+            bs.zeroFill();
+        }
+    }
+
+    // As toBytes, for one-off encodings where it isn't worth creating a BufferedSchema
+    static <T> byte[] toBytes(Schema<T> schema, T x) {
+        final int sz = bitsToBytes(schema.sizeBits(x));
+        final long ptr = unsafe.allocateMemory(Math.max(1, sz));
+        try {
+            final BitStream bs = new BitStream(ptr, sz);
+            schema.write(bs, x);
+            bs.zeroFill();
+            final byte[] result = new byte[sz];
+            unsafe.copyMemory(null, ptr, result, Unsafe.ARRAY_BYTE_BASE_OFFSET, sz);
+            return result;
+        } finally {
+            unsafe.freeMemory(ptr);
+        }
+    }
+
+    // The encoding of x as a byte array, for comparing against keys in place without decoding them
+    public byte[] toBytes(T x) {
+        final int sz = bitsToBytes(sizeBits(x));
+        final long bufferPtrNow = allocate(sz);
+        try {
+            write(bufferPtrNow, sz, x);
+            final byte[] result = new byte[sz];
+            unsafe.copyMemory(null, bufferPtrNow + 2 * Unsafe.ADDRESS_SIZE, result, Unsafe.ARRAY_BYTE_BASE_OFFSET, sz);
+            return result;
+        } finally {
+            free(bufferPtrNow);
+        }
     }
 
     public T read(long bufferPtr) {
@@ -0,0 +1,310 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
+import static uk.co.omegaprime.thunder.Bits.compareBytes;
+import static uk.co.omegaprime.thunder.Bits.unsafe;
+
+// Loads a large number of items into a Database as cheaply as possible. If the items arrive sorted by their encoded
+// key (and, for databases with duplicate keys, then by their encoded value) we write them with MDB_APPEND/MDB_APPENDDUP,
+// which lets LMDB skip the B-tree descent it does for an ordinary put. As soon as we see an item out of order we instead
+// buffer everything that follows, spilling sorted runs to temporary files if necessary, and merge them in close().
+//
+// Like the transaction it writes to, this class should only be used by one thread at a time. Items are not guaranteed to
+// be visible in the database until close(). The temporary files are deleted by close(), or as soon as add() fails, after
+// which the loader only holds resources that close() frees and the transaction should be aborted.
+public class BulkLoader<K, V> implements AutoCloseable {
+    private static final long DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+    private final Transaction tx;
+    private final Database<K, V> database;
+    private final boolean duplicateKeys;
+    private final UntypedCursor cursor;
+    private final long maxBufferedBytes;
+
+    // A pair of MDB_vals pointing into kDataPtr/vDataPtr, which we grow as required
+    private final long kvPtr = unsafe.allocateMemory(4 * Unsafe.ADDRESS_SIZE);
+    private long kDataPtr, kDataCapacity;
+    private long vDataPtr, vDataCapacity;
+
+    // The greatest key (and value) we have written so far: anything strictly greater than it can be appended
+    private long lastKeyPtr, lastKeySz = -1, lastKeyCapacity;
+    private long lastValuePtr, lastValueSz = -1, lastValueCapacity;
+
+    // Only used once we have seen our first out-of-order item
+    private boolean spilling;
+    private final List<Entry> buffered = new ArrayList<>();
+    private long bufferedBytes;
+    private final List<File> runs = new ArrayList<>();
+    private long sequenceNumber;
+
+    // Set once add() has failed, after which we may have lost items and must not merge what remains
+    private boolean failed;
+    private boolean closed;
+
+    public BulkLoader(Transaction tx, Database<K, V> database) {
+        this(tx, database, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    public BulkLoader(Transaction tx, Database<K, V> database, long maxBufferedBytes) {
+        this.tx = tx;
+        this.database = database;
+        this.duplicateKeys = database instanceof DatabaseWithDuplicateKeys;
+        this.cursor = database.getUntypedDatabase().createCursor(tx);
+        this.maxBufferedBytes = maxBufferedBytes;
+
+        // MDB_APPEND only works for keys beyond anything already in the database, not just beyond what we've added
+        if (cursor.moveLast()) {
+            rememberLastWritten(unsafe.getAddress(cursor.bufferPtr + Unsafe.ADDRESS_SIZE),     unsafe.getAddress(cursor.bufferPtr),
+                                unsafe.getAddress(cursor.bufferPtr + 3 * Unsafe.ADDRESS_SIZE), unsafe.getAddress(cursor.bufferPtr + 2 * Unsafe.ADDRESS_SIZE));
+        }
+    }
+
+    private static final class Entry {
+        final byte[] k;
+        final byte[] v;
+        // Items with equal keys must be written in the order they were added, so that the last value wins
+        final long sequenceNumber;
+
+        Entry(byte[] k, byte[] v, long sequenceNumber) {
+            this.k = k;
+            this.v = v;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    private int compareEntries(Entry a, Entry b) {
+        final int kCompare = compareBytes(a.k, b.k);
+        if (kCompare != 0) return kCompare;
+        if (duplicateKeys) {
+            final int vCompare = compareBytes(a.v, b.v);
+            if (vCompare != 0) return vCompare;
+        }
+        return Long.compare(a.sequenceNumber, b.sequenceNumber);
+    }
+
+    private static long ensureCapacity(long ptr, long capacity, long required) {
+        return required <= capacity ? ptr : (ptr == 0 ? unsafe.allocateMemory(required) : unsafe.reallocateMemory(ptr, required));
+    }
+
+    private void prepareKey(int kSz) {
+        kDataPtr = ensureCapacity(kDataPtr, kDataCapacity, kSz);
+        kDataCapacity = Math.max(kDataCapacity, kSz);
+        unsafe.putAddress(kvPtr,                       kSz);
+        unsafe.putAddress(kvPtr + Unsafe.ADDRESS_SIZE, kDataPtr);
+    }
+
+    private void prepareValue(int vSz) {
+        vDataPtr = ensureCapacity(vDataPtr, vDataCapacity, vSz);
+        vDataCapacity = Math.max(vDataCapacity, vSz);
+        unsafe.putAddress(kvPtr + 2 * Unsafe.ADDRESS_SIZE, vSz);
+        unsafe.putAddress(kvPtr + 3 * Unsafe.ADDRESS_SIZE, vDataPtr);
+    }
+
+    public void add(K k, V v) {
+        if (failed || closed) {
+            throw new IllegalStateException(closed ? "The loader has been closed" : "An earlier add failed");
+        }
+
+        boolean added = false;
+        try {
+            final Database.Scratch<K, V> scratch = database.scratch();
+            final int kSz = bitsToBytes(scratch.kBuffer.sizeBits(k));
+            final int vSz = bitsToBytes(scratch.vBuffer.sizeBits(v));
+
+            prepareKey(kSz);
+            scratch.kBuffer.writeDirect(kDataPtr, kSz, k);
+            prepareValue(vSz);
+            scratch.vBuffer.writeDirect(vDataPtr, vSz, v);
+
+            if (spilling || !write(true)) {
+                spilling = true;
+                buffer(kSz, vSz);
+            }
+            added = true;
+        } finally {
+            if (!added) {
+                failed = true;
+                deleteRuns();
+                buffered.clear();
+            }
+        }
+    }
+
+    // Writes the MDB_vals at kvPtr, appending if possible. If they can't be appended and allowOnlyAppend is
+    // set then we return false without writing anything.
+    private boolean write(boolean allowOnlyAppend) {
+        final long kSz = unsafe.getAddress(kvPtr), vSz = unsafe.getAddress(kvPtr + 2 * Unsafe.ADDRESS_SIZE);
+
+        final int kCompare = lastKeySz < 0 ? 1 : compareBytes(kDataPtr, kSz, lastKeyPtr, lastKeySz);
+        final int flags;
+        if (kCompare > 0) {
+            flags = JNI.MDB_APPEND;
+        } else if (kCompare == 0 && !duplicateKeys) {
+            // Overwriting the value of the last key we wrote: harmless to do with an ordinary put
+            flags = 0;
+        } else if (kCompare == 0 && compareBytes(vDataPtr, vSz, lastValuePtr, lastValueSz) > 0) {
+            flags = JNI.MDB_APPENDDUP;
+        } else if (kCompare == 0 && compareBytes(vDataPtr, vSz, lastValuePtr, lastValueSz) == 0) {
+            // Exact duplicate of the item we last wrote, which MDB_DUPSORT would just ignore anyway
+            return true;
+        } else if (allowOnlyAppend) {
+            return false;
+        } else {
+            flags = 0;
+        }
+
+        try {
+            cursor.database.keyWritten(tx, kvPtr);
+            Util.checkErrorCode(JNI.mdb_cursor_put(cursor.cursor, kvPtr, kvPtr + 2 * Unsafe.ADDRESS_SIZE, flags));
+        } finally {
+            tx.generation++;
+        }
+
+        if (flags != 0) {
+            rememberLastWritten(kDataPtr, kSz, vDataPtr, vSz);
+        }
+
+        return true;
+    }
+
+    private void rememberLastWritten(long kPtr, long kSz, long vPtr, long vSz) {
+        lastKeyPtr = ensureCapacity(lastKeyPtr, lastKeyCapacity, kSz);
+        lastKeyCapacity = Math.max(lastKeyCapacity, kSz);
+        lastKeySz = kSz;
+        unsafe.copyMemory(kPtr, lastKeyPtr, kSz);
+
+        lastValuePtr = ensureCapacity(lastValuePtr, lastValueCapacity, vSz);
+        lastValueCapacity = Math.max(lastValueCapacity, vSz);
+        lastValueSz = vSz;
+        unsafe.copyMemory(vPtr, lastValuePtr, vSz);
+    }
+
+    private void buffer(int kSz, int vSz) {
+        final byte[] k = new byte[kSz], v = new byte[vSz];
+        unsafe.copyMemory(null, kDataPtr, k, Unsafe.ARRAY_BYTE_BASE_OFFSET, kSz);
+        unsafe.copyMemory(null, vDataPtr, v, Unsafe.ARRAY_BYTE_BASE_OFFSET, vSz);
+        buffered.add(new Entry(k, v, sequenceNumber++));
+
+        bufferedBytes += kSz + vSz + 64; // Very rough allowance for object headers
+        if (bufferedBytes >= maxBufferedBytes) {
+            spillRun();
+        }
+    }
+
+    private void spillRun() {
+        buffered.sort(this::compareEntries);
+        try {
+            // Not deleteOnExit: the JVM would remember every run until exit, so we are careful to delete them ourselves
+            final File file = Files.createTempFile("thunder-bulkload", ".run").toFile();
+            runs.add(file);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (Entry entry : buffered) {
+                    dos.writeLong(entry.sequenceNumber);
+                    dos.writeInt(entry.k.length);
+                    dos.write(entry.k);
+                    dos.writeInt(entry.v.length);
+                    dos.write(entry.v);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffered.clear();
+        bufferedBytes = 0;
+    }
+
+    private void writeEntry(Entry entry) {
+        prepareKey(entry.k.length);
+        unsafe.copyMemory(entry.k, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, kDataPtr, entry.k.length);
+        prepareValue(entry.v.length);
+        unsafe.copyMemory(entry.v, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, vDataPtr, entry.v.length);
+        write(false);
+    }
+
+    private void merge() {
+        if (runs.isEmpty()) {
+            buffered.sort(this::compareEntries);
+            for (Entry entry : buffered) {
+                writeEntry(entry);
+            }
+            buffered.clear();
+            return;
+        }
+
+        if (!buffered.isEmpty()) {
+            spillRun();
+        }
+
+        final List<DataInputStream> streams = new ArrayList<>();
+        try {
+            final PriorityQueue<Pair<Entry, DataInputStream>> queue = new PriorityQueue<>((a, b) -> compareEntries(a.k, b.k));
+            for (File run : runs) {
+                final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+                streams.add(dis);
+                final Entry entry = readEntry(dis);
+                if (entry != null) queue.add(new Pair<>(entry, dis));
+            }
+
+            while (!queue.isEmpty()) {
+                final Pair<Entry, DataInputStream> next = queue.poll();
+                writeEntry(next.k);
+                final Entry entry = readEntry(next.v);
+                if (entry != null) queue.add(new Pair<>(entry, next.v));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (DataInputStream dis : streams) {
+                try { dis.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static Entry readEntry(DataInputStream dis) throws IOException {
+        final long sequenceNumber;
+        try {
+            sequenceNumber = dis.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        final byte[] k = new byte[dis.readInt()];
+        dis.readFully(k);
+        final byte[] v = new byte[dis.readInt()];
+        dis.readFully(v);
+        return new Entry(k, v, sequenceNumber);
+    }
+
+    private void deleteRuns() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (!failed) {
+                merge();
+            }
+        } finally {
+            deleteRuns();
+            cursor.close();
+            unsafe.freeMemory(kvPtr);
+            if (kDataPtr     != 0) unsafe.freeMemory(kDataPtr);
+            if (vDataPtr     != 0) unsafe.freeMemory(vDataPtr);
+            if (lastKeyPtr   != 0) unsafe.freeMemory(lastKeyPtr);
+            if (lastValuePtr != 0) unsafe.freeMemory(lastValuePtr);
+        }
+    }
+}
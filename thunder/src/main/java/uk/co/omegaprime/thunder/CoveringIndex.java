@@ -0,0 +1,76 @@
+package uk.co.omegaprime.thunder;
+
+import uk.co.omegaprime.thunder.schema.Schema;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+// An index of the items in an IndexedDatabase by some function of their values, where each index entry also carries a
+// projection of the value. Entries are stored as (index key, primary key) -> projection, so the entries for one index key
+// are contiguous and sorted by primary key, and a query that only needs the projected columns costs one B-tree descent
+// per range rather than an extra one per item. Items for which the index function returns null aren't indexed.
+public final class CoveringIndex<I, K, P, V> extends MaintainedIndex<K, V> {
+    private final String name;
+    private final Schema<I> iSchema;
+    private final Schema<K> kSchema;
+    private final Function<? super V, ? extends I> indexKey;
+    private final Function<? super V, ? extends P> projection;
+    private final Database<Pair<I, K>, P> database;
+
+    CoveringIndex(String name, Schema<I> iSchema, Schema<K> kSchema, Function<? super V, ? extends I> indexKey,
+                  Function<? super V, ? extends P> projection, Database<Pair<I, K>, P> database) {
+        this.name = name;
+        this.iSchema = iSchema;
+        this.kSchema = kSchema;
+        this.indexKey = indexKey;
+        this.projection = projection;
+        this.database = database;
+    }
+
+    @Override
+    public String getName() { return name; }
+
+    // For reading only: writing to it directly would leave the index out of step with the primary database
+    public Database<Pair<I, K>, P> getDatabase() { return database; }
+
+    // The entries whose index keys lie between from and to, read from the index alone. Since the stored keys are
+    // (index key, primary key) pairs, the bounds are encoded as prefixes: an inclusive upper bound, say, becomes the
+    // smallest encoding beyond every key that starts with it.
+    public RangeIterator<Pair<I, K>, P> range(Transaction tx, I from, boolean fromInclusive, I to, boolean toInclusive, Direction direction) {
+        byte[] lower = null, upper = null;
+        if (from != null) {
+            lower = fromInclusive ? BufferedSchema.toBytes(iSchema, from) : successor(from);
+            if (lower == null) {
+                // Nothing can follow from, so the range is empty
+                lower = upper = BufferedSchema.toBytes(iSchema, from);
+            }
+        }
+        if (to != null && upper == null) {
+            upper = toInclusive ? successor(to) : BufferedSchema.toBytes(iSchema, to);
+        }
+
+        final Database.Scratch<Pair<I, K>, P> scratch = database.scratch();
+        return RangeIterator.ofEncodedBounds(database.getUntypedDatabase(), tx, scratch.kBuffer, scratch.vBuffer,
+                                             lower, true, upper, false, direction);
+    }
+
+    // The entries with exactly the given index key, as a view over a cursor on getDatabase() keyed by primary key
+    public SubcursorView<I, K, P> view(Cursor<Pair<I, K>, P> cursor, I i) {
+        return new SubcursorView<>(cursor, iSchema, kSchema, i);
+    }
+
+    private byte[] successor(I i) {
+        return Bits.incrementPrefix(BufferedSchema.toBytes(iSchema, i), iSchema.sizeBits(i));
+    }
+
+    @Override
+    void update(Transaction tx, K k, V oldV, V newV) {
+        final I oldI = oldV == null ? null : indexKey.apply(oldV);
+        final I newI = newV == null ? null : indexKey.apply(newV);
+        final P newP = newI == null ? null : projection.apply(newV);
+        if (Objects.deepEquals(oldI, newI) && (newI == null || Objects.deepEquals(projection.apply(oldV), newP))) return;
+
+        if (oldI != null && !Objects.deepEquals(oldI, newI)) database.remove(tx, new Pair<>(oldI, k));
+        if (newI != null) database.put(tx, new Pair<>(newI, k), newP);
+    }
+}
@@ -1,6 +1,5 @@
 package uk.co.omegaprime.thunder;
 
-import com.sun.webkit.SharedBuffer;
 import sun.misc.Unsafe;
 import uk.co.omegaprime.thunder.schema.Schema;
 
@@ -8,17 +7,27 @@ import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
 import static uk.co.omegaprime.thunder.Bits.unsafe;
 
 // XXX: type specialisation for true 0-allocation? But we might hope that escape analysis would save us because our boxes are intermediate only.
-public class Cursor<K, V> implements Cursorlike<K,V> {
+public class Cursor<K, V> implements Cursorlike<K,V>, AutoCloseable {
     private final Database<K, V> database;
     private final UntypedCursor utc;
+    private ValueView valueView;
+    // Which handout of a recycled UntypedCursor we own, so that closing us twice can't close its next owner's cursor
+    private final long handout;
 
     public Cursor(Database<K, V> database, UntypedCursor utc) {
         this.database = database;
         this.utc = utc;
+        this.handout = utc.handouts;
     }
 
+    UntypedCursor getUntypedCursor() { return utc; }
+
+    // Not cached: under MDB_NOTLS a read transaction and its cursors may move between threads, and the thread that
+    // created us may carry on using its own scratch space through the Database meanwhile
+    Database.Scratch<K, V> scratch() { return database.scratch(); }
+
     boolean keyStartsWith(K k) {
-        return utc.keyStartsWith(database.kBuffer, k);
+        return utc.keyStartsWith(scratch().kBuffer, k);
     }
 
     @Override public boolean moveFirst()    { return utc.moveFirst(); }
@@ -27,30 +36,58 @@ public class Cursor<K, V> implements Cursorlike<K,V> {
     @Override public boolean movePrevious() { return utc.movePrevious(); }
     @Override public boolean isPositioned() { return utc.isPositioned(); }
 
-    @Override public boolean moveTo(K k)      { return utc.moveTo(database.kBuffer, k); }
-    @Override public boolean moveCeiling(K k) { return utc.moveCeiling(database.kBuffer, k); }
-    @Override public boolean moveFloor(K k)   { return utc.moveFloor(database.kBuffer, k); }
+    @Override public boolean moveTo(K k)      { return utc.moveTo(scratch().kBuffer, k); }
+    @Override public boolean moveCeiling(K k) { return utc.moveCeiling(scratch().kBuffer, k); }
+    @Override public boolean moveFloor(K k)   { return utc.moveFloor(scratch().kBuffer, k); }
 
     @Override
-    public K getKey() { return utc.getKey(database.kBuffer); }
+    public K getKey() { return utc.getKey(scratch().kBuffer); }
 
     @Override
-    public V getValue() { return utc.getValue(database.vBuffer); }
+    public V getValue() { return utc.getValue(scratch().vBuffer); }
+
+    // Like getValue, but without decoding (or allocating): see ValueView for how long the result stays usable
+    public ValueView getValueView() {
+        if (valueView == null) valueView = new ValueView();
+        utc.getValueView(valueView);
+        return valueView;
+    }
 
     @Override
-    public void put(V v) { utc.put(database.kBuffer, database.vBuffer, v); }
+    public void put(V v) {
+        final Database.Scratch<K, V> scratch = scratch();
+        utc.put(scratch.kBuffer, scratch.vBuffer, v);
+    }
 
     @Override
-    public void put(K k, V v) { utc.put(database.kBuffer, database.vBuffer, k, v); }
+    public void put(K k, V v) {
+        final Database.Scratch<K, V> scratch = scratch();
+        utc.put(scratch.kBuffer, scratch.vBuffer, k, v);
+    }
 
     @Override
-    public V putIfAbsent(K k, V v) { return utc.putIfAbsent(database.kBuffer, database.vBuffer, k, v); }
+    public V putIfAbsent(K k, V v) {
+        final Database.Scratch<K, V> scratch = scratch();
+        return utc.putIfAbsent(scratch.kBuffer, scratch.vBuffer, k, v);
+    }
 
     @Override
     public void delete() { utc.delete(); }
 
+    // Moves this cursor into a new read-only transaction, so that it can be reused rather than closed and reopened
+    public void renew(Transaction tx) {
+        utc.renew(tx);
+    }
+
+    public void close() { utc.close(handout); }
+
+    // The view shares our UntypedCursor, so like us it is only used by one thread at a time. It gets scratch space of its
+    // own rather than a thread-local one, which would stay reachable from the thread long after the view was dropped.
+    // The view's getDatabase() shares that scratch space, so it should only be used from the view's thread too.
     public <K2, V2> Cursor<K2, V2> reinterpretView(Schema<K2> k2Schema, Schema<V2> v2Schema) {
-        return new Cursor<>(new Database<>(database.getUntypedDatabase(), k2Schema, v2Schema), utc);
+        final UntypedDatabase udb = database.getUntypedDatabase();
+        final int maxRetainedBytes = udb.db.maxRetainedScratchBytes;
+        return new Cursor<>(new Database<>(udb, new BufferedSchema<>(k2Schema, maxRetainedBytes), new BufferedSchema<>(v2Schema, maxRetainedBytes)), utc);
     }
 
     @Override public Schema<K> getKeySchema()   { return database.getKeySchema(); }
@@ -17,9 +17,20 @@ public class CursorWithDuplicateKeys<K, V> extends Cursor<K, V> {
     public boolean moveFirstOfNextKey()    { return utc.moveFirstOfNextKey(); }
     public boolean moveLastOfPreviousKey() { return utc.moveLastOfPreviousKey(); }
 
-    public boolean moveTo(K k, V v)           { return utc.moveTo(database.kBuffer, database.vBuffer, k, v); }
-    public boolean moveCeilingOfKey(K k, V v) { return utc.moveCeilingOfKey(database.kBuffer, database.vBuffer, k, v); }
-    public boolean moveFloorOfKey(K k, V v)   { return utc.moveFloorOfKey(database.kBuffer, database.vBuffer, k, v); }
+    public boolean moveTo(K k, V v) {
+        final Database.Scratch<K, V> scratch = scratch();
+        return utc.moveTo(scratch.kBuffer, scratch.vBuffer, k, v);
+    }
+
+    public boolean moveCeilingOfKey(K k, V v) {
+        final Database.Scratch<K, V> scratch = scratch();
+        return utc.moveCeilingOfKey(scratch.kBuffer, scratch.vBuffer, k, v);
+    }
+
+    public boolean moveFloorOfKey(K k, V v) {
+        final Database.Scratch<K, V> scratch = scratch();
+        return utc.moveFloorOfKey(scratch.kBuffer, scratch.vBuffer, k, v);
+    }
 
     public long keyItemCount() { return utc.keyItemCount(); }
 
@@ -4,6 +4,12 @@ import sun.misc.Unsafe;
 import uk.co.omegaprime.thunder.schema.Schema;
 
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
 import static uk.co.omegaprime.thunder.Bits.unsafe;
@@ -12,58 +18,203 @@ public class Database<K, V> {
     private final UntypedDatabase udb;
 
     // Used for temporary scratch storage within the context of a single method only, basically
-    // just to save some calls to the allocator. The sole reason why Database is not thread safe.
-    final BufferedSchema<K> kBuffer;
-    final BufferedSchema<V> vBuffer;
+    // just to save some calls to the allocator. Each thread gets its own, so one Database can be
+    // shared by any number of threads (each using its own Transactions, as LMDB requires). They
+    // belong to the Environment (see ScratchBuffers), so dropping a Database doesn't leave them pinned.
+    static final class Scratch<K, V> {
+        final BufferedSchema<K> kBuffer;
+        final BufferedSchema<V> vBuffer;
+        private ValueView valueView;
+
+        Scratch(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer) {
+            this.kBuffer = kBuffer;
+            this.vBuffer = vBuffer;
+        }
+
+        ValueView valueView() {
+            if (valueView == null) valueView = new ValueView();
+            return valueView;
+        }
+
+        void close() {
+            kBuffer.close();
+            vBuffer.close();
+        }
+    }
+
+    private final Schema<K> kSchema;
+    private final Schema<V> vSchema;
+    // Exactly one of these is non-null
+    private final ScratchBuffers scratchBuffers;
+    private final Scratch<K, V> fixedScratch;
+    // Non-null while cacheValues is in effect
+    private volatile DecodedValueCache<V> valueCache;
 
     public Database(UntypedDatabase udb, Schema<K> kSchema, Schema<V> vSchema) {
-        this(udb, new BufferedSchema<>(kSchema), new BufferedSchema<>(vSchema));
+        this.udb = udb;
+        this.kSchema = kSchema;
+        this.vSchema = vSchema;
+        this.scratchBuffers = udb.db.scratchBuffers;
+        this.fixedScratch = null;
     }
 
+    // For short-lived Databases used internally by a single thread, which can just borrow the caller's buffers
     Database(UntypedDatabase udb, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer) {
         this.udb = udb;
-        this.kBuffer = kBuffer;
-        this.vBuffer = vBuffer;
+        this.kSchema = kBuffer.getSchema();
+        this.vSchema = vBuffer.getSchema();
+        this.scratchBuffers = null;
+        this.fixedScratch = new Scratch<>(kBuffer, vBuffer);
     }
 
+    Scratch<K, V> scratch() {
+        return fixedScratch != null ? fixedScratch : scratchBuffers.get(this);
+    }
+
+    BufferedSchema<K> kBuffer() { return scratch().kBuffer; }
+    BufferedSchema<V> vBuffer() { return scratch().vBuffer; }
+
     public UntypedDatabase getUntypedDatabase() { return udb; }
 
-    public Schema<K> getKeySchema()   { return kBuffer.getSchema(); }
-    public Schema<V> getValueSchema() { return vBuffer.getSchema(); }
+    public Schema<K> getKeySchema()   { return kSchema; }
+    public Schema<V> getValueSchema() { return vSchema; }
 
     public Cursor<K, V> createCursor(Transaction tx) {
         return new Cursor<>(this, udb.createCursor(tx));
     }
 
     public void put(Transaction tx, K k, V v) {
-        udb.put(tx, kBuffer, vBuffer, k, v);
+        final Scratch<K, V> scratch = scratch();
+        udb.put(tx, scratch.kBuffer, scratch.vBuffer, k, v);
+    }
+
+    // Semantically equivalent to calling put on each pair in turn, but serializes them into an off-heap
+    // arena and hands them to LMDB in large batches, so we don't pay for a JNI transition per item.
+    public void putAll(Transaction tx, Iterable<Pair<K, V>> kvs) {
+        try (PutBatch<K, V> batch = udb.putBatch(tx, kBuffer(), vBuffer())) {
+            for (Pair<K, V> kv : kvs) {
+                batch.add(kv.k, kv.v);
+            }
+            batch.flush();
+        }
+    }
+
+    public void putAll(Transaction tx, K[] ks, V[] vs) {
+        if (ks.length != vs.length) {
+            throw new IllegalArgumentException("Got " + ks.length + " keys but " + vs.length + " values");
+        }
+
+        try (PutBatch<K, V> batch = udb.putBatch(tx, kBuffer(), vBuffer())) {
+            for (int i = 0; i < ks.length; i++) {
+                batch.add(ks[i], vs[i]);
+            }
+            batch.flush();
+        }
     }
 
     public V putIfAbsent(Transaction tx, K k, V v) {
-        return udb.putIfAbsent(tx, kBuffer, vBuffer, k, v);
+        final Scratch<K, V> scratch = scratch();
+        return udb.putIfAbsent(tx, scratch.kBuffer, scratch.vBuffer, k, v);
     }
 
     public boolean remove(Transaction tx, K k) {
-        return udb.remove(tx, kBuffer, k);
+        return udb.remove(tx, kBuffer(), k);
     }
 
     public V get(Transaction tx, K k) {
-        return udb.get(tx, kBuffer, vBuffer, k);
+        final Scratch<K, V> scratch = scratch();
+        final DecodedValueCache<V> valueCache = this.valueCache;
+        return valueCache == null ? udb.get(tx, scratch.kBuffer, scratch.vBuffer, k)
+                                  : valueCache.get(tx, scratch.kBuffer, scratch.vBuffer, k);
+    }
+
+    // Makes get share decoded values between calls, up to maxEntries of them: see DecodedValueCache for the caveats.
+    // Like Environment.write, must be called from a thread with no open transaction.
+    public DecodedValueCache<V> cacheValues(int maxEntries) {
+        final DecodedValueCache<V> valueCache = DecodedValueCache.attach(this, maxEntries);
+        this.valueCache = valueCache;
+        return valueCache;
+    }
+
+    void detachValueCache(DecodedValueCache<V> valueCache) {
+        if (this.valueCache == valueCache) {
+            this.valueCache = null;
+        }
+    }
+
+    // Like get, but without decoding (or allocating): returns null if the key is absent. See ValueView for how long the result stays usable.
+    public ValueView getView(Transaction tx, K k) {
+        final Scratch<K, V> scratch = scratch();
+        final ValueView valueView = scratch.valueView();
+        return udb.getView(tx, scratch.kBuffer, scratch.vBuffer, k, valueView) ? valueView : null;
+    }
+
+    // Looks up many keys at once, returning their values in the same order as the keys (null if absent).
+    // The keys are sorted internally so that the whole batch can be looked up by one cursor in one native call.
+    public List<V> getAll(Transaction tx, K[] ks) {
+        final Scratch<K, V> scratch = scratch();
+        return udb.getAll(tx, scratch.kBuffer, scratch.vBuffer, ks);
     }
 
     public boolean contains(Transaction tx, K k) {
-        return udb.contains(tx, kBuffer, vBuffer, k);
+        final Scratch<K, V> scratch = scratch();
+        return udb.contains(tx, scratch.kBuffer, scratch.vBuffer, k);
     }
 
     public Iterator<K> keys(Transaction tx) {
-        return udb.keys(tx, kBuffer);
+        return udb.keys(tx, kBuffer());
     }
 
     public Iterator<V> values(Transaction tx) {
-        return udb.values(tx, vBuffer);
+        return udb.values(tx, vBuffer());
     }
 
     public Iterator<Pair<K, V>> keyValues(Transaction tx) {
-        return udb.keyValues(tx, kBuffer, vBuffer);
+        final Scratch<K, V> scratch = scratch();
+        return udb.keyValues(tx, scratch.kBuffer, scratch.vBuffer);
+    }
+
+    // The items with keys between from and to, in the given direction. Either bound may be null, meaning unbounded. The
+    // cursor is closed once the iterator runs out, so only close it yourself if you might stop early.
+    public RangeIterator<K, V> range(Transaction tx, K from, boolean fromInclusive, K to, boolean toInclusive, Direction direction) {
+        final Scratch<K, V> scratch = scratch();
+        return udb.range(tx, scratch.kBuffer, scratch.vBuffer, from, fromInclusive, to, toInclusive, direction);
+    }
+
+    // As range, but as a stream: closing it closes the cursor if it didn't run to the end
+    public Stream<Pair<K, V>> rangeStream(Transaction tx, K from, boolean fromInclusive, K to, boolean toInclusive, Direction direction) {
+        final RangeIterator<K, V> iterator = range(tx, from, fromInclusive, to, toInclusive, direction);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                            .onClose(iterator::close);
+    }
+
+    // The items in key order, read in the given transaction
+    public Stream<Pair<K, V>> stream(Transaction tx) {
+        return StreamSupport.stream(KeyRangeSpliterator.sequential(this, tx), false);
+    }
+
+    // The items in key order, with the key range split up so that it can be traversed by many threads at once. Every
+    // piece sees the snapshot that was current when the traversal began (i.e. when the terminal operation started).
+    //
+    // With MDB_NOTLS, the pieces share transactions from the supplier on that snapshot (at most one per piece still
+    // to run, begun as they are needed), so writes may carry on committing meanwhile. They are closed once every piece
+    // has run to the end. If the terminal operation may stop early (findFirst, anyMatch, limit...) the stream must be
+    // closed, e.g. with try-with-resources: until then the snapshot keeps LMDB from reusing the pages freed since, and
+    // the map can't be grown.
+    //
+    // Without MDB_NOTLS a thread can't use a transaction begun by another, so every piece reads in its own transaction
+    // from the supplier instead, and a write that commits after the traversal begins makes it fail with a
+    // ConcurrentModificationException. Open the Environment with noTLS if the traversal must run alongside writes.
+    // Without MDB_NOTLS the calling thread must also not already have a read transaction open.
+    public Stream<Pair<K, V>> parallelStream(ReadTransactionSupplier transactions) {
+        final AtomicReference<KeyRangeSpliterator.SharedTransactions> shared = new AtomicReference<>();
+        return StreamSupport.stream(() -> KeyRangeSpliterator.parallel(this, transactions, shared::set),
+                                    Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE, true)
+                            .onClose(() -> {
+                                final KeyRangeSpliterator.SharedTransactions transactionsToClose = shared.get();
+                                if (transactionsToClose != null) {
+                                    transactionsToClose.close();
+                                }
+                            });
     }
 }
@@ -3,6 +3,7 @@ package uk.co.omegaprime.thunder;
 import uk.co.omegaprime.thunder.schema.Schema;
 
 import java.util.Iterator;
+import java.util.List;
 
 import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
 
@@ -26,11 +27,19 @@ public class DatabaseWithDuplicateKeys<K, V> extends Database<K, V> {
         return new CursorWithDuplicateKeys<>(this, udb.createCursor(tx));
     }
 
+    // Like getAll, but returns every value for each key, in the same order as the keys (an empty list if absent)
+    public List<List<V>> getAllDuplicates(Transaction tx, K[] ks) {
+        final Scratch<K, V> scratch = scratch();
+        return udb.getAllDuplicates(tx, scratch.kBuffer, scratch.vBuffer, ks);
+    }
+
     public boolean remove(Transaction tx, K k, V v) {
-        return udb.remove(tx, kBuffer, vBuffer, k, v);
+        final Scratch<K, V> scratch = scratch();
+        return udb.remove(tx, scratch.kBuffer, scratch.vBuffer, k, v);
     }
 
     public boolean contains(Transaction tx, K k, V v) {
-        return udb.contains(tx, kBuffer, vBuffer,  k, v);
+        final Scratch<K, V> scratch = scratch();
+        return udb.contains(tx, scratch.kBuffer, scratch.vBuffer, k, v);
     }
 }
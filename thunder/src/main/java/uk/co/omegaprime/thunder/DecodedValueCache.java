@@ -0,0 +1,206 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
+import static uk.co.omegaprime.thunder.Bits.unsafe;
+
+// A size-bounded, least-recently-used cache of the decoded values of one Database, keyed by encoded key, so that hot keys
+// aren't decoded afresh (and their values allocated afresh) by every get. Cached values are shared between threads and
+// transactions, so they must be treated as immutable.
+//
+// Each value is tagged with a snapshot it is known to have been current in, and is only used by transactions reading
+// that snapshot or a later one. To know that it is still current in the later one, every write to the database from
+// this Environment stamps the key's stripe (one of many, chosen by a hash of the key) with the ID that its transaction
+// will commit as: a cached value is only used if its stripe hasn't been written since it was cached. This is why the
+// cache must be attached before any writes are made, and why writes from other processes must not be made at all.
+//
+// Only get consults the cache. Reads in transactions that began before the cache was attached bypass it.
+public final class DecodedValueCache<V> implements AutoCloseable {
+    private static final int SEGMENTS = 16;
+
+    private final Database<?, V> database;
+    private final long createdAt;
+    private final List<Segment<V>> segments;
+    // The newest transaction ID that has written to a key hashing to each stripe
+    private final AtomicLongArray stripes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Key {
+        final byte[] bytes;
+        final int hash;
+
+        Key(byte[] bytes, int hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Key && Arrays.equals(bytes, ((Key)that).bytes);
+        }
+    }
+
+    private static final class CachedValue<V> {
+        final V value;
+        // The value was current in this snapshot
+        final long snapshot;
+
+        CachedValue(V value, long snapshot) {
+            this.value = value;
+            this.snapshot = snapshot;
+        }
+    }
+
+    // Guarded by its own monitor
+    private static final class Segment<V> extends LinkedHashMap<Key, CachedValue<V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private final LongAdder evictions;
+
+        Segment(int maxEntries, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedValue<V>> eldest) {
+            if (size() <= maxEntries) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    private DecodedValueCache(Database<?, V> database, int maxEntries, long createdAt) {
+        this.database = database;
+        this.createdAt = createdAt;
+        this.segments = new ArrayList<>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new Segment<>((maxEntries + SEGMENTS - 1) / SEGMENTS, evictions));
+        }
+        // Enough stripes that unrelated writes rarely knock out a cached value
+        this.stripes = new AtomicLongArray(Math.max(64, Integer.highestOneBit(Math.max(1, maxEntries - 1)) << 1));
+    }
+
+    // Like Environment.write, must be called from a thread with no open transaction
+    static <V> DecodedValueCache<V> attach(Database<?, V> database, int maxEntries) {
+        if (database instanceof DatabaseWithDuplicateKeys) {
+            throw new IllegalArgumentException("Only databases with unique keys have a single value to cache per key");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must be able to hold at least one entry");
+        }
+
+        final UntypedDatabase udb = database.getUntypedDatabase();
+        final Environment env = udb.db;
+        // Holding the write lock means that every write to the database after createdAt will be seen by keyWritten
+        return env.write(tx -> {
+            final DecodedValueCache<V> cache = new DecodedValueCache<>(database, maxEntries, env.lastCommittedTransactionId());
+            env.attachValueCache(udb.dbi, cache);
+            return cache;
+        });
+    }
+
+    <K> V get(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k) {
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+
+        final long kBufferPtrNow = kBuffer.allocate(kSz);
+        kBuffer.write(kBufferPtrNow, kSz, k);
+        try {
+            final long snapshot = tx.snapshotAtLeast;
+            if (snapshot < createdAt) {
+                misses.increment();
+                return database.getUntypedDatabase().get(tx, kBufferPtrNow, vBuffer);
+            }
+
+            final long kPtr = unsafe.getAddress(kBufferPtrNow + Unsafe.ADDRESS_SIZE), kLength = unsafe.getAddress(kBufferPtrNow);
+            final long hash = Bits.hashBytes(kPtr, kLength);
+            final byte[] bytes = new byte[(int)kLength];
+            unsafe.copyMemory(null, kPtr, bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, kLength);
+            final Key key = new Key(bytes, (int)(hash >>> 32));
+            final Segment<V> segment = segments.get((int)hash & (SEGMENTS - 1));
+            final long stamp = stripes.get(stripe(hash));
+
+            final CachedValue<V> entry;
+            synchronized (segment) {
+                entry = segment.get(key);
+            }
+            if (entry != null && entry.snapshot <= snapshot && stamp <= entry.snapshot) {
+                hits.increment();
+                return entry.value;
+            }
+
+            misses.increment();
+            final V v = database.getUntypedDatabase().get(tx, kBufferPtrNow, vBuffer);
+            // We may only read a lower bound on our snapshot, but that's fine: if the value changed between the bound and
+            // the snapshot we actually read, that write stamped the stripe after the bound, and the entry will never be used
+            if (v != null && stamp <= snapshot) {
+                synchronized (segment) {
+                    final CachedValue<V> existing = segment.get(key);
+                    if (existing == null || existing.snapshot <= snapshot) {
+                        segment.put(key, new CachedValue<>(v, snapshot));
+                    }
+                }
+            }
+            return v;
+        } finally {
+            kBuffer.free(kBufferPtrNow);
+        }
+    }
+
+    // Called (via UntypedDatabase) before any write to the key commits. Stale entries are left for the LRU to evict.
+    void keyWritten(Transaction tx, long kPtr, long kSz) {
+        final int stripe = stripe(Bits.hashBytes(kPtr, kSz));
+        final long writtenAt = tx.snapshotAtLeast + 1;
+        long stamp;
+        do {
+            stamp = stripes.get(stripe);
+        } while (stamp < writtenAt && !stripes.compareAndSet(stripe, stamp, writtenAt));
+    }
+
+    private int stripe(long hash) {
+        return (int)(hash >>> 16) & (stripes.length() - 1);
+    }
+
+    public long hits()      { return hits.sum(); }
+    public long misses()    { return misses.sum(); }
+    public long evictions() { return evictions.sum(); }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    // Detaches the cache: the Database goes back to decoding every value it reads
+    @Override
+    public void close() {
+        database.detachValueCache(this);
+        database.getUntypedDatabase().db.detachValueCache(database.getUntypedDatabase().dbi, this);
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+}
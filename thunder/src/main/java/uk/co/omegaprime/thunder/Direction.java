@@ -0,0 +1,6 @@
+package uk.co.omegaprime.thunder;
+
+// The order in which a range scan visits keys
+public enum Direction {
+    ASCENDING, DESCENDING
+}
@@ -3,9 +3,46 @@ package uk.co.omegaprime.thunder;
 import uk.co.omegaprime.thunder.schema.Schema;
 
 import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 public class Environment implements AutoCloseable {
     final long env;
+    // Closes the environment if it is garbage collected without being closed. Nothing else can still be using it
+    // by then, since Transactions, Databases and the WriteCoordinator's thread all refer back to the Environment.
+    private final ResourceCleaner cleaner;
+    private final ReadTransactionPool readTransactionPool;
+    // Whether read-only transactions may be handed from thread to thread, and a thread may have several at once
+    final boolean noTLS;
+    private final int writeBatchSize;
+    private final long writeBatchDelayNanos;
+    private WriteCoordinator writeCoordinator;
+    private final MapSizeGrowthPolicy mapSizeGrowthPolicy;
+    private final long mapResizeTimeoutNanos;
+    final int maxRetainedScratchBytes;
+    // Each thread's scratch space for encoding the keys and values of our Databases
+    final ScratchBuffers scratchBuffers;
+
+    // mdb_env_set_mapsize may only be called when this process has no active transactions, so we count them. Every
+    // transaction begins and ends here (including every renewal of a pooled read), so the counts are LongAdders and the
+    // common case takes no lock. While resizing is set no new write transactions may begin, so that a steady stream of
+    // them can't starve a resize. Readers are never held up by that: if any are open the resize just fails, and they
+    // only wait while settingMapSize is set, which is for the duration of the mdb_env_set_mapsize call itself.
+    private final Object resizeLock = new Object();
+    private final LongAdder activeReads = new LongAdder();
+    private final LongAdder activeWrites = new LongAdder();
+    private volatile boolean resizing;
+    private volatile boolean settingMapSize;
+    // Cursors that UntypedDatabase keeps for renewal, which we must free before closing the environment
+    final IdleCursors idleCursors = new IdleCursors();
+    // Attached BloomFilters and DecodedValueCaches by dbi. Until the first is attached, writes, lookups and transactions
+    // skip the bookkeeping entirely.
+    private final ConcurrentHashMap<Long, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, DecodedValueCache<?>> valueCaches = new ConcurrentHashMap<>();
+    private volatile boolean anyBloomFilters;
+    private volatile boolean anyValueCaches;
 
     public Environment(File file) {
         this(file, new EnvironmentOptions());
@@ -14,13 +51,40 @@ public class Environment implements AutoCloseable {
     public Environment(File file, EnvironmentOptions options) {
         final long[] envPtr = new long[1];
         Util.checkErrorCode(JNI.mdb_env_create(envPtr));
-        env = envPtr[0];
+        final long env = envPtr[0];
+        this.env = env;
+        this.cleaner = ResourceCleaner.register(this, ResourceMetrics.Kind.ENVIRONMENT, () -> JNI.mdb_env_close(env));
+
+        try {
+            Util.checkErrorCode(JNI.mdb_env_set_maxdbs(env, options.maxDatabases));
+            Util.checkErrorCode(JNI.mdb_env_set_mapsize(env, options.mapSizeBytes));
+            Util.checkErrorCode(JNI.mdb_env_set_maxreaders(env, options.maxReaders));
+
+            Util.checkErrorCode(JNI.mdb_env_open(env, file.getAbsolutePath(), options.flags, options.createPermissions));
+        } catch (RuntimeException e) {
+            cleaner.close();
+            throw e;
+        }
 
-        Util.checkErrorCode(JNI.mdb_env_set_maxdbs(env, options.maxDatabases));
-        Util.checkErrorCode(JNI.mdb_env_set_mapsize(env, options.mapSizeBytes));
-        Util.checkErrorCode(JNI.mdb_env_set_maxreaders(env, options.maxReaders));
+        noTLS = (options.flags & JNI.MDB_NOTLS) != 0;
+        readTransactionPool = new ReadTransactionPool(this, noTLS);
+        writeBatchSize = options.writeBatchSize;
+        writeBatchDelayNanos = options.writeBatchDelayNanos;
+        mapSizeGrowthPolicy = options.mapSizeGrowthPolicy;
+        mapResizeTimeoutNanos = options.mapResizeTimeoutNanos;
+        maxRetainedScratchBytes = options.maxRetainedScratchBytes;
+        scratchBuffers = new ScratchBuffers(maxRetainedScratchBytes);
+    }
+
+    // Read-only transactions from this pool are recycled rather than begun and aborted afresh every time
+    public ReadTransactionPool readTransactionPool() { return readTransactionPool; }
 
-        Util.checkErrorCode(JNI.mdb_env_open(env, file.getAbsolutePath(), options.flags, options.createPermissions));
+    // Lets many threads share write transactions (and hence fsyncs). The writer thread is only started on first use.
+    public synchronized WriteCoordinator writeCoordinator() {
+        if (writeCoordinator == null) {
+            writeCoordinator = new WriteCoordinator(this, writeBatchSize, writeBatchDelayNanos);
+        }
+        return writeCoordinator;
     }
 
     public void setMetaSync(boolean enabled) { Util.checkErrorCode(JNI.mdb_env_set_flags(env, JNI.MDB_NOMETASYNC, enabled ? 0 : 1)); }
@@ -29,6 +93,54 @@ public class Environment implements AutoCloseable {
 
     public void sync(boolean force) { Util.checkErrorCode(JNI.mdb_env_sync(env, force ? 1 : 0)); }
 
+    public long mapSize() {
+        final JNI.MDB_envinfo info = new JNI.MDB_envinfo();
+        Util.checkErrorCode(JNI.mdb_env_info(env, info));
+        return info.me_mapsize;
+    }
+
+    // The ID of the most recently committed write transaction. A read transaction begun after reading this sees exactly
+    // that snapshot if the ID is still the same once the transaction has begun.
+    long lastCommittedTransactionId() {
+        final JNI.MDB_envinfo info = new JNI.MDB_envinfo();
+        Util.checkErrorCode(JNI.mdb_env_info(env, info));
+        return info.me_last_txnid;
+    }
+
+    void attachBloomFilter(long dbi, BloomFilter filter) {
+        bloomFilters.put(dbi, filter);
+        anyBloomFilters = true;
+    }
+
+    void detachBloomFilter(long dbi, BloomFilter filter) {
+        bloomFilters.remove(dbi, filter);
+    }
+
+    BloomFilter bloomFilter(long dbi) {
+        return anyBloomFilters ? bloomFilters.get(dbi) : null;
+    }
+
+    void attachValueCache(long dbi, DecodedValueCache<?> cache) {
+        if (valueCaches.putIfAbsent(dbi, cache) != null) {
+            throw new IllegalStateException("The database already has a value cache");
+        }
+        anyValueCaches = true;
+    }
+
+    void detachValueCache(long dbi, DecodedValueCache<?> cache) {
+        valueCaches.remove(dbi, cache);
+    }
+
+    DecodedValueCache<?> valueCache(long dbi) {
+        return anyValueCaches ? valueCaches.get(dbi) : null;
+    }
+
+    // A lower bound on the snapshot of a transaction about to begin, which BloomFilters and DecodedValueCaches use to
+    // tell which of what they know applies to it
+    long snapshotLowerBound() {
+        return anyBloomFilters || anyValueCaches ? lastCommittedTransactionId() : 0;
+    }
+
     public <K, V> Database<K, V> database(Transaction tx, String name, Schema<K> kSchema, Schema<V> vSchema) {
         return database(tx, name, kSchema, vSchema, false);
     }
@@ -58,12 +170,174 @@ public class Environment implements AutoCloseable {
     //   thread, and a thread may only have a single transaction at a time.
     //   If #MDB_NOTLS is in use, this does not apply to read-only transactions.
     public Transaction transaction(boolean isReadOnly) {
-        final long[] txnPtr = new long[1];
-        Util.checkErrorCode(JNI.mdb_txn_begin(env, 0, isReadOnly ? JNI.MDB_RDONLY : 0, txnPtr));
-        return new Transaction(txnPtr[0]);
+        final long snapshotLowerBound = isReadOnly ? snapshotLowerBound() : 0;
+        final Transaction tx = new Transaction(this, beginTransaction(isReadOnly ? JNI.MDB_RDONLY : 0), isReadOnly);
+        // Nothing else can commit while we hold the write lock, so a write transaction can learn its snapshot exactly
+        tx.snapshotAtLeast = isReadOnly ? snapshotLowerBound : snapshotLowerBound();
+        return tx;
+    }
+
+    // Runs the function in a write transaction and commits it. If the map fills up, the transaction is aborted, the map
+    // grown as the MapSizeGrowthPolicy dictates, and the function run again, so it should have no side effects other than
+    // on the transaction it is given. The map can't be grown while any read transaction in this process is open (the
+    // calling thread's included), in which case we throw the MDB_MAP_FULL error straight away.
+    public <T> T write(Function<Transaction, T> function) {
+        while (true) {
+            final long mapSize = mapSize();
+            try (final Transaction tx = transaction(false)) {
+                final T result = function.apply(tx);
+                tx.commit();
+                return result;
+            } catch (LMDBException e) {
+                if (e.getErrorCode() != LMDBException.MAP_FULL || !growMapSize(mapSize)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Begins a native transaction, which counts as active until transactionFinished is called
+    long beginTransaction(int flags) {
+        final boolean isReadOnly = (flags & JNI.MDB_RDONLY) != 0;
+        while (true) {
+            transactionStarting(isReadOnly);
+            final long[] txnPtr = new long[1];
+            final int rc = JNI.mdb_txn_begin(env, 0, flags, txnPtr);
+            if (rc == 0) {
+                return txnPtr[0];
+            }
+
+            transactionFinished(isReadOnly);
+            if (rc == LMDBException.MAP_RESIZED) {
+                // Another process has grown the map: adopt its new size and try again. We can't begin any transaction
+                // until we have, so unlike growing the map ourselves this is worth waiting for readers to finish.
+                if (!resizeMap(0, true)) {
+                    throw new LMDBException("Timed out waiting for other transactions to finish so that the map could be resized", rc);
+                }
+            } else {
+                Util.checkErrorCode(rc);
+            }
+        }
+    }
+
+    void transactionStarting(boolean isReadOnly) {
+        final LongAdder active = isReadOnly ? activeReads : activeWrites;
+        while (true) {
+            // Count ourselves before looking at the flags, and resizeMap sets them before looking at the counts, so
+            // at least one of us sees the other
+            active.increment();
+            if (!settingMapSize && (isReadOnly || !resizing)) {
+                return;
+            }
+
+            active.decrement();
+            awaitResize(isReadOnly);
+        }
+    }
+
+    private void awaitResize(boolean isReadOnly) {
+        synchronized (resizeLock) {
+            // We may have been what the resize was waiting for
+            resizeLock.notifyAll();
+            boolean interrupted = false;
+            while (settingMapSize || (!isReadOnly && resizing)) {
+                try {
+                    resizeLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void transactionFinished(boolean isReadOnly) {
+        (isReadOnly ? activeReads : activeWrites).decrement();
+        if (resizing) {
+            synchronized (resizeLock) {
+                resizeLock.notifyAll();
+            }
+        }
+    }
+
+    // Grows the map after a write failed with MDB_MAP_FULL when the map was observedMapSizeBytes big. Returns false if the
+    // policy declines to grow it any further, if any read transactions are open (as they always will be if the calling
+    // thread has one), or if another write transaction is still open after the resize timeout.
+    boolean growMapSize(long observedMapSizeBytes) {
+        synchronized (resizeLock) {
+            final long currentMapSizeBytes = mapSize();
+            if (currentMapSizeBytes > observedMapSizeBytes) {
+                // Somebody else has grown the map since the write failed, so it's worth just trying again
+                return true;
+            }
+
+            // Round up to a multiple of 64KB, which is a multiple of any OS page size LMDB is likely to run on
+            final long nextMapSizeBytes = (mapSizeGrowthPolicy.nextMapSize(currentMapSizeBytes) + 0xFFFF) & ~0xFFFFL;
+            if (nextMapSizeBytes <= currentMapSizeBytes) {
+                return false;
+            }
+
+            return resizeMap(nextMapSizeBytes, false);
+        }
+    }
+
+    // Returns false without resizing if transactions are still active once the timeout has passed, or straight away if
+    // read transactions are active and we aren't to wait for them. We can't wait for ever: the transaction we are waiting
+    // for might belong to a thread that is itself waiting for our caller. New readers aren't held up while we wait, so
+    // a steady stream of them can starve us until the timeout.
+    private boolean resizeMap(long mapSizeBytes, boolean waitForReaders) {
+        synchronized (resizeLock) {
+            resizing = true;
+            boolean interrupted = false;
+            try {
+                final long deadline = System.nanoTime() + mapResizeTimeoutNanos;
+                while (true) {
+                    if (activeWrites.sum() == 0) {
+                        if (activeReads.sum() == 0) {
+                            settingMapSize = true;
+                            if (activeWrites.sum() == 0 && activeReads.sum() == 0) {
+                                Util.checkErrorCode(JNI.mdb_env_set_mapsize(env, mapSizeBytes));
+                                return true;
+                            }
+                            // Somebody began a transaction just as we looked: let them carry on and wait for them
+                            settingMapSize = false;
+                            resizeLock.notifyAll();
+                        } else if (!waitForReaders) {
+                            return false;
+                        }
+                    }
+
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(resizeLock, remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                settingMapSize = false;
+                resizing = false;
+                resizeLock.notifyAll();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 
     public void close() {
-        JNI.mdb_env_close(env);
+        synchronized (this) {
+            if (writeCoordinator != null) {
+                writeCoordinator.close();
+            }
+        }
+        readTransactionPool.close();
+        idleCursors.close();
+        cleaner.close();
     }
 }
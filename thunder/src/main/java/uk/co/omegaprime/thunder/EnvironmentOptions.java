@@ -1,16 +1,34 @@
 package uk.co.omegaprime.thunder;
 
+import java.util.concurrent.TimeUnit;
+
 public class EnvironmentOptions {
     int createPermissions = 0644;
     long mapSizeBytes = 10_485_760;
     long maxDatabases = 1;
     long maxReaders   = 126;
     int flags         = JNI.MDB_WRITEMAP;
+    int writeBatchSize        = 1024;
+    long writeBatchDelayNanos = 1_000_000;
+    MapSizeGrowthPolicy mapSizeGrowthPolicy = MapSizeGrowthPolicy.geometric(2);
+    long mapResizeTimeoutNanos = 10_000_000_000L;
+    int maxRetainedScratchBytes = BufferedSchema.DEFAULT_MAX_RETAINED_BYTES;
 
     public EnvironmentOptions createPermissions(int perms) { this.createPermissions = perms; return this; }
     public EnvironmentOptions mapSize(long bytes)          { this.mapSizeBytes = bytes; return this; }
     public EnvironmentOptions maxDatabases(long databases) { this.maxDatabases = databases; return this; }
     public EnvironmentOptions maxReaders(long readers)     { this.maxReaders = readers; return this; }
+    // How Environment.write and the WriteCoordinator grow the map when it fills up
+    public EnvironmentOptions mapSizeGrowth(MapSizeGrowthPolicy policy) { this.mapSizeGrowthPolicy = policy; return this; }
+    // How long growing the map waits for this process's other write transactions to finish before giving up on it, in
+    // which case the write that filled the map fails with MDB_MAP_FULL. Open read transactions make it give up at once.
+    public EnvironmentOptions mapResizeTimeout(long time, TimeUnit unit) { this.mapResizeTimeoutNanos = unit.toNanos(time); return this; }
+    // Limits on how many operations the WriteCoordinator commits together, and how long it holds the first of them back
+    public EnvironmentOptions writeBatchSize(int operations)            { this.writeBatchSize = operations; return this; }
+    public EnvironmentOptions writeBatchDelay(long time, TimeUnit unit) { this.writeBatchDelayNanos = unit.toNanos(time); return this; }
+    // How big each thread's scratch space for encoding a database's keys and values may stay once it has grown to
+    // fit a big one. Scratch space beyond this is given back once it stops being used.
+    public EnvironmentOptions maxRetainedScratch(int bytes)             { this.maxRetainedScratchBytes = bytes; return this; }
 
     private EnvironmentOptions flag(int flag, boolean set) { this.flags = set ? flags | flag : flags & ~flag; return this; }
     public EnvironmentOptions writeMap(boolean set)       { return flag(JNI.MDB_WRITEMAP,   set); }
@@ -4,12 +4,30 @@ import uk.co.omegaprime.thunder.schema.Schema;
 
 import java.util.function.BiFunction;
 
+// Only shows the items that match the predicate. A RawPredicate is tested against the encoded key and value first, so
+// rows it rejects are never decoded; the BiFunction predicate, if any, then sees the decoded ones that are left.
 public class FilteredView<K, V> implements Cursorlike<K, V> {
     private final Cursorlike<K, V> cursor;
+    // Both of these may be null, but not both at once. The raw predicate needs direct access to the underlying cursor.
+    private final UntypedCursor utc;
+    private final RawPredicate rawPredicate;
     private final BiFunction<? super K, ? super V, Boolean> predicate;
 
     public FilteredView(Cursorlike<K, V> cursor, BiFunction<? super K, ? super V, Boolean> predicate) {
         this.cursor = cursor;
+        this.utc = null;
+        this.rawPredicate = null;
+        this.predicate = predicate;
+    }
+
+    public FilteredView(Cursor<K, V> cursor, RawPredicate rawPredicate) {
+        this(cursor, rawPredicate, null);
+    }
+
+    public FilteredView(Cursor<K, V> cursor, RawPredicate rawPredicate, BiFunction<? super K, ? super V, Boolean> predicate) {
+        this.cursor = cursor;
+        this.utc = cursor.getUntypedCursor();
+        this.rawPredicate = rawPredicate;
         this.predicate = predicate;
     }
 
@@ -30,7 +48,8 @@ public class FilteredView<K, V> implements Cursorlike<K, V> {
     }
 
     private boolean matches() {
-        return predicate.apply(getKey(), getValue());
+        return (rawPredicate == null || utc.test(rawPredicate)) &&
+               (predicate == null || predicate.apply(getKey(), getValue()));
     }
 
     @Override
@@ -0,0 +1,132 @@
+package uk.co.omegaprime.thunder;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// The idle read-only cursors of one Environment: at most one per thread per database, kept so that createCursor can
+// just mdb_cursor_renew one rather than going through mdb_cursor_open and allocating a fresh bufferPtr. This takes both
+// out of the hot path for code that opens a short-lived cursor in every read transaction.
+//
+// They are indexed by dbi rather than belonging to an UntypedDatabase, so that code which opens its Databases afresh
+// (e.g. once per request) keeps reusing the same cursors rather than parking ever more of them. A thread's cursors are
+// closed once the GC notices that the thread has gone away, or when the Environment is closed, whichever comes first.
+final class IdleCursors {
+    // Belongs to one thread, and is only ever touched by it, except when it is released
+    private static final class Cursors implements Runnable {
+        private final IdleCursors owner;
+        UntypedCursor[] byDbi = new UntypedCursor[8];
+
+        Cursors(IdleCursors owner) {
+            this.owner = owner;
+        }
+
+        // Run by the ResourceCleaner once the thread's Slot is unreachable
+        @Override
+        public void run() {
+            synchronized (owner.lock) {
+                // Otherwise close() has already dealt with us, and the environment may no longer exist
+                if (owner.closed) return;
+                closeAll();
+                owner.live.remove(this);
+            }
+        }
+
+        void closeAll() {
+            for (UntypedCursor cursor : byDbi) {
+                if (cursor != null) {
+                    cursor.closeNow();
+                }
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (UntypedCursor cursor : byDbi) {
+                if (cursor != null) size++;
+            }
+            return size;
+        }
+    }
+
+    // What the thread holds on to. The Cursors are kept apart from it so that the cleaner can release them without
+    // keeping the Slot reachable.
+    private static final class Slot {
+        final Cursors cursors;
+
+        Slot(Cursors cursors) {
+            this.cursors = cursors;
+        }
+    }
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final Set<Cursors> live = new HashSet<>();
+    private boolean closed;
+
+    private final ThreadLocal<Slot> slots = ThreadLocal.withInitial(() -> {
+        final Cursors cursors = new Cursors(this);
+        synchronized (lock) {
+            live.add(cursors);
+        }
+        final Slot slot = new Slot(cursors);
+        // Not counted in ResourceMetrics: every thread that reads gets one, and the GC is expected to free them
+        ResourceCleaner.register(slot, null, cursors);
+        return slot;
+    });
+
+    // Returns true if we took ownership of the cursor, which must not already be idle
+    boolean park(UntypedCursor cursor) {
+        final Cursors cursors = slots.get().cursors;
+        final int dbi = (int)cursor.database.dbi;
+        if (dbi >= cursors.byDbi.length) {
+            final UntypedCursor[] byDbi = new UntypedCursor[Math.max(dbi + 1, cursors.byDbi.length * 2)];
+            System.arraycopy(cursors.byDbi, 0, byDbi, 0, cursors.byDbi.length);
+            cursors.byDbi = byDbi;
+        } else if (cursors.byDbi[dbi] != null) {
+            return false;
+        }
+
+        cursor.idle = true;
+        cursors.byDbi[dbi] = cursor;
+        return true;
+    }
+
+    // The cursor is still idle: the caller must renew it before use
+    UntypedCursor take(UntypedDatabase database) {
+        final UntypedCursor[] byDbi = slots.get().cursors.byDbi;
+        final int dbi = (int)database.dbi;
+        if (dbi >= byDbi.length) return null;
+
+        final UntypedCursor cursor = byDbi[dbi];
+        // The same dbi might have been opened both with and without duplicate keys, and the two kinds of cursor differ
+        if (cursor == null || (cursor instanceof UntypedCursorWithDuplicateKeys) != (database instanceof UntypedDatabaseWithDuplicateKeys)) {
+            return null;
+        }
+
+        byDbi[dbi] = null;
+        cursor.idle = false;
+        return cursor;
+    }
+
+    // The number of idle cursors across all threads. Only exact if no thread is using the Environment meanwhile.
+    int size() {
+        synchronized (lock) {
+            int size = 0;
+            for (Cursors cursors : live) {
+                size += cursors.size();
+            }
+            return size;
+        }
+    }
+
+    // Must be called before the environment is closed. Threads should have finished with it.
+    void close() {
+        synchronized (lock) {
+            for (Cursors cursors : live) {
+                cursors.closeAll();
+            }
+            live.clear();
+            closed = true;
+        }
+    }
+}
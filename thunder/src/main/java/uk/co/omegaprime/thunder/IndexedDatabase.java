@@ -0,0 +1,155 @@
+package uk.co.omegaprime.thunder;
+
+import uk.co.omegaprime.thunder.schema.Schema;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// A Database together with any number of SecondaryIndexes and CoveringIndexes over its values. Every write through this
+// class (or through one of its cursors) updates the indexes in the same transaction, using the value being replaced or
+// removed to find the stale index entries, so the indexes can never be seen out of step with the primary database.
+//
+// Writes made directly to the underlying Database bypass the indexes, so once it is indexed, only read from it.
+public class IndexedDatabase<K, V> {
+    private final Database<K, V> database;
+    private final List<MaintainedIndex<K, V>> indexes = new CopyOnWriteArrayList<>();
+
+    public IndexedDatabase(Database<K, V> database) {
+        if (database instanceof DatabaseWithDuplicateKeys) {
+            throw new IllegalArgumentException("An index entry identifies an item by its key, so keys must be unique");
+        }
+        this.database = database;
+    }
+
+    public Database<K, V> getDatabase() { return database; }
+
+    // Opens the named index, creating it if necessary. A new (or empty) index is populated from the existing items.
+    public <I> SecondaryIndex<I, K, V> index(Transaction tx, String name, Schema<I> iSchema, Function<? super V, ? extends I> indexKey) {
+        final Environment env = database.getUntypedDatabase().db;
+        final DatabaseWithDuplicateKeys<I, K> indexDatabase = env.createDatabaseWithDuplicateKeys(tx, name, iSchema, database.getKeySchema());
+        return add(tx, new SecondaryIndex<>(name, indexKey, indexDatabase), indexDatabase);
+    }
+
+    // As index, but each index entry also carries a projection of the item's value, so that queries needing only the
+    // projected columns can be answered from the index alone without going back to this database
+    public <I, P> CoveringIndex<I, K, P, V> coveringIndex(Transaction tx, String name, Schema<I> iSchema, Function<? super V, ? extends I> indexKey,
+                                                          Schema<P> pSchema, Function<? super V, ? extends P> projection) {
+        final Environment env = database.getUntypedDatabase().db;
+        final Database<Pair<I, K>, P> indexDatabase = env.createDatabase(tx, name, Schema.zip(iSchema, database.getKeySchema()), pSchema);
+        return add(tx, new CoveringIndex<>(name, iSchema, database.getKeySchema(), indexKey, projection, indexDatabase), indexDatabase);
+    }
+
+    private <T extends MaintainedIndex<K, V>> T add(Transaction tx, T index, Database<?, ?> indexDatabase) {
+        if (indexDatabase.getUntypedDatabase().entryCount(tx) == 0) {
+            final Iterator<Pair<K, V>> it = database.keyValues(tx);
+            while (it.hasNext()) {
+                final Pair<K, V> kv = it.next();
+                index.update(tx, kv.k, null, kv.v);
+            }
+        }
+
+        indexes.add(index);
+        return index;
+    }
+
+    public V get(Transaction tx, K k) {
+        return database.get(tx, k);
+    }
+
+    public void put(Transaction tx, K k, V v) {
+        final V old = indexes.isEmpty() ? null : database.get(tx, k);
+        database.put(tx, k, v);
+        updateIndexes(tx, k, old, v);
+    }
+
+    public V putIfAbsent(Transaction tx, K k, V v) {
+        final V existing = database.putIfAbsent(tx, k, v);
+        if (existing == null) {
+            updateIndexes(tx, k, null, v);
+        }
+        return existing;
+    }
+
+    public boolean remove(Transaction tx, K k) {
+        final V old = indexes.isEmpty() ? null : database.get(tx, k);
+        final boolean removed = database.remove(tx, k);
+        if (removed) {
+            updateIndexes(tx, k, old, null);
+        }
+        return removed;
+    }
+
+    // A cursor over the primary database whose puts and deletes also update the indexes
+    public Cursor<K, V> createCursor(Transaction tx) {
+        return new IndexedCursor(database.getUntypedDatabase().createCursor(tx));
+    }
+
+    // The items whose index keys lie between from and to, in index key order. Each item is looked up by its primary key,
+    // so this only touches the items in the range rather than filtering the whole database. Close the stream if you
+    // don't consume all of it.
+    public <I> Stream<Pair<K, V>> rangeByIndex(Transaction tx, SecondaryIndex<I, K, V> index, I from, boolean fromInclusive, I to, boolean toInclusive, Direction direction) {
+        checkOwnIndex(index);
+        return index.getDatabase().rangeStream(tx, from, fromInclusive, to, toInclusive, direction)
+                                  .map(ik -> new Pair<>(ik.v, database.get(tx, ik.v)));
+    }
+
+    public <I> Stream<Pair<K, V>> getByIndex(Transaction tx, SecondaryIndex<I, K, V> index, I i) {
+        return rangeByIndex(tx, index, i, true, i, true, Direction.ASCENDING);
+    }
+
+    private void checkOwnIndex(MaintainedIndex<K, V> index) {
+        if (!indexes.contains(index)) {
+            throw new IllegalArgumentException("Index " + index.getName() + " does not belong to this database");
+        }
+    }
+
+    private void updateIndexes(Transaction tx, K k, V oldV, V newV) {
+        for (MaintainedIndex<K, V> index : indexes) {
+            index.update(tx, k, oldV, newV);
+        }
+    }
+
+    private final class IndexedCursor extends Cursor<K, V> {
+        IndexedCursor(UntypedCursor utc) {
+            super(database, utc);
+        }
+
+        // Looked up afresh each time since the cursor may be renewed into another transaction
+        private Transaction tx() { return getUntypedCursor().tx; }
+
+        @Override
+        public void put(V v) {
+            final K k = getKey();
+            final V old = indexes.isEmpty() ? null : getValue();
+            super.put(v);
+            updateIndexes(tx(), k, old, v);
+        }
+
+        @Override
+        public void put(K k, V v) {
+            final V old = indexes.isEmpty() ? null : database.get(tx(), k);
+            super.put(k, v);
+            updateIndexes(tx(), k, old, v);
+        }
+
+        @Override
+        public V putIfAbsent(K k, V v) {
+            final V existing = super.putIfAbsent(k, v);
+            if (existing == null) {
+                updateIndexes(tx(), k, null, v);
+            }
+            return existing;
+        }
+
+        @Override
+        public void delete() {
+            final K k = indexes.isEmpty() ? null : getKey();
+            final V old = indexes.isEmpty() ? null : getValue();
+            super.delete();
+            updateIndexes(tx(), k, old, null);
+        }
+    }
+}
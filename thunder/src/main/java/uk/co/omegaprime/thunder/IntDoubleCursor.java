@@ -0,0 +1,22 @@
+package uk.co.omegaprime.thunder;
+
+public class IntDoubleCursor extends PrimitiveCursor {
+    private final IntDoubleDatabase database;
+
+    IntDoubleCursor(IntDoubleDatabase database, UntypedCursor utc) {
+        super(utc);
+        this.database = database;
+    }
+
+    public boolean moveTo(int k)      { return utc.move(PrimitiveBuffer.keys().putInt(k), JNI.MDB_SET_KEY); }
+    public boolean moveCeiling(int k) { return utc.move(PrimitiveBuffer.keys().putInt(k), JNI.MDB_SET_RANGE); }
+    public boolean moveFloor(int k)   { return (moveCeiling(k) && getIntKey() == k) || movePrevious(); }
+
+    public int getIntKey()         { return PrimitiveBuffer.getInt(keyPtr()); }
+    public double getDoubleValue() { return PrimitiveBuffer.getDouble(valuePtr()); }
+
+    public void put(double v)        { put(PrimitiveBuffer.keys().putInt(getIntKey()), PrimitiveBuffer.values().putDouble(v), JNI.MDB_CURRENT); }
+    public void put(int k, double v) { put(PrimitiveBuffer.keys().putInt(k),           PrimitiveBuffer.values().putDouble(v), 0); }
+
+    public IntDoubleDatabase getDatabase() { return database; }
+}
@@ -0,0 +1,92 @@
+package uk.co.omegaprime.thunder;
+
+import uk.co.omegaprime.thunder.schema.DoubleSchema;
+import uk.co.omegaprime.thunder.schema.IntegerSchema;
+
+import java.util.PrimitiveIterator;
+
+// A Database<Integer, Double> that you can use without boxing: gets, puts and scans don't allocate. The data is encoded
+// just as IntegerSchema and DoubleSchema would, so you can still use asDatabase() (or open the same database with those
+// schemas) for anything this class doesn't cover. Like Database, instances may be shared between threads.
+public class IntDoubleDatabase {
+    private final Database<Integer, Double> database;
+    private final UntypedDatabase udb;
+
+    public IntDoubleDatabase(Database<Integer, Double> database) {
+        PrimitiveBuffer.checkSchema(database, IntegerSchema.INSTANCE, DoubleSchema.INSTANCE);
+        this.database = database;
+        this.udb = database.getUntypedDatabase();
+    }
+
+    public Database<Integer, Double> asDatabase() { return database; }
+
+    public IntDoubleCursor createCursor(Transaction tx) {
+        return new IntDoubleCursor(this, udb.createCursor(tx));
+    }
+
+    public void put(Transaction tx, int k, double v) {
+        udb.put(tx, PrimitiveBuffer.keys().putInt(k), PrimitiveBuffer.values().putDouble(v));
+    }
+
+    public boolean remove(Transaction tx, int k) {
+        return udb.remove(tx, PrimitiveBuffer.keys().putInt(k));
+    }
+
+    public boolean contains(Transaction tx, int k) {
+        return udb.get(tx, PrimitiveBuffer.keys().putInt(k), PrimitiveBuffer.values().ptr);
+    }
+
+    // Returns defaultValue if the key is absent
+    public double get(Transaction tx, int k, double defaultValue) {
+        final long vPtr = PrimitiveBuffer.values().ptr;
+        return udb.get(tx, PrimitiveBuffer.keys().putInt(k), vPtr) ? PrimitiveBuffer.getDouble(vPtr) : defaultValue;
+    }
+
+    public PrimitiveIterator.OfInt keys(Transaction tx) {
+        final IntDoubleCursor cursor = createCursor(tx);
+        final boolean initialHasNext = cursor.moveFirst();
+        return new PrimitiveIterator.OfInt() {
+            boolean hasNext = initialHasNext;
+
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext) throw new IllegalStateException("No more elements");
+
+                final int key = cursor.getIntKey();
+                hasNext = cursor.moveNext();
+                if (!hasNext) {
+                    cursor.close();
+                }
+                return key;
+            }
+        };
+    }
+
+    public PrimitiveIterator.OfDouble values(Transaction tx) {
+        final IntDoubleCursor cursor = createCursor(tx);
+        final boolean initialHasNext = cursor.moveFirst();
+        return new PrimitiveIterator.OfDouble() {
+            boolean hasNext = initialHasNext;
+
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public double nextDouble() {
+                if (!hasNext) throw new IllegalStateException("No more elements");
+
+                final double value = cursor.getDoubleValue();
+                hasNext = cursor.moveNext();
+                if (!hasNext) {
+                    cursor.close();
+                }
+                return value;
+            }
+        };
+    }
+}
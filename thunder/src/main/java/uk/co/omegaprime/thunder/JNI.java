@@ -715,5 +715,27 @@ class JNI {
             @JniArg(cast = "MDB_val *") long a,
             @JniArg(cast = "MDB_val *") long b);
 
+    ///////////////////////////////////////////////////////////////////////
+    //
+    // Thunder extensions, implemented in thunder.h
+    //
+    ///////////////////////////////////////////////////////////////////////
+
+    @JniMethod
+    public static final native int thunder_put_batch(
+            @JniArg(cast = "MDB_txn *") long txn,
+            @JniArg(cast = "unsigned int") long dbi,
+            @JniArg(cast = "char *") long arena,
+            @JniArg(cast = "size_t") long count,
+            @JniArg(cast = "unsigned int") int flags,
+            @JniArg(cast = "size_t *") long[] failed);
+
+    @JniMethod
+    public static final native int thunder_get_batch(
+            @JniArg(cast = "MDB_txn *") long txn,
+            @JniArg(cast = "unsigned int") long dbi,
+            @JniArg(cast = "MDB_val *") long keys,
+            @JniArg(cast = "MDB_val *") long values,
+            @JniArg(cast = "size_t") long count);
 
 }
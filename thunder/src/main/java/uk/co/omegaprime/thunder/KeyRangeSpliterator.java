@@ -0,0 +1,410 @@
+package uk.co.omegaprime.thunder;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Traverses the items of a Database with encoded keys in [from, to), where a null bound means the start or end of
+// the database. Backs Database.stream and Database.parallelStream.
+//
+// LMDB doesn't expose its branch pages, so to split the key range we sample split points up front instead: we bisect
+// the space of encoded keys, using a cursor seek to find the first real key at or after each midpoint. That is one
+// O(log n) seek per split point, and trySplit then just divides the sampled keys in half without touching the database.
+//
+// A transaction and its cursors must stay on one thread, and without MDB_NOTLS a thread may only have one read
+// transaction at a time, so we never hold a transaction between calls: tryAdvance reads a batch of items in a
+// transaction and remembers the key to resume after, while forEachRemaining reads everything in one.
+//
+// For parallel traversal every piece must see the snapshot we sampled from. With MDB_NOTLS the pieces share transactions
+// on that snapshot, lent to them as they read (see SharedTransactions), so writes may commit while we traverse. Without it, each read begins a transaction of its own, which is checked to see the same snapshot
+// as the one we sampled from: if a write has committed in the meantime, the traversal fails.
+final class KeyRangeSpliterator<K, V> implements Spliterator<Pair<K, V>> {
+    private static final int BATCH_SIZE = 1024;
+
+    private final Database<K, V> database;
+    // Exactly one of these is non-null: sequential traversal uses the caller's transaction throughout
+    private final Transaction fixedTx;
+    private final ReadTransactionSupplier transactions;
+    private final long snapshotId;
+    // Non-null for parallel traversal with MDB_NOTLS, in which case we read in these rather than beginning our own
+    private final SharedTransactions shared;
+
+    // The sampled split points lying strictly within (from, to) are splitPoints[splitPointsFrom..splitPointsTo)
+    private final byte[][] splitPoints;
+    private int splitPointsFrom;
+    private final int splitPointsTo;
+    private byte[] from;
+    private final byte[] to;
+    private long estimate;
+
+    // Traversal state. For databases with duplicate keys, batches only ever end at the end of a key.
+    private final ArrayDeque<Pair<K, V>> batch = new ArrayDeque<>();
+    private byte[] resumeAfterKey;
+    private boolean exhausted;
+
+    // Under MDB_NOTLS, read-only transactions may be passed between threads, so the pieces of a parallel traversal share
+    // transactions on the snapshot we sampled from, borrowing one for each read. We start with just the one we sampled in,
+    // and only begin another when a piece wants to read while they are all lent out, and then only if no write has
+    // committed since (otherwise the piece waits for one to come back). As pieces finish we close any transactions
+    // beyond the number of pieces that are left, and all of them once every piece has run to the end or the stream is
+    // closed. A stream that stops early (e.g. after a findFirst) must be closed, or its snapshot stays pinned until the
+    // GC notices, which is counted as a leak in ResourceMetrics.
+    static final class SharedTransactions {
+        // Kept apart from the SharedTransactions so that the cleaner can close them without keeping it reachable
+        private static final class Transactions implements Runnable {
+            // Guarded by this
+            final List<Transaction> all = new ArrayList<>();
+            boolean closed;
+
+            @Override
+            public synchronized void run() {
+                closed = true;
+                for (Transaction tx : all) {
+                    tx.close();
+                }
+                all.clear();
+            }
+        }
+
+        private final Environment env;
+        private final ReadTransactionSupplier supplier;
+        private final long snapshotId;
+        private final Transactions transactions = new Transactions();
+        private final LinkedBlockingQueue<Transaction> idle = new LinkedBlockingQueue<>();
+        private final ResourceCleaner cleaner;
+        // Each piece counts as unfinished until it has read to the end of its range
+        private final AtomicInteger unfinishedPieces = new AtomicInteger(1);
+
+        // The first transaction must be on the snapshot with the given ID
+        SharedTransactions(Environment env, ReadTransactionSupplier supplier, long snapshotId, Transaction first) {
+            this.env = env;
+            this.supplier = supplier;
+            this.snapshotId = snapshotId;
+            this.transactions.all.add(first);
+            this.idle.add(first);
+            this.cleaner = ResourceCleaner.register(this, ResourceMetrics.Kind.TRAVERSAL, transactions);
+        }
+
+        // Waits if every transaction is lent out and we can't begin another on our snapshot: each piece gives its
+        // transaction back as soon as it has read its batch
+        Transaction borrow() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    synchronized (transactions) {
+                        if (transactions.closed) {
+                            throw new IllegalStateException("The stream has been closed");
+                        }
+                    }
+
+                    Transaction tx = idle.poll();
+                    if (tx == null) tx = tryBegin();
+                    if (tx != null) return tx;
+
+                    try {
+                        return idle.take();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Null if a write has committed since our snapshot, so that a new transaction would not see it
+        private Transaction tryBegin() {
+            if (env.lastCommittedTransactionId() != snapshotId) return null;
+
+            final Transaction tx;
+            try {
+                tx = supplier.begin();
+            } catch (LMDBException e) {
+                // e.g. MDB_READERS_FULL: we can make do with the transactions we have
+                return null;
+            }
+            if (env.lastCommittedTransactionId() != snapshotId) {
+                tx.close();
+                return null;
+            }
+
+            synchronized (transactions) {
+                if (transactions.closed) {
+                    tx.close();
+                    throw new IllegalStateException("The stream has been closed");
+                }
+                transactions.all.add(tx);
+            }
+            return tx;
+        }
+
+        void giveBack(Transaction tx) {
+            idle.add(tx);
+        }
+
+        void pieceSplitOff() {
+            unfinishedPieces.incrementAndGet();
+        }
+
+        void pieceFinished() {
+            final int unfinished = unfinishedPieces.decrementAndGet();
+            if (unfinished == 0) {
+                close();
+                return;
+            }
+
+            // No more than one transaction per piece can be of any use, and we always keep at least one
+            synchronized (transactions) {
+                while (transactions.all.size() > unfinished) {
+                    final Transaction tx = idle.poll();
+                    if (tx == null) break;
+                    transactions.all.remove(tx);
+                    tx.close();
+                }
+            }
+        }
+
+        // Safe to call more than once. No piece may read afterwards.
+        void close() {
+            cleaner.close();
+        }
+    }
+
+    private KeyRangeSpliterator(Database<K, V> database, Transaction fixedTx, ReadTransactionSupplier transactions, long snapshotId,
+                                SharedTransactions shared, byte[][] splitPoints, int splitPointsFrom, int splitPointsTo,
+                                byte[] from, byte[] to, long estimate) {
+        this.database = database;
+        this.fixedTx = fixedTx;
+        this.transactions = transactions;
+        this.snapshotId = snapshotId;
+        this.shared = shared;
+        this.splitPoints = splitPoints;
+        this.splitPointsFrom = splitPointsFrom;
+        this.splitPointsTo = splitPointsTo;
+        this.from = from;
+        this.to = to;
+        this.estimate = estimate;
+    }
+
+    static <K, V> KeyRangeSpliterator<K, V> sequential(Database<K, V> database, Transaction tx) {
+        final long entries = database.getUntypedDatabase().entryCount(tx);
+        return new KeyRangeSpliterator<>(database, tx, null, 0, null, new byte[0][], 0, 0, null, null, entries);
+    }
+
+    // Under MDB_NOTLS, onShared is given the transactions the pieces will share, so that closing the stream can close them
+    static <K, V> KeyRangeSpliterator<K, V> parallel(Database<K, V> database, ReadTransactionSupplier transactions, Consumer<SharedTransactions> onShared) {
+        final UntypedDatabase udb = database.getUntypedDatabase();
+        final Environment env = udb.db;
+
+        // Make sure we know exactly which snapshot the sampling transaction sees, so every piece can see the same
+        long snapshotId;
+        Transaction tx;
+        while (true) {
+            snapshotId = env.lastCommittedTransactionId();
+            tx = transactions.begin();
+            if (env.lastCommittedTransactionId() == snapshotId) break;
+            tx.close();
+        }
+
+        final SharedTransactions shared;
+        if (env.noTLS) {
+            shared = new SharedTransactions(env, transactions, snapshotId, tx);
+            onShared.accept(shared);
+            tx = shared.borrow();
+        } else {
+            shared = null;
+        }
+
+        boolean ok = false;
+        try {
+            final long entries = udb.entryCount(tx);
+            final List<byte[]> splitPoints = new ArrayList<>();
+            final UntypedCursor cursor = udb.createCursor(tx);
+            try {
+                if (cursor.moveFirst()) {
+                    final byte[] first = cursor.getKeyBytes();
+                    cursor.moveLast();
+                    final byte[] last = cursor.getKeyBytes();
+                    // A few times more pieces than threads, so that the work still balances if the keys are unevenly spread
+                    final int depth = 2 + (32 - Integer.numberOfLeadingZeros(Math.max(1, ForkJoinPool.getCommonPoolParallelism() - 1)));
+                    sample(cursor, first, last, depth, splitPoints);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            final KeyRangeSpliterator<K, V> result = new KeyRangeSpliterator<>(database, null, transactions, snapshotId, shared,
+                                                                               splitPoints.toArray(new byte[0][]), 0, splitPoints.size(), null, null, entries);
+            ok = true;
+            return result;
+        } finally {
+            if (shared == null) {
+                tx.close();
+            } else {
+                shared.giveBack(tx);
+                if (!ok) shared.close();
+            }
+        }
+    }
+
+    // Adds, in order, up to 2^depth - 1 keys lying strictly within (lo, hi)
+    private static void sample(UntypedCursor cursor, byte[] lo, byte[] hi, int depth, List<byte[]> out) {
+        if (depth == 0 || Bits.compareBytes(lo, hi) >= 0) return;
+
+        // There may be no key strictly between them at all, e.g. if hi is just lo with a zero byte on the end
+        final byte[] mid = midpoint(lo, hi);
+        if (Bits.compareBytes(mid, lo) <= 0 || Bits.compareBytes(mid, hi) >= 0) return;
+
+        if (cursor.moveCeiling(mid) && cursor.compareKeyTo(hi) < 0) {
+            final byte[] key = cursor.getKeyBytes();
+            sample(cursor, lo, key, depth - 1, out);
+            out.add(key);
+            sample(cursor, key, hi, depth - 1, out);
+        } else {
+            // Any keys within (lo, hi) sort before mid
+            sample(cursor, lo, mid, depth - 1, out);
+        }
+    }
+
+    // Treats the keys as fractions in [0, 1) written in base 256 and averages them, rounding down
+    static byte[] midpoint(byte[] lo, byte[] hi) {
+        final int length = Math.max(lo.length, hi.length) + 1;
+        final byte[] loPadded = new byte[length], hiPadded = new byte[length];
+        System.arraycopy(lo, 0, loPadded, 0, lo.length);
+        System.arraycopy(hi, 0, hiPadded, 0, hi.length);
+
+        final byte[] sum = new BigInteger(1, loPadded).add(new BigInteger(1, hiPadded)).shiftRight(1).toByteArray();
+        final byte[] result = new byte[length];
+        final int copied = Math.min(length, sum.length);
+        System.arraycopy(sum, sum.length - copied, result, length - copied, copied);
+        return result;
+    }
+
+    @Override
+    public Spliterator<Pair<K, V>> trySplit() {
+        if (transactions == null || resumeAfterKey != null || exhausted || splitPointsFrom >= splitPointsTo) {
+            return null;
+        }
+
+        final int mid = (splitPointsFrom + splitPointsTo) >>> 1;
+        final byte[] splitPoint = splitPoints[mid];
+        final long prefixEstimate = estimate * (mid - splitPointsFrom + 1) / (splitPointsTo - splitPointsFrom + 1);
+        final KeyRangeSpliterator<K, V> prefix = new KeyRangeSpliterator<>(database, null, transactions, snapshotId, shared,
+                                                                           splitPoints, splitPointsFrom, mid, from, splitPoint, prefixEstimate);
+        if (shared != null) {
+            shared.pieceSplitOff();
+        }
+        this.splitPointsFrom = mid + 1;
+        this.from = splitPoint;
+        this.estimate -= prefixEstimate;
+        return prefix;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Pair<K, V>> action) {
+        if (batch.isEmpty() && !exhausted) {
+            read(BATCH_SIZE, batch::add);
+        }
+
+        final Pair<K, V> next = batch.poll();
+        if (next == null) return false;
+
+        action.accept(next);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Pair<K, V>> action) {
+        Pair<K, V> next;
+        while ((next = batch.poll()) != null) {
+            action.accept(next);
+        }
+
+        if (!exhausted) {
+            read(Long.MAX_VALUE, action);
+        }
+    }
+
+    // Reads at least limit items (or until the end of the range), finishing the key we stop on
+    private void read(long limit, Consumer<? super Pair<K, V>> action) {
+        final Transaction tx = beginTransaction();
+        try {
+            final Database.Scratch<K, V> scratch = database.scratch();
+            final UntypedCursor cursor = database.getUntypedDatabase().createCursor(tx);
+            try {
+                boolean positioned;
+                if (resumeAfterKey != null) {
+                    positioned = cursor.moveCeiling(resumeAfterKey);
+                    while (positioned && cursor.compareKeyTo(resumeAfterKey) == 0) {
+                        positioned = cursor.moveNext();
+                    }
+                } else if (from != null) {
+                    positioned = cursor.moveCeiling(from);
+                } else {
+                    positioned = cursor.moveFirst();
+                }
+
+                long read = 0;
+                byte[] lastKey = null;
+                while (positioned && (to == null || cursor.compareKeyTo(to) < 0)) {
+                    if (read >= limit) {
+                        if (lastKey == null) lastKey = cursor.getKeyBytes();
+                        if (cursor.compareKeyTo(lastKey) != 0) {
+                            resumeAfterKey = lastKey;
+                            return;
+                        }
+                    } else if (read == limit - 1) {
+                        // Remember the key of the last item within the limit, in case we have to stop after it
+                        lastKey = cursor.getKeyBytes();
+                    }
+
+                    action.accept(new Pair<>(cursor.getKey(scratch.kBuffer), cursor.getValue(scratch.vBuffer)));
+                    read++;
+                    positioned = cursor.moveNext();
+                }
+
+                exhausted = true;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            if (shared != null) {
+                shared.giveBack(tx);
+                if (exhausted) shared.pieceFinished();
+            } else if (tx != fixedTx) {
+                tx.close();
+            }
+        }
+    }
+
+    private Transaction beginTransaction() {
+        if (fixedTx != null) return fixedTx;
+        if (shared != null) return shared.borrow();
+
+        final Transaction tx = transactions.begin();
+        if (database.getUntypedDatabase().db.lastCommittedTransactionId() != snapshotId) {
+            tx.close();
+            throw new ConcurrentModificationException("A write transaction committed during a parallel traversal, so its pieces would not all see the same snapshot");
+        }
+        return tx;
+    }
+
+    @Override
+    public long estimateSize() {
+        return exhausted ? batch.size() : estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+    }
+}
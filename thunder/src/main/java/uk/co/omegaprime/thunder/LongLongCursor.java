@@ -0,0 +1,22 @@
+package uk.co.omegaprime.thunder;
+
+public class LongLongCursor extends PrimitiveCursor {
+    private final LongLongDatabase database;
+
+    LongLongCursor(LongLongDatabase database, UntypedCursor utc) {
+        super(utc);
+        this.database = database;
+    }
+
+    public boolean moveTo(long k)      { return utc.move(PrimitiveBuffer.keys().putLong(k), JNI.MDB_SET_KEY); }
+    public boolean moveCeiling(long k) { return utc.move(PrimitiveBuffer.keys().putLong(k), JNI.MDB_SET_RANGE); }
+    public boolean moveFloor(long k)   { return (moveCeiling(k) && getLongKey() == k) || movePrevious(); }
+
+    public long getLongKey()   { return PrimitiveBuffer.getLong(keyPtr()); }
+    public long getLongValue() { return PrimitiveBuffer.getLong(valuePtr()); }
+
+    public void put(long v)         { put(PrimitiveBuffer.keys().putLong(getLongKey()), PrimitiveBuffer.values().putLong(v), JNI.MDB_CURRENT); }
+    public void put(long k, long v) { put(PrimitiveBuffer.keys().putLong(k),            PrimitiveBuffer.values().putLong(v), 0); }
+
+    public LongLongDatabase getDatabase() { return database; }
+}
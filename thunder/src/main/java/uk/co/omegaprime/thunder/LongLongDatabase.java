@@ -0,0 +1,91 @@
+package uk.co.omegaprime.thunder;
+
+import uk.co.omegaprime.thunder.schema.LongSchema;
+
+import java.util.PrimitiveIterator;
+
+// A Database<Long, Long> that you can use without boxing: gets, puts and scans don't allocate. The data is encoded
+// just as LongSchema would, so you can still use asDatabase() (or open the same database with LongSchema) for anything
+// this class doesn't cover. Like Database, instances may be shared between threads.
+public class LongLongDatabase {
+    private final Database<Long, Long> database;
+    private final UntypedDatabase udb;
+
+    public LongLongDatabase(Database<Long, Long> database) {
+        PrimitiveBuffer.checkSchema(database, LongSchema.INSTANCE, LongSchema.INSTANCE);
+        this.database = database;
+        this.udb = database.getUntypedDatabase();
+    }
+
+    public Database<Long, Long> asDatabase() { return database; }
+
+    public LongLongCursor createCursor(Transaction tx) {
+        return new LongLongCursor(this, udb.createCursor(tx));
+    }
+
+    public void put(Transaction tx, long k, long v) {
+        udb.put(tx, PrimitiveBuffer.keys().putLong(k), PrimitiveBuffer.values().putLong(v));
+    }
+
+    public boolean remove(Transaction tx, long k) {
+        return udb.remove(tx, PrimitiveBuffer.keys().putLong(k));
+    }
+
+    public boolean contains(Transaction tx, long k) {
+        return udb.get(tx, PrimitiveBuffer.keys().putLong(k), PrimitiveBuffer.values().ptr);
+    }
+
+    // Returns defaultValue if the key is absent
+    public long get(Transaction tx, long k, long defaultValue) {
+        final long vPtr = PrimitiveBuffer.values().ptr;
+        return udb.get(tx, PrimitiveBuffer.keys().putLong(k), vPtr) ? PrimitiveBuffer.getLong(vPtr) : defaultValue;
+    }
+
+    public PrimitiveIterator.OfLong keys(Transaction tx) {
+        final LongLongCursor cursor = createCursor(tx);
+        final boolean initialHasNext = cursor.moveFirst();
+        return new PrimitiveIterator.OfLong() {
+            boolean hasNext = initialHasNext;
+
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext) throw new IllegalStateException("No more elements");
+
+                final long key = cursor.getLongKey();
+                hasNext = cursor.moveNext();
+                if (!hasNext) {
+                    cursor.close();
+                }
+                return key;
+            }
+        };
+    }
+
+    public PrimitiveIterator.OfLong values(Transaction tx) {
+        final LongLongCursor cursor = createCursor(tx);
+        final boolean initialHasNext = cursor.moveFirst();
+        return new PrimitiveIterator.OfLong() {
+            boolean hasNext = initialHasNext;
+
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext) throw new IllegalStateException("No more elements");
+
+                final long value = cursor.getLongValue();
+                hasNext = cursor.moveNext();
+                if (!hasNext) {
+                    cursor.close();
+                }
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package uk.co.omegaprime.thunder;
+
+public class LongObjectCursor<V> extends PrimitiveCursor {
+    private final LongObjectDatabase<V> database;
+
+    LongObjectCursor(LongObjectDatabase<V> database, UntypedCursor utc) {
+        super(utc);
+        this.database = database;
+    }
+
+    public boolean moveTo(long k)      { return utc.move(PrimitiveBuffer.keys().putLong(k), JNI.MDB_SET_KEY); }
+    public boolean moveCeiling(long k) { return utc.move(PrimitiveBuffer.keys().putLong(k), JNI.MDB_SET_RANGE); }
+    public boolean moveFloor(long k)   { return (moveCeiling(k) && getLongKey() == k) || movePrevious(); }
+
+    public long getLongKey() { return PrimitiveBuffer.getLong(keyPtr()); }
+    public V getValue()      { return utc.getValue(database.vBuffer()); }
+
+    public void put(V v)         { utc.put(database.asDatabase().kBuffer(), database.vBuffer(), v); }
+    public void put(long k, V v) { utc.put(PrimitiveBuffer.keys().putLong(k), database.vBuffer(), v); }
+
+    public LongObjectDatabase<V> getDatabase() { return database; }
+}
@@ -0,0 +1,81 @@
+package uk.co.omegaprime.thunder;
+
+import uk.co.omegaprime.thunder.schema.LongSchema;
+import uk.co.omegaprime.thunder.schema.Schema;
+
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+
+// A Database<Long, V> whose keys you can use without boxing. Values are still encoded by their Schema. The keys are encoded
+// just as LongSchema would, so you can still use asDatabase() for anything this class doesn't cover. Like Database,
+// instances may be shared between threads.
+public class LongObjectDatabase<V> {
+    private final Database<Long, V> database;
+    private final UntypedDatabase udb;
+
+    public LongObjectDatabase(Database<Long, V> database) {
+        PrimitiveBuffer.checkSchema(database, LongSchema.INSTANCE, null);
+        this.database = database;
+        this.udb = database.getUntypedDatabase();
+    }
+
+    public Database<Long, V> asDatabase() { return database; }
+
+    public Schema<V> getValueSchema() { return database.getValueSchema(); }
+
+    BufferedSchema<V> vBuffer() { return database.vBuffer(); }
+
+    public LongObjectCursor<V> createCursor(Transaction tx) {
+        return new LongObjectCursor<>(this, udb.createCursor(tx));
+    }
+
+    public void put(Transaction tx, long k, V v) {
+        udb.put(tx, PrimitiveBuffer.keys().putLong(k), database.vBuffer(), v);
+    }
+
+    public boolean remove(Transaction tx, long k) {
+        return udb.remove(tx, PrimitiveBuffer.keys().putLong(k));
+    }
+
+    public boolean contains(Transaction tx, long k) {
+        final BufferedSchema<V> vBuffer = database.vBuffer();
+        final long vBufferPtrNow = vBuffer.allocate(0);
+        try {
+            return udb.get(tx, PrimitiveBuffer.keys().putLong(k), vBufferPtrNow);
+        } finally {
+            vBuffer.free(vBufferPtrNow);
+        }
+    }
+
+    public V get(Transaction tx, long k) {
+        return udb.get(tx, PrimitiveBuffer.keys().putLong(k), database.vBuffer());
+    }
+
+    public PrimitiveIterator.OfLong keys(Transaction tx) {
+        final LongObjectCursor<V> cursor = createCursor(tx);
+        final boolean initialHasNext = cursor.moveFirst();
+        return new PrimitiveIterator.OfLong() {
+            boolean hasNext = initialHasNext;
+
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext) throw new IllegalStateException("No more elements");
+
+                final long key = cursor.getLongKey();
+                hasNext = cursor.moveNext();
+                if (!hasNext) {
+                    cursor.close();
+                }
+                return key;
+            }
+        };
+    }
+
+    public Iterator<V> values(Transaction tx) {
+        return database.values(tx);
+    }
+}
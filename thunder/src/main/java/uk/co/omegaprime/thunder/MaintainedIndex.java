@@ -0,0 +1,9 @@
+package uk.co.omegaprime.thunder;
+
+// An index that IndexedDatabase keeps in step with its items
+abstract class MaintainedIndex<K, V> {
+    public abstract String getName();
+
+    // Either value may be null, for an item that is being added or removed
+    abstract void update(Transaction tx, K k, V oldV, V newV);
+}
@@ -0,0 +1,26 @@
+package uk.co.omegaprime.thunder;
+
+// Decides how big to make the memory map when a write fails with MDB_MAP_FULL. Returning a size no bigger than
+// the current one means that the map should not grow, in which case the MDB_MAP_FULL error is thrown as usual.
+public interface MapSizeGrowthPolicy {
+    long nextMapSize(long currentMapSizeBytes);
+
+    static MapSizeGrowthPolicy none() {
+        return currentMapSizeBytes -> currentMapSizeBytes;
+    }
+
+    static MapSizeGrowthPolicy geometric(double factor) {
+        if (factor <= 1) throw new IllegalArgumentException("Growth factor must exceed 1, but was " + factor);
+        return currentMapSizeBytes -> (long)Math.min(Long.MAX_VALUE, currentMapSizeBytes * factor);
+    }
+
+    static MapSizeGrowthPolicy step(long bytes) {
+        if (bytes <= 0) throw new IllegalArgumentException("Growth step must be positive, but was " + bytes);
+        return currentMapSizeBytes -> currentMapSizeBytes + bytes;
+    }
+
+    // Wraps a policy so that the map never grows beyond the given size
+    static MapSizeGrowthPolicy capped(MapSizeGrowthPolicy policy, long maxMapSizeBytes) {
+        return currentMapSizeBytes -> Math.min(maxMapSizeBytes, policy.nextMapSize(currentMapSizeBytes));
+    }
+}
@@ -0,0 +1,64 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+import uk.co.omegaprime.thunder.schema.DoubleSchema;
+import uk.co.omegaprime.thunder.schema.Schema;
+
+import static uk.co.omegaprime.thunder.Bits.bigEndian;
+import static uk.co.omegaprime.thunder.Bits.swapSign;
+import static uk.co.omegaprime.thunder.Bits.unsafe;
+
+// An MDB_val with room for one primitive inline, for the primitive-specialised databases. We encode exactly as LongSchema,
+// IntegerSchema and DoubleSchema do, so those databases can be opened with the boxed schemas too. Because every primitive is
+// byte aligned we can skip BitStream and go straight to Unsafe. Like BufferedSchema, this class is mutable and not thread safe.
+final class PrimitiveBuffer {
+    // Any buffer can hold any primitive, so rather than each database having its own, every thread has one for keys
+    // and one for values that all the primitive-specialised databases share
+    private static final ThreadLocal<PrimitiveBuffer> KEYS   = ThreadLocal.withInitial(PrimitiveBuffer::new);
+    private static final ThreadLocal<PrimitiveBuffer> VALUES = ThreadLocal.withInitial(PrimitiveBuffer::new);
+
+    static PrimitiveBuffer keys()   { return KEYS.get(); }
+    static PrimitiveBuffer values() { return VALUES.get(); }
+
+    final long ptr;
+
+    PrimitiveBuffer() {
+        final long ptr = unsafe.allocateMemory(2 * Unsafe.ADDRESS_SIZE + Long.BYTES);
+        this.ptr = ptr;
+        ResourceCleaner.register(this, ResourceMetrics.Kind.BUFFER, () -> unsafe.freeMemory(ptr));
+    }
+
+    private long dataPtr(int sz) {
+        unsafe.putAddress(ptr,                       sz);
+        unsafe.putAddress(ptr + Unsafe.ADDRESS_SIZE, ptr + 2 * Unsafe.ADDRESS_SIZE);
+        return ptr + 2 * Unsafe.ADDRESS_SIZE;
+    }
+
+    // Each of these returns a pointer to the MDB_val
+    long putLong(long x)     { unsafe.putLong(dataPtr(Long.BYTES),    bigEndian(swapSign(x))); return ptr; }
+    long putInt(int x)       { unsafe.putInt (dataPtr(Integer.BYTES), bigEndian(swapSign(x))); return ptr; }
+    long putDouble(double x) { unsafe.putLong(dataPtr(Long.BYTES),    bigEndian(DoubleSchema.toDB(Double.doubleToRawLongBits(x)))); return ptr; }
+
+    private static long dataPtr(long mdbValPtr, int sz) {
+        if (unsafe.getAddress(mdbValPtr) != sz) {
+            throw new IllegalStateException("Expected a " + sz + " byte primitive but the database held " + unsafe.getAddress(mdbValPtr) + " bytes");
+        }
+        return unsafe.getAddress(mdbValPtr + Unsafe.ADDRESS_SIZE);
+    }
+
+    static long getLong(long mdbValPtr)     { return swapSign(bigEndian(unsafe.getLong(dataPtr(mdbValPtr, Long.BYTES)))); }
+    static int getInt(long mdbValPtr)       { return swapSign(bigEndian(unsafe.getInt (dataPtr(mdbValPtr, Integer.BYTES)))); }
+    static double getDouble(long mdbValPtr) { return Double.longBitsToDouble(DoubleSchema.fromDB(bigEndian(unsafe.getLong(dataPtr(mdbValPtr, Long.BYTES))))); }
+
+    static void checkSchema(Database<?, ?> database, Schema<?> expectedKeySchema, Schema<?> expectedValueSchema) {
+        if (database instanceof DatabaseWithDuplicateKeys) {
+            throw new IllegalArgumentException("Primitive-specialised databases do not support duplicate keys");
+        }
+        if (database.getKeySchema() != expectedKeySchema) {
+            throw new IllegalArgumentException("Database must have been opened with key schema " + expectedKeySchema.getClass().getSimpleName());
+        }
+        if (expectedValueSchema != null && database.getValueSchema() != expectedValueSchema) {
+            throw new IllegalArgumentException("Database must have been opened with value schema " + expectedValueSchema.getClass().getSimpleName());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+
+// The parts of the primitive-specialised cursors (LongLongCursor etc.) that don't depend on the key or value type
+public abstract class PrimitiveCursor implements AutoCloseable {
+    final UntypedCursor utc;
+    // See Cursor.handout
+    private final long handout;
+
+    PrimitiveCursor(UntypedCursor utc) {
+        this.utc = utc;
+        this.handout = utc.handouts;
+    }
+
+    public boolean moveFirst()    { return utc.moveFirst(); }
+    public boolean moveLast()     { return utc.moveLast(); }
+    public boolean moveNext()     { return utc.moveNext(); }
+    public boolean movePrevious() { return utc.movePrevious(); }
+    public boolean isPositioned() { return utc.isPositioned(); }
+
+    public void delete() { utc.delete(); }
+
+    // Moves this cursor into a new read-only transaction, so that it can be reused rather than closed and reopened
+    public void renew(Transaction tx) { utc.renew(tx); }
+
+    public void close() { utc.close(handout); }
+
+    long keyPtr() {
+        utc.refreshBufferPtr();
+        return utc.bufferPtr;
+    }
+
+    long valuePtr() {
+        utc.refreshBufferPtr();
+        return utc.bufferPtr + 2 * Unsafe.ADDRESS_SIZE;
+    }
+
+    void put(long kBufferPtrNow, long vBufferPtrNow, int flags) {
+        try {
+            utc.database.keyWritten(utc.tx, kBufferPtrNow);
+            Util.checkErrorCode(JNI.mdb_cursor_put(utc.cursor, kBufferPtrNow, vBufferPtrNow, flags));
+        } finally {
+            utc.tx.generation++;
+        }
+    }
+}
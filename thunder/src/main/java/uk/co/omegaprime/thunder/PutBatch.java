@@ -0,0 +1,88 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+
+import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
+import static uk.co.omegaprime.thunder.Bits.unsafe;
+
+// Accumulates puts into a single off-heap arena laid out the way thunder_put_batch (in thunder.h) expects, so that
+// we only cross into native code once per batch rather than once per put. Like BufferedSchema, not thread safe.
+final class PutBatch<K, V> implements AutoCloseable {
+    // Once the arena holds this much we hand it over to LMDB, so memory use stays bounded for huge inputs
+    private static final int FLUSH_BYTES = 1 << 20;
+
+    private final Transaction tx;
+    private final UntypedDatabase udb;
+    private final BufferedSchema<K> kBuffer;
+    private final BufferedSchema<V> vBuffer;
+
+    private long arenaPtr;
+    private long arenaCapacity;
+    private long arenaSize;
+    private long count;
+    // Entries handed over to LMDB by earlier flushes, so errors can say which entry of the whole batch failed
+    private long flushed;
+
+    PutBatch(Transaction tx, UntypedDatabase udb, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer) {
+        this.tx = tx;
+        this.udb = udb;
+        this.kBuffer = kBuffer;
+        this.vBuffer = vBuffer;
+        this.arenaCapacity = 64 * 1024;
+        this.arenaPtr = unsafe.allocateMemory(arenaCapacity);
+    }
+
+    private static long align(long sz) {
+        return (sz + Unsafe.ADDRESS_SIZE - 1) & ~(Unsafe.ADDRESS_SIZE - 1);
+    }
+
+    public void add(K k, V v) {
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
+        final long entrySz = align(2 * Unsafe.ADDRESS_SIZE + kSz + vSz);
+
+        if (arenaSize + entrySz > arenaCapacity) {
+            arenaCapacity = Math.max(arenaCapacity * 2, arenaSize + entrySz);
+            arenaPtr = unsafe.reallocateMemory(arenaPtr, arenaCapacity);
+        }
+
+        final long entryPtr = arenaPtr + arenaSize;
+        unsafe.putAddress(entryPtr,                       kSz);
+        unsafe.putAddress(entryPtr + Unsafe.ADDRESS_SIZE, vSz);
+        kBuffer.writeDirect(entryPtr + 2 * Unsafe.ADDRESS_SIZE,       kSz, k);
+        udb.keyWritten(tx, entryPtr + 2 * Unsafe.ADDRESS_SIZE, kSz);
+        vBuffer.writeDirect(entryPtr + 2 * Unsafe.ADDRESS_SIZE + kSz, vSz, v);
+        arenaSize += entrySz;
+        count++;
+
+        if (arenaSize >= FLUSH_BYTES) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        if (count == 0) return;
+
+        final long[] failed = new long[1];
+        try {
+            // NB: we can't use MDB_RESERVE because the values are already serialized, but this also means that
+            // the same flags are right for databases with and without duplicate keys
+            final int rc = JNI.thunder_put_batch(tx.txn, udb.dbi, arenaPtr, count, 0, failed);
+            if (rc != 0) {
+                throw new LMDBException("Entry " + (flushed + failed[0]) + " of the batch: " + Util.string(JNI.mdb_strerror(rc)), rc);
+            }
+        } finally {
+            flushed += count;
+            arenaSize = 0;
+            count = 0;
+            tx.generation++;
+        }
+    }
+
+    public void close() {
+        if (arenaPtr != 0) {
+            unsafe.freeMemory(arenaPtr);
+            arenaPtr = 0;
+        }
+    }
+}
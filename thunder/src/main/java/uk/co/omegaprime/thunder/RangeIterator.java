@@ -0,0 +1,94 @@
+package uk.co.omegaprime.thunder;
+
+import java.util.Iterator;
+
+// Iterates over the items whose keys lie between two bounds, either of which may be null for "unbounded". The bounds
+// are encoded once up front and we stop by comparing them against the raw key in the current MDB_val, so keys beyond the
+// end are never decoded. The cursor is closed as soon as we run off the end of the range, or by close() if the caller
+// stops early.
+public final class RangeIterator<K, V> implements Iterator<Pair<K, V>>, AutoCloseable {
+    private final UntypedCursor cursor;
+    private final BufferedSchema<K> kBuffer;
+    private final BufferedSchema<V> vBuffer;
+    private final boolean ascending;
+    // The bound we are heading towards, or null if we run to the end of the database
+    private final byte[] end;
+    private final boolean endInclusive;
+
+    private boolean hasNext;
+    private boolean closed;
+
+    RangeIterator(UntypedDatabase udb, Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer,
+                  K from, boolean fromInclusive, K to, boolean toInclusive, Direction direction) {
+        this(udb, tx, kBuffer, vBuffer, from == null ? null : kBuffer.toBytes(from), fromInclusive,
+                                        to   == null ? null : kBuffer.toBytes(to),   toInclusive, direction);
+    }
+
+    // For bounds that are already encoded, which needn't be the encodings of any K: e.g. prefixes of composite keys
+    static <K, V> RangeIterator<K, V> ofEncodedBounds(UntypedDatabase udb, Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer,
+                                                      byte[] from, boolean fromInclusive, byte[] to, boolean toInclusive, Direction direction) {
+        return new RangeIterator<>(udb, tx, kBuffer, vBuffer, from, fromInclusive, to, toInclusive, direction);
+    }
+
+    private RangeIterator(UntypedDatabase udb, Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer,
+                          byte[] fromBytes, boolean fromInclusive, byte[] toBytes, boolean toInclusive, Direction direction) {
+        this.kBuffer = kBuffer;
+        this.vBuffer = vBuffer;
+        this.ascending = direction == Direction.ASCENDING;
+
+        this.cursor = udb.createCursor(tx);
+        final byte[] start = ascending ? fromBytes : toBytes;
+        final boolean startInclusive = ascending ? fromInclusive : toInclusive;
+        this.end          = ascending ? toBytes : fromBytes;
+        this.endInclusive = ascending ? toInclusive : fromInclusive;
+
+        boolean positioned;
+        if (start == null) {
+            positioned = ascending ? cursor.moveFirst() : cursor.moveLast();
+        } else {
+            // Find the first key beyond the start bound in ascending order, skipping all the values of an excluded key
+            positioned = cursor.moveCeiling(start);
+            while (positioned && cursor.compareKeyTo(start) == 0 && (ascending ? !startInclusive : startInclusive)) {
+                positioned = cursor.moveNext();
+            }
+            if (!ascending) {
+                // ... and step back from it to the last key within the bound
+                positioned = positioned ? cursor.movePrevious() : cursor.moveLast();
+            }
+        }
+
+        this.hasNext = positioned && withinEnd();
+        if (!hasNext) close();
+    }
+
+    private boolean withinEnd() {
+        if (end == null) return true;
+
+        final int c = ascending ? cursor.compareKeyTo(end) : -cursor.compareKeyTo(end);
+        return c < 0 || (c == 0 && endInclusive);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return hasNext;
+    }
+
+    @Override
+    public Pair<K, V> next() {
+        if (!hasNext) throw new IllegalStateException("No more elements");
+
+        final Pair<K, V> pair = new Pair<>(cursor.getKey(kBuffer), cursor.getValue(vBuffer));
+        hasNext = (ascending ? cursor.moveNext() : cursor.movePrevious()) && withinEnd();
+        if (!hasNext) close();
+        return pair;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+
+        closed = true;
+        hasNext = false;
+        cursor.close();
+    }
+}
@@ -0,0 +1,76 @@
+package uk.co.omegaprime.thunder;
+
+import uk.co.omegaprime.thunder.schema.Schema;
+
+// A test on the encoded bytes of a key and value, for filtering rows without decoding them (see FilteredView). The
+// pointers are into LMDB's memory map and are only valid for the duration of the call.
+//
+// The factories that take a Schema encode their argument once, up front. Schemas that aren't byte aligned may leave
+// a field ending part way through a byte: those trailing bits are compared and the rest of the byte ignored.
+@FunctionalInterface
+public interface RawPredicate {
+    boolean test(long kPtr, long kSz, long vPtr, long vSz);
+
+    default RawPredicate and(RawPredicate that) {
+        return (kPtr, kSz, vPtr, vSz) -> test(kPtr, kSz, vPtr, vSz) && that.test(kPtr, kSz, vPtr, vSz);
+    }
+
+    default RawPredicate or(RawPredicate that) {
+        return (kPtr, kSz, vPtr, vSz) -> test(kPtr, kSz, vPtr, vSz) || that.test(kPtr, kSz, vPtr, vSz);
+    }
+
+    default RawPredicate negate() {
+        return (kPtr, kSz, vPtr, vSz) -> !test(kPtr, kSz, vPtr, vSz);
+    }
+
+    static RawPredicate keyStartsWith(byte[] prefix) {
+        return keyBytesAt(0, prefix);
+    }
+
+    static <T> RawPredicate keyStartsWith(Schema<T> schema, T prefix) {
+        return keyFieldEquals(0, schema, prefix);
+    }
+
+    static RawPredicate valueStartsWith(byte[] prefix) {
+        return valueBytesAt(0, prefix);
+    }
+
+    static <T> RawPredicate valueStartsWith(Schema<T> schema, T prefix) {
+        return valueFieldEquals(0, schema, prefix);
+    }
+
+    static RawPredicate keyBytesAt(int byteOffset, byte[] expected) {
+        final int nBits = expected.length * 8;
+        return (kPtr, kSz, vPtr, vSz) -> Bits.bitsEqual(kPtr, kSz, byteOffset, expected, nBits);
+    }
+
+    static RawPredicate valueBytesAt(int byteOffset, byte[] expected) {
+        final int nBits = expected.length * 8;
+        return (kPtr, kSz, vPtr, vSz) -> Bits.bitsEqual(vPtr, vSz, byteOffset, expected, nBits);
+    }
+
+    // For a field that starts on a byte boundary at a fixed offset, e.g. any field of a RecordSchema that only follows
+    // fixed-size, byte-aligned fields
+    static <T> RawPredicate keyFieldEquals(int byteOffset, Schema<T> schema, T expected) {
+        final byte[] bytes = BufferedSchema.toBytes(schema, expected);
+        final int nBits = schema.sizeBits(expected);
+        return (kPtr, kSz, vPtr, vSz) -> Bits.bitsEqual(kPtr, kSz, byteOffset, bytes, nBits);
+    }
+
+    static <T> RawPredicate valueFieldEquals(int byteOffset, Schema<T> schema, T expected) {
+        final byte[] bytes = BufferedSchema.toBytes(schema, expected);
+        final int nBits = schema.sizeBits(expected);
+        return (kPtr, kSz, vPtr, vSz) -> Bits.bitsEqual(vPtr, vSz, byteOffset, bytes, nBits);
+    }
+
+    // Keys in [fromInclusive, toExclusive) in LMDB's order. Either bound may be null, meaning unbounded.
+    static RawPredicate keyBetween(byte[] fromInclusive, byte[] toExclusive) {
+        return (kPtr, kSz, vPtr, vSz) -> (fromInclusive == null || Bits.compareBytes(kPtr, kSz, fromInclusive) >= 0) &&
+                                         (toExclusive   == null || Bits.compareBytes(kPtr, kSz, toExclusive)   <  0);
+    }
+
+    static <T> RawPredicate keyBetween(Schema<T> schema, T fromInclusive, T toExclusive) {
+        return keyBetween(fromInclusive == null ? null : BufferedSchema.toBytes(schema, fromInclusive),
+                          toExclusive   == null ? null : BufferedSchema.toBytes(schema, toExclusive));
+    }
+}
@@ -0,0 +1,137 @@
+package uk.co.omegaprime.thunder;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out read-only transactions that are recycled with mdb_txn_reset/mdb_txn_renew rather than being
+// aborted and begun afresh, which saves both the setup cost and churn in the LMDB reader table.
+//
+// Without MDB_NOTLS, LMDB ties a read transaction's reader slot to the thread that created it, and a thread may
+// have only one read transaction at a time, so in that case each thread gets its own idle transaction. Pooled
+// transactions must be closed on the thread that obtained them. With MDB_NOTLS we can share one pool between threads.
+//
+// Closing the pool may happen on any thread, so each pooled transaction has an atomic state that says who may free it:
+// its user while it is IN_USE, or whoever first moves it from IDLE to DISCARDED (an IDLE one is never being touched by
+// its last user, since it only becomes IDLE once they are done with it).
+public final class ReadTransactionPool implements AutoCloseable {
+    private final Environment env;
+    private final boolean shared;
+
+    private final ThreadLocal<Transaction> threadIdle = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<Transaction> sharedIdle = new ConcurrentLinkedQueue<>();
+    // Every transaction we've ever created and not yet aborted, so we can clean up after threads that have gone away
+    private final ConcurrentLinkedQueue<Transaction> all = new ConcurrentLinkedQueue<>();
+
+    static final int IN_USE = 0;
+    static final int IDLE = 1;
+    static final int DISCARDED = 2;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile boolean closed;
+
+    ReadTransactionPool(Environment env, boolean shared) {
+        this.env = env;
+        this.shared = shared;
+    }
+
+    public Transaction transaction() {
+        if (closed) {
+            throw new IllegalStateException("The pool has been closed");
+        }
+
+        final Transaction tx;
+        if (shared) {
+            tx = sharedIdle.poll();
+        } else {
+            tx = threadIdle.get();
+            threadIdle.set(null);
+        }
+
+        if (tx != null && !tx.poolState.compareAndSet(IDLE, IN_USE)) {
+            // close() got to it first, and has already aborted it
+            throw new IllegalStateException("The pool has been closed");
+        }
+
+        if (tx != null) {
+            env.transactionStarting(true);
+            final long snapshotLowerBound = env.snapshotLowerBound();
+            final int rc = JNI.mdb_txn_renew(tx.txn);
+            if (rc == 0) {
+                hits.incrementAndGet();
+                tx.handleFreed = false;
+                tx.snapshotAtLeast = snapshotLowerBound;
+                // Anything that cached a pointer into the old snapshot (a cursor's bufferPtr, a ValueView) must not trust it now
+                tx.generation++;
+                return tx;
+            }
+
+            env.transactionFinished(true);
+            discard(tx);
+            // If another process has grown the map, beginning a fresh transaction will adopt the new size
+            if (rc != LMDBException.MAP_RESIZED) {
+                Util.checkErrorCode(rc);
+            }
+        }
+
+        misses.incrementAndGet();
+        final long snapshotLowerBound = env.snapshotLowerBound();
+        final Transaction result = new Transaction(env, env.beginTransaction(JNI.MDB_RDONLY), true, this);
+        result.snapshotAtLeast = snapshotLowerBound;
+        all.add(result);
+        return result;
+    }
+
+    void release(Transaction tx) {
+        JNI.mdb_txn_reset(tx.txn);
+        if (closed || (!shared && threadIdle.get() != null)) {
+            discard(tx);
+            return;
+        }
+
+        tx.poolState.set(IDLE);
+        if (shared) {
+            sharedIdle.add(tx);
+        } else {
+            threadIdle.set(tx);
+        }
+
+        // If close() ran before we made it IDLE, it won't have seen it, so it's up to us
+        if (closed) {
+            discardIfIdle(tx);
+        }
+    }
+
+    // Only for transactions that are IN_USE by the calling thread
+    private void discard(Transaction tx) {
+        tx.poolState.set(DISCARDED);
+        all.remove(tx);
+        JNI.mdb_txn_abort(tx.txn);
+    }
+
+    private void discardIfIdle(Transaction tx) {
+        if (tx.poolState.compareAndSet(IDLE, DISCARDED)) {
+            all.remove(tx);
+            JNI.mdb_txn_abort(tx.txn);
+        }
+    }
+
+    // Number of transactions handed out by recycling an idle one
+    public long hits() { return hits.get(); }
+    // Number of transactions handed out by beginning a new one
+    public long misses() { return misses.get(); }
+
+    // Aborts all idle transactions, whichever thread they belong to. Any transactions that are still in use are left to
+    // their users, and will be aborted rather than returned to the pool when they are closed.
+    public void close() {
+        closed = true;
+        for (Transaction tx; (tx = sharedIdle.poll()) != null; ) {
+            discardIfIdle(tx);
+        }
+        for (Transaction tx : all) {
+            discardIfIdle(tx);
+        }
+        threadIdle.remove();
+    }
+}
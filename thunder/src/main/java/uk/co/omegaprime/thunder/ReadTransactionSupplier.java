@@ -0,0 +1,8 @@
+package uk.co.omegaprime.thunder;
+
+// Begins read-only transactions for Database.parallelStream, which needs one per piece of the traversal on whichever
+// thread processes it, e.g. env.readTransactionPool()::transaction or () -> env.transaction(true).
+@FunctionalInterface
+public interface ReadTransactionSupplier {
+    Transaction begin();
+}
@@ -0,0 +1,87 @@
+package uk.co.omegaprime.thunder;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Frees an owner's off-heap resources either when it is explicitly closed or, failing that, once it has been garbage
+// collected. We used to do the latter with finalize(), but finalizable objects survive an extra GC cycle and are all
+// funnelled through the JVM's single finalizer thread, which can fall behind under GC pressure. A PhantomReference
+// costs the GC nothing extra, and our own daemon thread frees the resources as soon as the reference is enqueued.
+//
+// The release action must not refer to the owner, or the owner will never become unreachable. It is run at most once.
+// The kind may be null for resources that are expected to be freed by the GC, which are then not counted at all.
+final class ResourceCleaner extends PhantomReference<Object> {
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    // A PhantomReference is only enqueued if it is itself still reachable, so we hold on to them all here
+    private static final Set<ResourceCleaner> registered = ConcurrentHashMap.newKeySet();
+
+    static {
+        final Thread thread = new Thread(ResourceCleaner::run, "thunder-resource-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private final ResourceMetrics.Kind kind;
+    private final Runnable release;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private ResourceCleaner(Object owner, ResourceMetrics.Kind kind, Runnable release) {
+        super(owner, queue);
+        this.kind = kind;
+        this.release = release;
+    }
+
+    static ResourceCleaner register(Object owner, ResourceMetrics.Kind kind, Runnable release) {
+        final ResourceCleaner cleaner = new ResourceCleaner(owner, kind, release);
+        registered.add(cleaner);
+        if (kind != null) {
+            ResourceMetrics.recordOpened(kind);
+        }
+        return cleaner;
+    }
+
+    // Releases the resources now. Safe to call more than once.
+    void close() {
+        release(false);
+    }
+
+    boolean isReleased() {
+        return released.get();
+    }
+
+    private void release(boolean leaked) {
+        if (!released.compareAndSet(false, true)) return;
+
+        clear();
+        registered.remove(this);
+        try {
+            release.run();
+        } finally {
+            if (kind != null) {
+                ResourceMetrics.recordReleased(kind, leaked);
+            }
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            final ResourceCleaner cleaner;
+            try {
+                cleaner = (ResourceCleaner)queue.remove();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            try {
+                cleaner.release(true);
+            } catch (Throwable t) {
+                // Keep going: one failure shouldn't stop us freeing everything else
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+            }
+        }
+    }
+}
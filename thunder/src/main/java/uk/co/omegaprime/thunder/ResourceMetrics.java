@@ -0,0 +1,57 @@
+package uk.co.omegaprime.thunder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts the off-heap resources we hold, by kind. Anything that is garbage collected without having been closed is
+// still freed (see ResourceCleaner) but is also counted as leaked: a leaked count that keeps rising is a sign that
+// some code path forgets to close what it opens (typically a Cursor), and is relying on the GC to clean up after it.
+public final class ResourceMetrics {
+    public enum Kind {
+        // Scratch space for encoding keys and values. Most of these belong to a thread and are only ever freed by the GC
+        // once it (or the Environment) goes away, so for these the live count is the interesting one.
+        BUFFER,
+        // The position buffers belonging to cursors. The LMDB cursor itself can't safely be closed by the GC.
+        CURSOR,
+        ENVIRONMENT,
+        // The transactions shared by the pieces of a parallel stream under MDB_NOTLS. A leak is a stream that stopped
+        // early and wasn't closed, which kept its snapshot (and a reader slot per transaction) until the GC noticed.
+        TRAVERSAL
+    }
+
+    private static final AtomicLong[] live   = counters();
+    private static final AtomicLong[] leaked = counters();
+    private static final AtomicLong scratchAllocatorCalls = new AtomicLong();
+
+    private ResourceMetrics() {}
+
+    private static AtomicLong[] counters() {
+        final AtomicLong[] result = new AtomicLong[Kind.values().length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new AtomicLong();
+        }
+        return result;
+    }
+
+    static void recordOpened(Kind kind) {
+        live[kind.ordinal()].incrementAndGet();
+    }
+
+    static void recordReleased(Kind kind, boolean wasLeaked) {
+        live[kind.ordinal()].decrementAndGet();
+        if (wasLeaked) {
+            leaked[kind.ordinal()].incrementAndGet();
+        }
+    }
+
+    static void recordScratchAllocatorCall() {
+        scratchAllocatorCalls.incrementAndGet();
+    }
+
+    // Number currently allocated and not yet freed
+    public static long live(Kind kind) { return live[kind.ordinal()].get(); }
+    // Number that have been freed by the GC rather than by being closed
+    public static long leaked(Kind kind) { return leaked[kind.ordinal()].get(); }
+    // Number of times scratch space for encoding keys and values has been malloc'd, realloc'd or freed. Once every
+    // thread's scratch space has grown to fit the values it sees, this should stop rising.
+    public static long scratchAllocatorCalls() { return scratchAllocatorCalls.get(); }
+}
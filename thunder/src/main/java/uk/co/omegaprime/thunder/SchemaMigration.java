@@ -0,0 +1,79 @@
+package uk.co.omegaprime.thunder;
+
+import java.util.function.Function;
+
+// Rewrites the contents of one database into another, typically one opened with more efficient schemas (e.g. moving
+// from StringSchema to Utf8KeySchema/Utf8ValueSchema). Since the encoding of the keys changes we can't do this in place.
+//
+// The copy is streamed: we commit every itemsPerTransaction items, so that the write transaction never grows too big,
+// and resume from the encoded key we reached. Each batch goes through Environment.write (so the map grows as needed)
+// and a BulkLoader (so the common case where the new encoding sorts like the old one costs only an append per item).
+public final class SchemaMigration {
+    private static final int DEFAULT_ITEMS_PER_TRANSACTION = 100_000;
+
+    private SchemaMigration() {}
+
+    public static <K, V> long migrate(Environment env, Database<K, V> from, Database<K, V> to) {
+        return migrate(env, from, to, Function.identity(), Function.identity(), DEFAULT_ITEMS_PER_TRANSACTION);
+    }
+
+    // Returns the number of items copied. The target should start empty.
+    public static <K, V, K2, V2> long migrate(Environment env, Database<K, V> from, Database<K2, V2> to,
+                                              Function<K, K2> keyMapping, Function<V, V2> valueMapping, int itemsPerTransaction) {
+        if (itemsPerTransaction < 1) {
+            throw new IllegalArgumentException("Must copy at least one item per transaction");
+        }
+
+        long total = 0;
+        byte[] resumeAfterKey = null;
+        while (true) {
+            final byte[] resumeAfterKeyNow = resumeAfterKey;
+            final Pair<Long, byte[]> progress = env.write(tx -> copyBatch(tx, from, to, keyMapping, valueMapping, itemsPerTransaction, resumeAfterKeyNow));
+            total += progress.k;
+            if (progress.v == null) {
+                return total;
+            }
+            resumeAfterKey = progress.v;
+        }
+    }
+
+    // Copies the items with keys beyond resumeAfterKey (or all items, if that is null). Returns the number of items copied
+    // and the encoded key to resume after, which is null once we have reached the end. For databases with duplicate keys
+    // we only stop at the end of a key, so that we never have to resume part way through its values.
+    private static <K, V, K2, V2> Pair<Long, byte[]> copyBatch(Transaction tx, Database<K, V> from, Database<K2, V2> to,
+                                                               Function<K, K2> keyMapping, Function<V, V2> valueMapping,
+                                                               int itemsPerTransaction, byte[] resumeAfterKey) {
+        final UntypedCursor utc = from.getUntypedDatabase().createCursor(tx);
+        final Cursor<K, V> cursor = new Cursor<>(from, utc);
+        try (BulkLoader<K2, V2> loader = new BulkLoader<>(tx, to)) {
+            boolean positioned;
+            if (resumeAfterKey == null) {
+                positioned = cursor.moveFirst();
+            } else {
+                positioned = utc.moveCeiling(resumeAfterKey);
+                while (positioned && utc.compareKeyTo(resumeAfterKey) == 0) {
+                    positioned = cursor.moveNext();
+                }
+            }
+
+            long copied = 0;
+            byte[] lastKey = null;
+            while (positioned) {
+                if (copied >= itemsPerTransaction && utc.compareKeyTo(lastKey) != 0) {
+                    return new Pair<>(copied, lastKey);
+                }
+
+                if (lastKey == null || utc.compareKeyTo(lastKey) != 0) {
+                    lastKey = utc.getKeyBytes();
+                }
+                loader.add(keyMapping.apply(cursor.getKey()), valueMapping.apply(cursor.getValue()));
+                copied++;
+                positioned = cursor.moveNext();
+            }
+
+            return new Pair<>(copied, null);
+        } finally {
+            cursor.close();
+        }
+    }
+}
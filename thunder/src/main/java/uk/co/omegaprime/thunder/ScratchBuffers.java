@@ -0,0 +1,91 @@
+package uk.co.omegaprime.thunder;
+
+import java.lang.ref.WeakReference;
+
+// The per-thread scratch space of one Environment's Databases (see Database.Scratch).
+//
+// Each Database handle gets its own, but like IdleCursors they are indexed by dbi and belong to the Environment rather
+// than the handle, so that they don't stay pinned by every thread that ever used a handle once it has been dropped (as
+// happens to the handles that BloomFilter.attach or IndexedDatabase.index open, or those of user code that reopens by
+// name once per request). Handles are only weakly referenced: whenever a thread meets a handle it has no scratch space
+// for, it closes the scratch space of any dropped handles of the same dbi, reusing one instead if it was for the very
+// same schemas. So the table is only ever as big as the number of live handles (plus those the GC hasn't noticed are
+// dead yet), and reopening a database costs at most one allocation per thread. A thread's scratch space is freed by
+// the GC once the thread has gone away.
+final class ScratchBuffers {
+    private static final class Entry {
+        final WeakReference<Database<?, ?>> handle;
+        final Database.Scratch<?, ?> scratch;
+
+        Entry(Database<?, ?> handle, Database.Scratch<?, ?> scratch) {
+            this.handle = new WeakReference<>(handle);
+            this.scratch = scratch;
+        }
+    }
+
+    private final int maxRetainedBytes;
+    private final ThreadLocal<Entry[][]> byDbi = ThreadLocal.withInitial(() -> new Entry[8][]);
+
+    ScratchBuffers(int maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    @SuppressWarnings("unchecked")
+    <K, V> Database.Scratch<K, V> get(Database<K, V> database) {
+        Entry[][] byDbi = this.byDbi.get();
+        final int dbi = (int)database.getUntypedDatabase().dbi;
+        if (dbi >= byDbi.length) {
+            final Entry[][] grown = new Entry[Math.max(dbi + 1, byDbi.length * 2)][];
+            System.arraycopy(byDbi, 0, grown, 0, byDbi.length);
+            this.byDbi.set(grown);
+            byDbi = grown;
+        }
+
+        final Entry[] entries = byDbi[dbi];
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (entry == null) break;
+                if (entry.handle.get() == database) {
+                    return (Database.Scratch<K, V>)entry.scratch;
+                }
+            }
+        }
+
+        return (Database.Scratch<K, V>)add(byDbi, dbi, database);
+    }
+
+    private Database.Scratch<?, ?> add(Entry[][] byDbi, int dbi, Database<?, ?> database) {
+        final Entry[] entries = byDbi[dbi] == null ? new Entry[2] : byDbi[dbi];
+
+        // Sweep out the dropped handles, keeping the live ones at the front
+        Database.Scratch<?, ?> reused = null;
+        int live = 0;
+        for (int i = 0; i < entries.length && entries[i] != null; i++) {
+            final Entry entry = entries[i];
+            entries[i] = null;
+            if (entry.handle.get() != null) {
+                entries[live++] = entry;
+            } else if (reused == null && entry.scratch.kBuffer.getSchema() == database.getKeySchema() && entry.scratch.vBuffer.getSchema() == database.getValueSchema()) {
+                reused = entry.scratch;
+            } else {
+                entry.scratch.close();
+            }
+        }
+
+        final Database.Scratch<?, ?> scratch = reused != null ? reused : newScratch(database);
+        final Entry[] result;
+        if (live < entries.length) {
+            result = entries;
+        } else {
+            result = new Entry[entries.length * 2];
+            System.arraycopy(entries, 0, result, 0, live);
+        }
+        result[live] = new Entry(database, scratch);
+        byDbi[dbi] = result;
+        return scratch;
+    }
+
+    private <K, V> Database.Scratch<K, V> newScratch(Database<K, V> database) {
+        return new Database.Scratch<>(new BufferedSchema<>(database.getKeySchema(), maxRetainedBytes), new BufferedSchema<>(database.getValueSchema(), maxRetainedBytes));
+    }
+}
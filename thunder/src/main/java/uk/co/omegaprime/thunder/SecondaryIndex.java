@@ -0,0 +1,39 @@
+package uk.co.omegaprime.thunder;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+// An index of the items in an IndexedDatabase by some function of their values, stored as a database mapping each
+// index key to the primary keys of the items that have it. Items for which the function returns null aren't indexed.
+public final class SecondaryIndex<I, K, V> extends MaintainedIndex<K, V> {
+    private final String name;
+    private final Function<? super V, ? extends I> indexKey;
+    private final DatabaseWithDuplicateKeys<I, K> database;
+
+    SecondaryIndex(String name, Function<? super V, ? extends I> indexKey, DatabaseWithDuplicateKeys<I, K> database) {
+        this.name = name;
+        this.indexKey = indexKey;
+        this.database = database;
+    }
+
+    @Override
+    public String getName() { return name; }
+
+    // For reading only: writing to it directly would leave the index out of step with the primary database
+    public DatabaseWithDuplicateKeys<I, K> getDatabase() { return database; }
+
+    // The index keys between from and to, each paired with the primary key of an item that has it
+    public RangeIterator<I, K> range(Transaction tx, I from, boolean fromInclusive, I to, boolean toInclusive, Direction direction) {
+        return database.range(tx, from, fromInclusive, to, toInclusive, direction);
+    }
+
+    @Override
+    void update(Transaction tx, K k, V oldV, V newV) {
+        final I oldI = oldV == null ? null : indexKey.apply(oldV);
+        final I newI = newV == null ? null : indexKey.apply(newV);
+        if (Objects.deepEquals(oldI, newI)) return;
+
+        if (oldI != null) database.remove(tx, oldI, k);
+        if (newI != null) database.put(tx, newI, k);
+    }
+}
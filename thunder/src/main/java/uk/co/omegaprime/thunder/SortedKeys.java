@@ -0,0 +1,89 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+
+import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
+import static uk.co.omegaprime.thunder.Bits.compareBytes;
+import static uk.co.omegaprime.thunder.Bits.unsafe;
+
+// Encodes a batch of keys into a single off-heap arena, and sorts them into the order LMDB keeps them in. Looking keys
+// up in this order means that consecutive lookups tend to touch the same B-tree pages.
+//
+// The arena starts with an array of count MDB_vals in sorted order, followed by the key data they point to.
+final class SortedKeys implements AutoCloseable {
+    final long ptr;
+    final int count;
+    // order[i] is the index into the original array of the key described by the i-th MDB_val
+    final int[] order;
+
+    <K> SortedKeys(BufferedSchema<K> kBuffer, K[] ks) {
+        count = ks.length;
+
+        // Hang on to the encodings so that we only encode each key once, even though we size them all before writing any
+        final Object[] encodings = new Object[count];
+        final int[] sizes = new int[count];
+        long dataSz = 0;
+        for (int i = 0; i < count; i++) {
+            encodings[i] = kBuffer.encode(ks[i]);
+            sizes[i] = bitsToBytes(kBuffer.encodedSizeBits(encodings[i]));
+            dataSz += sizes[i];
+        }
+
+        final long valsSz = (long)count * 2 * Unsafe.ADDRESS_SIZE;
+        ptr = unsafe.allocateMemory(Math.max(1, valsSz + dataSz));
+
+        // Write the MDB_vals in input order to begin with, then sort them
+        long dataPtr = ptr + valsSz;
+        for (int i = 0; i < count; i++) {
+            unsafe.putAddress(val(i),                       sizes[i]);
+            unsafe.putAddress(val(i) + Unsafe.ADDRESS_SIZE, dataPtr);
+            kBuffer.writeEncodedDirect(dataPtr, sizes[i], encodings[i]);
+            dataPtr += sizes[i];
+        }
+
+        order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final long[] scratch = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            scratch[2 * i]     = unsafe.getAddress(val(i));
+            scratch[2 * i + 1] = unsafe.getAddress(val(i) + Unsafe.ADDRESS_SIZE);
+        }
+        sort(scratch, order, new int[count], 0, count);
+        for (int i = 0; i < count; i++) {
+            unsafe.putAddress(val(i),                       scratch[2 * order[i]]);
+            unsafe.putAddress(val(i) + Unsafe.ADDRESS_SIZE, scratch[2 * order[i] + 1]);
+        }
+    }
+
+    long val(int i) {
+        return ptr + (long)i * 2 * Unsafe.ADDRESS_SIZE;
+    }
+
+    private static int compare(long[] vals, int a, int b) {
+        return compareBytes(vals[2 * a + 1], vals[2 * a], vals[2 * b + 1], vals[2 * b]);
+    }
+
+    // A stable merge sort of the indexes in order[from, to), which saves us boxing them to use Arrays.sort
+    private static void sort(long[] vals, int[] order, int[] scratch, int from, int to) {
+        if (to - from <= 1) return;
+
+        final int mid = (from + to) >>> 1;
+        sort(vals, order, scratch, from, mid);
+        sort(vals, order, scratch, mid,  to);
+        if (compare(vals, order[mid - 1], order[mid]) <= 0) return;
+
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            order[k++] = compare(vals, scratch[j], scratch[i]) < 0 ? scratch[j++] : scratch[i++];
+        }
+        while (i < mid) order[k++] = scratch[i++];
+        while (j < to)  order[k++] = scratch[j++];
+    }
+
+    public void close() {
+        unsafe.freeMemory(ptr);
+    }
+}
@@ -63,17 +63,17 @@ public class SubcursorView<K1, K2, V> implements Cursorlike<K2, V> {
 
     public void setPosition(K1 k1) {
         // Bit of a hack here unfortunately...
-        final Database<?, ?> database = cursor.getDatabase();
+        final BufferedSchema<?> kBuffer = cursor.scratch().kBuffer;
         final int k1Sz = bitsToBytes(k1Schema.sizeBits(k1));
-        final long aBufferPtrNow = database.kBuffer.allocate(k1Sz);
+        final long aBufferPtrNow = kBuffer.allocate(k1Sz);
         try {
-            final BitStream bs = database.kBuffer.bs;
+            final BitStream bs = kBuffer.bs;
             bs.initialize(aBufferPtrNow + 2 * Unsafe.ADDRESS_SIZE, k1Sz);
             final long mark = bs.mark();
             k1Schema.write(bs, k1);
             k1IsMaximum = bs.incrementBitStreamFromMark(mark);
         } finally {
-            database.kBuffer.free(aBufferPtrNow);
+            kBuffer.free(aBufferPtrNow);
         }
 
         this.k1 = k1;
@@ -1,27 +1,67 @@
 package uk.co.omegaprime.thunder;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 // LMDB transactions may not span threads (except in the special case of MDB_NOTLS and read-only transactions,
 // which we don't have any special handling for), so this class is not thread safe
 public final class Transaction implements AutoCloseable {
+    final Environment env;
     final long txn;
+    final boolean isReadOnly;
     boolean handleFreed = false;
 
     // The generation number is incremented by 1 every time we update the database. This lets us decide
     // when the bufferPtr cached by a Cursor has potentially gone stale and must be fetched anew.
     long generation = 0;
 
-    Transaction(long txn) {
+    // No older than the snapshot this transaction reads, as far as we knew when it began, and exactly that snapshot for
+    // a write transaction (whose own writes will commit as snapshotAtLeast + 1). Only maintained (and only needed) once a
+    // BloomFilter or DecodedValueCache is attached: a filter built from a newer snapshot may wrongly rule out keys we
+    // can see, and a cached value is only good for snapshots at which it is known not to have changed.
+    long snapshotAtLeast;
+
+    // Non-null if this is a read-only transaction owned by a pool: finishing it just resets it and returns it to the pool
+    final ReadTransactionPool pool;
+    // Only used if pool is non-null: one of ReadTransactionPool.IN_USE, IDLE or DISCARDED. Unlike everything else here it
+    // may be changed by a thread other than the one using the transaction, namely one closing the pool.
+    final AtomicInteger poolState = new AtomicInteger(ReadTransactionPool.IN_USE);
+
+    Transaction(Environment env, long txn, boolean isReadOnly) {
+        this(env, txn, isReadOnly, null);
+    }
+
+    Transaction(Environment env, long txn, boolean isReadOnly, ReadTransactionPool pool) {
+        this.env = env;
         this.txn = txn;
+        this.isReadOnly = isReadOnly;
+        this.pool = pool;
     }
 
     public void abort() {
         handleFreed = true;
-        JNI.mdb_txn_abort(txn);
+        try {
+            if (pool != null) {
+                pool.release(this);
+            } else {
+                JNI.mdb_txn_abort(txn);
+            }
+        } finally {
+            env.transactionFinished(isReadOnly);
+        }
     }
 
     public void commit() {
-        handleFreed = true;
-        Util.checkErrorCode(JNI.mdb_txn_commit(txn));
+        if (pool != null) {
+            // Nothing to commit in a read-only transaction
+            abort();
+        } else {
+            handleFreed = true;
+            try {
+                Util.checkErrorCode(JNI.mdb_txn_commit(txn));
+            } finally {
+                env.transactionFinished(isReadOnly);
+            }
+        }
     }
 
     public void close() {
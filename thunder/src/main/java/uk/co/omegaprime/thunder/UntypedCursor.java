@@ -8,7 +8,8 @@ import static uk.co.omegaprime.thunder.Bits.unsafe;
 
 public class UntypedCursor implements AutoCloseable {
     protected final UntypedDatabase database;
-    protected final Transaction tx;
+    // Not final because read-only cursors can be renewed into a new transaction
+    protected Transaction tx;
     protected final long cursor;
 
     // Unlike the bufferPtrs in Database, it is important the the state of this var persists across calls:
@@ -20,14 +21,25 @@ public class UntypedCursor implements AutoCloseable {
     // operation (e.g. a put) that leaves the bufferPtr stale, but because *other* cursors can invalidate
     // bufferPtr as a side effect of their own updates this is a actually bit tricky to guarantee.
     protected final long bufferPtr = unsafe.allocateMemory(4 * Unsafe.ADDRESS_SIZE);
+    // Frees bufferPtr if the cursor is never closed. We can't do the same for the LMDB cursor, since by the time the GC
+    // notices it may belong to a transaction that has ended, but we do at least count it in ResourceMetrics.
+    private final ResourceCleaner cleaner;
     protected long bufferPtrGeneration;
     protected long references = 0;
+    // True while this cursor sits in its Environment's IdleCursors, waiting to be renewed
+    boolean idle;
+    // Bumped every time the cache hands this cursor to a new owner, so that a repeated close() by an earlier owner can
+    // be told apart from the current owner's close() and ignored
+    long handouts;
+    private boolean closed;
 
     public UntypedCursor(UntypedDatabase database, Transaction tx, long cursor) {
         this.database = database;
         this.tx = tx;
         this.cursor = cursor;
         this.bufferPtrGeneration = tx.generation - 1;
+        final long bufferPtr = this.bufferPtr;
+        this.cleaner = ResourceCleaner.register(this, ResourceMetrics.Kind.CURSOR, () -> unsafe.freeMemory(bufferPtr));
     }
 
     protected boolean isFound(int rc) {
@@ -57,10 +69,19 @@ public class UntypedCursor implements AutoCloseable {
     protected boolean refreshBufferPtr() { return bufferPtrGeneration == tx.generation || move(JNI.MDB_GET_CURRENT); }
 
     <K> boolean move(BufferedSchema<K> kBuffer, K k, int op) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
+        try {
+            return move(kBufferPtrNow, op);
+        } finally {
+            kBuffer.free(kBufferPtrNow);
+        }
+    }
+
+    // As above, but for a key that has already been encoded into the MDB_val at kBufferPtrNow
+    boolean move(long kBufferPtrNow, int op) {
         try {
             return isFound(JNI.mdb_cursor_get(cursor, kBufferPtrNow, bufferPtr + 2 * Unsafe.ADDRESS_SIZE, op));
         } finally {
@@ -68,7 +89,6 @@ public class UntypedCursor implements AutoCloseable {
             unsafe.putAddress(bufferPtr,                       unsafe.getAddress(kBufferPtrNow));
             unsafe.putAddress(bufferPtr + Unsafe.ADDRESS_SIZE, unsafe.getAddress(kBufferPtrNow + Unsafe.ADDRESS_SIZE));
             bufferPtrGeneration = tx.generation;
-            kBuffer.free(kBufferPtrNow);
         }
     }
 
@@ -78,6 +98,38 @@ public class UntypedCursor implements AutoCloseable {
         return (moveCeiling(kBuffer, k) && keyEquals(kBuffer, k)) || movePrevious();
     }
 
+    // Raw counterparts of getKey/moveCeiling/keyEquals for code that needs to remember a position without knowing how to
+    // decode it, e.g. to resume a scan in a later transaction. Keys compare as LMDB sorts them (memcmp, shortest first).
+    byte[] getKeyBytes() {
+        refreshBufferPtr();
+        final byte[] result = new byte[(int)unsafe.getAddress(bufferPtr)];
+        unsafe.copyMemory(null, unsafe.getAddress(bufferPtr + Unsafe.ADDRESS_SIZE), result, Unsafe.ARRAY_BYTE_BASE_OFFSET, result.length);
+        return result;
+    }
+
+    int compareKeyTo(byte[] key) {
+        refreshBufferPtr();
+        return Bits.compareBytes(unsafe.getAddress(bufferPtr + Unsafe.ADDRESS_SIZE), unsafe.getAddress(bufferPtr), key);
+    }
+
+    boolean moveCeiling(byte[] key) {
+        final long kBufferPtrNow = unsafe.allocateMemory(2 * Unsafe.ADDRESS_SIZE + Math.max(1, key.length));
+        try {
+            unsafe.putAddress(kBufferPtrNow,                       key.length);
+            unsafe.putAddress(kBufferPtrNow + Unsafe.ADDRESS_SIZE, kBufferPtrNow + 2 * Unsafe.ADDRESS_SIZE);
+            unsafe.copyMemory(key, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, kBufferPtrNow + 2 * Unsafe.ADDRESS_SIZE, key.length);
+            return move(kBufferPtrNow, JNI.MDB_SET_RANGE);
+        } finally {
+            unsafe.freeMemory(kBufferPtrNow);
+        }
+    }
+
+    boolean test(RawPredicate predicate) {
+        refreshBufferPtr();
+        return predicate.test(unsafe.getAddress(bufferPtr +     Unsafe.ADDRESS_SIZE), unsafe.getAddress(bufferPtr),
+                              unsafe.getAddress(bufferPtr + 3 * Unsafe.ADDRESS_SIZE), unsafe.getAddress(bufferPtr + 2 * Unsafe.ADDRESS_SIZE));
+    }
+
     protected <K> boolean keyEquals(BufferedSchema<K> kBuffer, K k) {
         return keyValueEquals(k, 0, kBuffer, false);
     }
@@ -93,7 +145,7 @@ public class UntypedCursor implements AutoCloseable {
     private <T> boolean keyValueEquals(T kv, int byteOffsetFromBufferPtr, BufferedSchema<T> buffer, boolean allowOurValueToBeAPrefix) {
         refreshBufferPtr();
 
-        final int szBits = buffer.getSchema().sizeBits(kv);
+        final int szBits = buffer.sizeBits(kv);
         final int sz = bitsToBytes(szBits);
 
         final long theirSz = unsafe.getAddress(bufferPtr + byteOffsetFromBufferPtr);
@@ -137,10 +189,15 @@ public class UntypedCursor implements AutoCloseable {
         return vBuffer.read(bufferPtr + 2 * Unsafe.ADDRESS_SIZE);
     }
 
+    public void getValueView(ValueView view) {
+        refreshBufferPtr();
+        view.reset(tx, bufferPtr + 2 * Unsafe.ADDRESS_SIZE);
+    }
+
     public <K, V> void put(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, V v) {
         refreshBufferPtr();
 
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         // You might think we could just reuse the existing key in bufferPtr (that we know to be correct).
         // Unfortunately we have to copy the key into a fresh buffer and give that to mdb_cursor_put instead.
@@ -149,6 +206,7 @@ public class UntypedCursor implements AutoCloseable {
         // In particular I found that trying to use them as an *input* to an update operation causes DB corruption.
         final long kBufferPtrNow = kBuffer.allocateAndCopy(bufferPtr);
         try {
+            database.keyWritten(tx, kBufferPtrNow);
             unsafe.putAddress(bufferPtr + 2 * Unsafe.ADDRESS_SIZE, vSz);
             Util.checkErrorCode(JNI.mdb_cursor_put(cursor, kBufferPtrNow, bufferPtr + 2 * Unsafe.ADDRESS_SIZE, JNI.MDB_CURRENT | JNI.MDB_RESERVE));
             vBuffer.writeDirect(unsafe.getAddress(bufferPtr + 3 * Unsafe.ADDRESS_SIZE), vSz, v);
@@ -160,38 +218,49 @@ public class UntypedCursor implements AutoCloseable {
 
     // This method has a lot in common with Database.put. LMDB actually just implements mdb_put using mdb_cursor_put, so this makes sense!
     public <K, V> void put(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
+        try {
+            put(kBufferPtrNow, vBuffer, v);
+        } finally {
+            kBuffer.free(kBufferPtrNow);
+        }
+    }
+
+    // As above, but for a key that has already been encoded into the MDB_val at kBufferPtrNow
+    <V> void put(long kBufferPtrNow, BufferedSchema<V> vBuffer, V v) {
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
+
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         unsafe.putAddress(vBufferPtrNow, vSz);
         try {
+            database.keyWritten(tx, kBufferPtrNow);
             Util.checkErrorCode(JNI.mdb_cursor_put(cursor, kBufferPtrNow, vBufferPtrNow, JNI.MDB_RESERVE));
             vBuffer.writeDirect(unsafe.getAddress(vBufferPtrNow + Unsafe.ADDRESS_SIZE), vSz, v);
         } finally {
             vBuffer.free(vBufferPtrNow);
-            kBuffer.free(kBufferPtrNow);
             tx.generation++;
         }
     }
 
     public <K, V> V putIfAbsent(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         unsafe.putAddress(vBufferPtrNow, vSz);
         try {
+            database.keyWritten(tx, kBufferPtrNow);
             final int rc = JNI.mdb_cursor_put(cursor, kBufferPtrNow, vBufferPtrNow, JNI.MDB_RESERVE | JNI.MDB_NOOVERWRITE);
             if (rc == JNI.MDB_KEYEXIST) {
                 return vBuffer.read(vBufferPtrNow);
             } else {
                 Util.checkErrorCode(rc);
-                vBuffer.write(unsafe.getAddress(vBufferPtrNow + Unsafe.ADDRESS_SIZE), vSz, v);
+                vBuffer.writeDirect(unsafe.getAddress(vBufferPtrNow + Unsafe.ADDRESS_SIZE), vSz, v);
                 return null;
             }
         } finally {
@@ -202,12 +271,42 @@ public class UntypedCursor implements AutoCloseable {
     }
 
     public void delete() {
+        database.keyRemoved(tx, this);
         Util.checkErrorCode(JNI.mdb_cursor_del(cursor, 0));
         tx.generation++;
     }
 
+    // Rebinds this cursor to a new read-only transaction (the old one may be live or finished), which is a lot
+    // cheaper than closing it and opening a new one.
+    public void renew(Transaction tx) {
+        if (!tx.isReadOnly || !this.tx.isReadOnly) {
+            throw new IllegalArgumentException("Only cursors in read-only transactions may be renewed");
+        }
+
+        Util.checkErrorCode(JNI.mdb_cursor_renew(tx.txn, cursor));
+        this.tx = tx;
+        this.bufferPtrGeneration = tx.generation - 1;
+    }
+
+    // Safe to call more than once, but only by the owner that the cursor was last handed to: wrappers that might outlive
+    // their ownership should remember handouts when they get the cursor and use close(long) instead
     public void close() {
-        unsafe.freeMemory(bufferPtr);
+        close(handouts);
+    }
+
+    void close(long handout) {
+        if (closed || idle || handout != handouts) return;
+
+        if (!tx.isReadOnly || !database.recycle(this)) {
+            closeNow();
+        }
+    }
+
+    void closeNow() {
+        if (closed) return;
+        closed = true;
+
+        cleaner.close();
         JNI.mdb_cursor_close(cursor);
     }
 }
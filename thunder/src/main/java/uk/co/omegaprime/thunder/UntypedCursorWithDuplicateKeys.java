@@ -35,8 +35,8 @@ public class UntypedCursorWithDuplicateKeys extends UntypedCursor {
     }
 
     private <K, V> boolean move(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v, int op) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
@@ -58,14 +58,15 @@ public class UntypedCursorWithDuplicateKeys extends UntypedCursor {
     // Override the base class because MDB_RESERVE doesn't really make sense with duplicates
     @Override
     public <K, V> void put(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         vBuffer.write(vBufferPtrNow, vSz, v);
         try {
+            database.keyWritten(tx, kBufferPtrNow);
             Util.checkErrorCode(JNI.mdb_cursor_put(cursor, kBufferPtrNow, vBufferPtrNow, 0));
         } finally {
             vBuffer.free(vBufferPtrNow);
@@ -77,14 +78,15 @@ public class UntypedCursorWithDuplicateKeys extends UntypedCursor {
     // Override the base class because MDB_RESERVE doesn't really make sense with duplicates
     @Override
     public <K, V> V putIfAbsent(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         vBuffer.write(vBufferPtrNow, vSz, v);
         try {
+            database.keyWritten(tx, kBufferPtrNow);
             final int rc = JNI.mdb_cursor_put(cursor, kBufferPtrNow, vBufferPtrNow, JNI.MDB_NODUPDATA);
             if (rc == JNI.MDB_KEYEXIST) {
                 return v;
@@ -105,7 +107,7 @@ public class UntypedCursorWithDuplicateKeys extends UntypedCursor {
     public <K, V> void put(BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, V v) {
         refreshBufferPtr();
 
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         // See the comment in Cursor.put that explains why we have to "needlessly" copy the key from
         // bufferPtr into a fresh buffer for the call to mdb_cursor_put.
@@ -113,6 +115,7 @@ public class UntypedCursorWithDuplicateKeys extends UntypedCursor {
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         vBuffer.write(vBufferPtrNow, vSz, v);
         try {
+            database.keyWritten(tx, kBufferPtrNow);
             Util.checkErrorCode(JNI.mdb_cursor_put(cursor, kBufferPtrNow, vBufferPtrNow, 0));
         } finally {
             vBuffer.free(vBufferPtrNow);
@@ -122,6 +125,7 @@ public class UntypedCursorWithDuplicateKeys extends UntypedCursor {
     }
 
     public void deleteAllOfKey() {
+        database.keyRemoved(tx, this);
         Util.checkErrorCode(JNI.mdb_cursor_del(cursor, JNI.MDB_NODUPDATA));
         tx.generation++;
     }
@@ -2,7 +2,10 @@ package uk.co.omegaprime.thunder;
 
 import sun.misc.Unsafe;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
 import static uk.co.omegaprime.thunder.Bits.unsafe;
@@ -16,40 +19,136 @@ public class UntypedDatabase {
         this.dbi = dbi; // NB: we never mdb_dbi_close. This should be safe, and avoids Database having to be AutoCloseable
     }
 
+    // Returns true if we took ownership of the cursor, which must not already be idle
+    boolean recycle(UntypedCursor cursor) {
+        return db.idleCursors.park(cursor);
+    }
+
+    UntypedCursor takeIdleCursor(Transaction tx) {
+        if (!tx.isReadOnly) return null;
+
+        final UntypedCursor cursor = db.idleCursors.take(this);
+        if (cursor == null) return null;
+
+        cursor.handouts++;
+        cursor.renew(tx);
+        return cursor;
+    }
+
+    // The number of items visible to the transaction. Cheap, since LMDB keeps a running count.
+    long entryCount(Transaction tx) {
+        final JNI.MDB_stat stat = new JNI.MDB_stat();
+        Util.checkErrorCode(JNI.mdb_stat(tx.txn, dbi, stat));
+        return stat.ms_entries;
+    }
+
     public UntypedCursor createCursor(Transaction tx) {
+        final UntypedCursor idle = takeIdleCursor(tx);
+        if (idle != null) return idle;
+
         final long[] cursorPtr = new long[1];
         Util.checkErrorCode(JNI.mdb_cursor_open(tx.txn, dbi, cursorPtr));
         return new UntypedCursor(this, tx, cursorPtr[0]);
     }
 
     public <K, V> void put(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
+        try {
+            put(tx, kBufferPtrNow, vBuffer, v);
+        } finally {
+            kBuffer.free(kBufferPtrNow);
+        }
+    }
+
+    // As above, but for a key that has already been encoded into the MDB_val at kBufferPtrNow
+    <V> void put(Transaction tx, long kBufferPtrNow, BufferedSchema<V> vBuffer, V v) {
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
+
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         unsafe.putAddress(vBufferPtrNow, vSz);
         try {
+            keyWritten(tx, kBufferPtrNow);
             Util.checkErrorCode(JNI.mdb_put(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow, JNI.MDB_RESERVE));
             assert(unsafe.getAddress(vBufferPtrNow) == vSz);
             vBuffer.writeDirect(unsafe.getAddress(vBufferPtrNow + Unsafe.ADDRESS_SIZE), vSz, v);
         } finally {
             vBuffer.free(vBufferPtrNow);
-            kBuffer.free(kBufferPtrNow);
             tx.generation++;
         }
     }
 
+    // As above, but for a value that has also already been encoded, into the MDB_val at vBufferPtrNow
+    void put(Transaction tx, long kBufferPtrNow, long vBufferPtrNow) {
+        try {
+            keyWritten(tx, kBufferPtrNow);
+            Util.checkErrorCode(JNI.mdb_put(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow, 0));
+        } finally {
+            tx.generation++;
+        }
+    }
+
+    // Every write that may add the key in the MDB_val at kBufferPtrNow, or change its value, must call this before the
+    // transaction commits (and, for the sake of an attached BloomFilter, before handing the key to LMDB) so that neither
+    // a BloomFilter nor a DecodedValueCache can answer for it wrongly. Cheap when neither is attached.
+    void keyWritten(Transaction tx, long kBufferPtrNow) {
+        keyWritten(tx, unsafe.getAddress(kBufferPtrNow + Unsafe.ADDRESS_SIZE), unsafe.getAddress(kBufferPtrNow));
+    }
+
+    // As above, for a key given as its encoded bytes
+    void keyWritten(Transaction tx, long kPtr, long kSz) {
+        final BloomFilter filter = db.bloomFilter(dbi);
+        if (filter != null) {
+            filter.keyAdded(kPtr, kSz);
+        }
+        final DecodedValueCache<?> cache = db.valueCache(dbi);
+        if (cache != null) {
+            cache.keyWritten(tx, kPtr, kSz);
+        }
+    }
+
+    // Likewise for every removal of the key in the MDB_val at kBufferPtrNow
+    void keyRemoved(Transaction tx, long kBufferPtrNow) {
+        final BloomFilter filter = db.bloomFilter(dbi);
+        if (filter != null) {
+            filter.keyRemoved();
+        }
+        final DecodedValueCache<?> cache = db.valueCache(dbi);
+        if (cache != null) {
+            cache.keyWritten(tx, unsafe.getAddress(kBufferPtrNow + Unsafe.ADDRESS_SIZE), unsafe.getAddress(kBufferPtrNow));
+        }
+    }
+
+    // As above, for the key a cursor is about to delete
+    void keyRemoved(Transaction tx, UntypedCursor cursor) {
+        if (db.bloomFilter(dbi) != null || db.valueCache(dbi) != null) {
+            cursor.refreshBufferPtr();
+            keyRemoved(tx, cursor.bufferPtr);
+        }
+    }
+
+    private boolean keyMightExist(Transaction tx, long kBufferPtrNow) {
+        final BloomFilter filter = db.bloomFilter(dbi);
+        return filter == null || filter.mightContain(tx, unsafe.getAddress(kBufferPtrNow + Unsafe.ADDRESS_SIZE), unsafe.getAddress(kBufferPtrNow));
+    }
+
+    <K, V> PutBatch<K, V> putBatch(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer) {
+        return new PutBatch<>(tx, this, kBuffer, vBuffer);
+    }
+
     public <K, V> V putIfAbsent(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
         final long vBufferPtrNow = vBuffer.allocate(vSz);
-        vBuffer.write(vBufferPtrNow, vSz, v);
+        // MDB_RESERVE only looks at the size: we write the value straight into the space it reserves
+        unsafe.putAddress(vBufferPtrNow, vSz);
         try {
+            keyWritten(tx, kBufferPtrNow);
             int rc = JNI.mdb_put(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow, JNI.MDB_RESERVE | JNI.MDB_NOOVERWRITE);
             if (rc == JNI.MDB_KEYEXIST) {
                 return vBuffer.read(vBufferPtrNow);
@@ -67,58 +166,117 @@ public class UntypedDatabase {
     }
 
     public <K> boolean remove(Transaction tx, BufferedSchema<K> kBuffer, K k) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
+        try {
+            return remove(tx, kBufferPtrNow);
+        } finally {
+            kBuffer.free(kBufferPtrNow);
+        }
+    }
+
+    // As above, but for a key that has already been encoded into the MDB_val at kBufferPtrNow
+    boolean remove(Transaction tx, long kBufferPtrNow) {
         try {
             int rc = JNI.mdb_del(tx.txn, dbi, kBufferPtrNow, 0);
             if (rc == JNI.MDB_NOTFOUND) {
                 return false;
             } else {
                 Util.checkErrorCode(rc);
+                keyRemoved(tx, kBufferPtrNow);
                 return true;
             }
         } finally {
-            kBuffer.free(kBufferPtrNow);
             tx.generation++;
         }
     }
 
     public <K, V> V get(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
+        try {
+            return get(tx, kBufferPtrNow, vBuffer);
+        } finally {
+            kBuffer.free(kBufferPtrNow);
+        }
+    }
+
+    // As above, but for a key that has already been encoded into the MDB_val at kBufferPtrNow
+    <V> V get(Transaction tx, long kBufferPtrNow, BufferedSchema<V> vBuffer) {
         final long vBufferPtrNow = vBuffer.allocate(0);
         try {
-            int rc = JNI.mdb_get(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow);
-            if (rc == JNI.MDB_NOTFOUND) {
-                return null;
-            } else {
-                Util.checkErrorCode(rc);
-                return vBuffer.read(vBufferPtrNow);
+            return get(tx, kBufferPtrNow, vBufferPtrNow) ? vBuffer.read(vBufferPtrNow) : null;
+        } finally {
+            vBuffer.free(vBufferPtrNow);
+        }
+    }
+
+    // As above, but just leaves the MDB_val for the value (if any) at vBufferPtrNow rather than decoding it
+    boolean get(Transaction tx, long kBufferPtrNow, long vBufferPtrNow) {
+        if (!keyMightExist(tx, kBufferPtrNow)) {
+            return false;
+        }
+
+        int rc = JNI.mdb_get(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow);
+        if (rc == JNI.MDB_NOTFOUND) {
+            return false;
+        } else {
+            Util.checkErrorCode(rc);
+            return true;
+        }
+    }
+
+    // As get, but rather than decoding the value points the view at it. Returns false if the key is not present.
+    public <K, V> boolean getView(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, ValueView view) {
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+
+        final long kBufferPtrNow = kBuffer.allocate(kSz);
+        kBuffer.write(kBufferPtrNow, kSz, k);
+        final long vBufferPtrNow = vBuffer.allocate(0);
+        try {
+            if (!get(tx, kBufferPtrNow, vBufferPtrNow)) {
+                return false;
             }
+            view.reset(tx, vBufferPtrNow);
+            return true;
         } finally {
             vBuffer.free(vBufferPtrNow);
             kBuffer.free(kBufferPtrNow);
         }
     }
 
+    // Values are returned in the same order as the keys, with null for any key that is not present
+    public <K, V> List<V> getAll(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K[] ks) {
+        final List<V> result = new ArrayList<>(Collections.nCopies(ks.length, null));
+        try (SortedKeys keys = new SortedKeys(kBuffer, ks)) {
+            final long valuesPtr = unsafe.allocateMemory(Math.max(1, (long)keys.count * 2 * Unsafe.ADDRESS_SIZE));
+            try {
+                Util.checkErrorCode(JNI.thunder_get_batch(tx.txn, dbi, keys.ptr, valuesPtr, keys.count));
+                for (int i = 0; i < keys.count; i++) {
+                    final long vBufferPtrNow = valuesPtr + (long)i * 2 * Unsafe.ADDRESS_SIZE;
+                    if (unsafe.getAddress(vBufferPtrNow + Unsafe.ADDRESS_SIZE) != 0) {
+                        result.set(keys.order[i], vBuffer.read(vBufferPtrNow));
+                    }
+                }
+            } finally {
+                unsafe.freeMemory(valuesPtr);
+            }
+        }
+        return result;
+    }
+
     public <K, V> boolean contains(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
         final long vBufferPtrNow = vBuffer.allocate(0);
         try {
-            int rc = JNI.mdb_get(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow);
-            if (rc == JNI.MDB_NOTFOUND) {
-                return false;
-            } else {
-                Util.checkErrorCode(rc);
-                return true;
-            }
+            return get(tx, kBufferPtrNow, vBufferPtrNow);
         } finally {
             vBuffer.free(vBufferPtrNow);
             kBuffer.free(kBufferPtrNow);
@@ -196,4 +354,9 @@ public class UntypedDatabase {
             }
         };
     }
+
+    public <K, V> RangeIterator<K, V> range(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer,
+                                            K from, boolean fromInclusive, K to, boolean toInclusive, Direction direction) {
+        return new RangeIterator<>(this, tx, kBuffer, vBuffer, from, fromInclusive, to, toInclusive, direction);
+    }
 }
@@ -1,6 +1,9 @@
 package uk.co.omegaprime.thunder;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import static uk.co.omegaprime.thunder.Bits.bitsToBytes;
 
@@ -10,6 +13,9 @@ public class UntypedDatabaseWithDuplicateKeys extends UntypedDatabase {
     }
 
     public UntypedCursorWithDuplicateKeys createCursor(Transaction tx) {
+        final UntypedCursor idle = takeIdleCursor(tx);
+        if (idle != null) return (UntypedCursorWithDuplicateKeys)idle;
+
         final long[] cursorPtr = new long[1];
         Util.checkErrorCode(JNI.mdb_cursor_open(tx.txn, dbi, cursorPtr));
         return new UntypedCursorWithDuplicateKeys(this, tx, cursorPtr[0]);
@@ -18,14 +24,15 @@ public class UntypedDatabaseWithDuplicateKeys extends UntypedDatabase {
     // Override the base class because MDB_RESERVE doesn't really make sense with MDB_DUPSORT
     @Override
     public <K, V>void put(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         vBuffer.write(vBufferPtrNow, vSz, v);
         try {
+            keyWritten(tx, kBufferPtrNow);
             Util.checkErrorCode(JNI.mdb_put(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow, 0));
         } finally {
             vBuffer.free(vBufferPtrNow);
@@ -37,14 +44,15 @@ public class UntypedDatabaseWithDuplicateKeys extends UntypedDatabase {
     // Override because MDB_RESERVE doesn't work, and need to use MDB_NODUPDATA rather than MDB_NOOVERWRITE
     @Override
     public <K, V> V putIfAbsent(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
         final long vBufferPtrNow = vBuffer.allocate(vSz);
         vBuffer.write(vBufferPtrNow, vSz, v);
         try {
+            keyWritten(tx, kBufferPtrNow);
             final int rc = JNI.mdb_put(tx.txn, dbi, kBufferPtrNow, vBufferPtrNow, JNI.MDB_NODUPDATA);
             if (rc == JNI.MDB_KEYEXIST) {
                 return v;
@@ -60,8 +68,8 @@ public class UntypedDatabaseWithDuplicateKeys extends UntypedDatabase {
     }
 
     public <K, V> boolean remove(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K k, V v) {
-        final int kSz = bitsToBytes(kBuffer.getSchema().sizeBits(k));
-        final int vSz = bitsToBytes(vBuffer.getSchema().sizeBits(v));
+        final int kSz = bitsToBytes(kBuffer.sizeBits(k));
+        final int vSz = bitsToBytes(vBuffer.sizeBits(v));
 
         final long kBufferPtrNow = kBuffer.allocate(kSz);
         kBuffer.write(kBufferPtrNow, kSz, k);
@@ -73,6 +81,7 @@ public class UntypedDatabaseWithDuplicateKeys extends UntypedDatabase {
                 return false;
             } else {
                 Util.checkErrorCode(rc);
+                keyRemoved(tx, kBufferPtrNow);
                 return true;
             }
         } finally {
@@ -86,8 +95,26 @@ public class UntypedDatabaseWithDuplicateKeys extends UntypedDatabase {
         // Unfortunately when using MDB_DUPSORT mdb_get ignores the data parameter and just
         // returns the first value associated with a key.
         try (UntypedCursorWithDuplicateKeys uc = createCursor(tx)) {
-            return new CursorWithDuplicateKeys<>(new DatabaseWithDuplicateKeys<>(this, kBuffer, vBuffer), createCursor(tx)).moveTo(k, v);
+            return new CursorWithDuplicateKeys<>(new DatabaseWithDuplicateKeys<>(this, kBuffer, vBuffer), uc).moveTo(k, v);
+        }
+    }
+
+    // Like getAll, but returns every value associated with each key rather than just the first
+    public <K, V> List<List<V>> getAllDuplicates(Transaction tx, BufferedSchema<K> kBuffer, BufferedSchema<V> vBuffer, K[] ks) {
+        final List<List<V>> result = new ArrayList<>(Collections.nCopies(ks.length, null));
+        try (SortedKeys keys = new SortedKeys(kBuffer, ks);
+             UntypedCursorWithDuplicateKeys cursor = createCursor(tx)) {
+            for (int i = 0; i < keys.count; i++) {
+                final List<V> values = new ArrayList<>();
+                if (cursor.move(keys.val(i), JNI.MDB_SET_KEY)) {
+                    do {
+                        values.add(cursor.getValue(vBuffer));
+                    } while (cursor.moveNextOfKey());
+                }
+                result.set(keys.order[i], values);
+            }
         }
+        return result;
     }
 
     // Override the base class so that we don't get duplicate keys in the iterator
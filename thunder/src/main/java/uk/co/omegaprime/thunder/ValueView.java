@@ -0,0 +1,78 @@
+package uk.co.omegaprime.thunder;
+
+import sun.misc.Unsafe;
+import uk.co.omegaprime.thunder.schema.DoubleSchema;
+import uk.co.omegaprime.thunder.schema.FloatSchema;
+import uk.co.omegaprime.thunder.schema.Schema;
+
+import static uk.co.omegaprime.thunder.Bits.bigEndian;
+import static uk.co.omegaprime.thunder.Bits.swapSign;
+import static uk.co.omegaprime.thunder.Bits.unsafe;
+
+// A flyweight over a value as it sits in the memory map, for when decoding the whole thing into a Java object would be
+// wasteful (e.g. you only want one field of a large value). The typed accessors take byte offsets into the value and
+// understand the same encodings as the corresponding schemas (so getInt matches IntegerSchema, getDouble matches DoubleSchema
+// etc.). For values that aren't byte aligned, bitStream() gives you a BitStream positioned at the start of the value.
+//
+// As the LMDB docs say, pointers into the map are only good until the next update in the transaction, or the end
+// of the transaction. Rather than let you read garbage we check Transaction.generation on every access and throw
+// IllegalStateException if the view has gone stale. Each Cursor or Database only has one view, which is reused
+// (and hence repointed) by the next getValueView/getView, so copy anything you need out of it before then.
+public final class ValueView {
+    private final BitStream bs = new BitStream();
+
+    private Transaction tx;
+    private long generation;
+    private long ptr;
+    private long size;
+
+    ValueView() {}
+
+    void reset(Transaction tx, long mdbValPtr) {
+        this.tx = tx;
+        this.generation = tx.generation;
+        this.size = unsafe.getAddress(mdbValPtr);
+        this.ptr = unsafe.getAddress(mdbValPtr + Unsafe.ADDRESS_SIZE);
+    }
+
+    public boolean isValid() {
+        return tx != null && !tx.handleFreed && tx.generation == generation;
+    }
+
+    private long checkedPtr(long offset, int width) {
+        if (!isValid()) {
+            throw new IllegalStateException("The value has been invalidated by an update or by the end of its transaction");
+        }
+        if (offset < 0 || offset + width > size) {
+            throw new IndexOutOfBoundsException("Cannot read " + width + " bytes at offset " + offset + " from a value of " + size + " bytes");
+        }
+        return ptr + offset;
+    }
+
+    // Size of the value in bytes
+    public long size() { checkedPtr(0, 0); return size; }
+
+    public byte    getByte(long offset)    { return unsafe.getByte(checkedPtr(offset, 1)); }
+    public boolean getBoolean(long offset) { return (getByte(offset) & 0x80) != 0; }
+    public int     getInt(long offset)     { return swapSign(bigEndian(unsafe.getInt(checkedPtr(offset, 4)))); }
+    public long    getLong(long offset)    { return swapSign(bigEndian(unsafe.getLong(checkedPtr(offset, 8)))); }
+    public int     getUnsignedInt(long offset)  { return bigEndian(unsafe.getInt(checkedPtr(offset, 4))); }
+    public long    getUnsignedLong(long offset) { return bigEndian(unsafe.getLong(checkedPtr(offset, 8))); }
+    public float   getFloat(long offset)   { return Float.intBitsToFloat(FloatSchema.fromDB(bigEndian(unsafe.getInt(checkedPtr(offset, 4))))); }
+    public double  getDouble(long offset)  { return Double.longBitsToDouble(DoubleSchema.fromDB(bigEndian(unsafe.getLong(checkedPtr(offset, 8))))); }
+
+    public void getBytes(long offset, byte[] dst, int dstOffset, int length) {
+        unsafe.copyMemory(null, checkedPtr(offset, length), dst, Unsafe.ARRAY_BYTE_BASE_OFFSET + dstOffset, length);
+    }
+
+    // A stream over the whole value. Only valid for as long as the view is.
+    public BitStream bitStream() {
+        bs.initialize(checkedPtr(0, 0), (int)size);
+        return bs;
+    }
+
+    // Decodes the whole value, as getValue would have done in the first place
+    public <T> T read(Schema<T> schema) {
+        return schema.read(bitStream());
+    }
+}
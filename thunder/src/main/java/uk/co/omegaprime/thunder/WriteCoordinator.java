@@ -0,0 +1,210 @@
+package uk.co.omegaprime.thunder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// LMDB only admits one writer at a time, and every commit of a durable environment costs an fsync. Rather than having
+// many threads contend for the write lock, they can submit operations here: a single writer thread applies as many of
+// them as it can find (up to a limit on count and on how long the first of them has been waiting) in one transaction,
+// commits once, and then completes each operation's future.
+//
+// Operations run on the writer thread, so they may freely use Databases that other threads use too. However, an
+// operation may be run more than once: if one operation in a batch throws, the transaction is aborted, that operation's
+// future fails, and the rest of the batch is run again in a fresh transaction. Likewise, if the batch fills the map then
+// it is grown (see MapSizeGrowthPolicy) and the whole batch run again. So operations should have no side effects other
+// than on the transaction they are given.
+public final class WriteCoordinator implements AutoCloseable {
+    private static final class Operation<T> {
+        final Function<Transaction, T> function;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long submittedNanos = System.nanoTime();
+        T result;
+
+        Operation(Function<Transaction, T> function) {
+            this.function = function;
+        }
+
+        void apply(Transaction tx) {
+            result = function.apply(tx);
+        }
+
+        void complete() {
+            future.complete(result);
+        }
+    }
+
+    // Tells the writer thread to finish up once it has drained everything queued before it
+    private static final Operation<Void> POISON = new Operation<>(tx -> null);
+
+    private final Environment env;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+
+    private final LinkedBlockingQueue<Operation<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // Only ever updated by the writer thread
+    private volatile long batches;
+    private volatile long operations;
+
+    WriteCoordinator(Environment env, int maxBatchSize, long maxBatchDelayNanos) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batches must be allowed to hold at least one operation");
+        }
+
+        this.env = env;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = maxBatchDelayNanos;
+        this.thread = new Thread(this::run, "thunder-write-coordinator");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Don't wait on the returned future while holding a transaction of this Environment. If the batch fills the map, the
+    // writer thread can't grow it while that transaction is open, so the operation would fail with MDB_MAP_FULL.
+    public <T> CompletableFuture<T> submit(Function<Transaction, T> function) {
+        final Operation<T> operation = new Operation<>(function);
+        // Check after enqueuing so that we can't race with close() and leave an operation that will never complete
+        queue.add(operation);
+        if (closed && queue.remove(operation)) {
+            operation.future.completeExceptionally(new IllegalStateException("The write coordinator has been closed"));
+        }
+        return operation.future;
+    }
+
+    private void run() {
+        final List<Operation<?>> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                final Operation<?> first = queue.take();
+                if (first == POISON) break;
+                batch.add(first);
+
+                final long deadline = first.submittedNanos + maxBatchDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    // Anything already queued is free to take, even once the deadline has passed
+                    Operation<?> next = queue.poll();
+                    if (next == null) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) break;
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                    }
+                    if (next == POISON) {
+                        stopping = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+
+        // We only get here after close(), so no more operations can arrive: fail anything left behind by an interrupt
+        for (Operation<?> operation : queue) {
+            operation.future.completeExceptionally(new IllegalStateException("The write coordinator has been closed"));
+        }
+    }
+
+    private static boolean isMapFull(Throwable t) {
+        return t instanceof LMDBException && ((LMDBException)t).getErrorCode() == LMDBException.MAP_FULL;
+    }
+
+    private void commit(List<Operation<?>> batch) {
+        while (!batch.isEmpty()) {
+            final long mapSize;
+            final Transaction tx;
+            try {
+                mapSize = env.mapSize();
+                tx = env.transaction(false);
+            } catch (RuntimeException e) {
+                for (Operation<?> operation : batch) {
+                    operation.future.completeExceptionally(e);
+                }
+                return;
+            }
+
+            int failed = -1;
+            Throwable failure = null;
+            boolean committed = false;
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        batch.get(i).apply(tx);
+                    } catch (Throwable t) {
+                        failed = i;
+                        failure = t;
+                        break;
+                    }
+                }
+
+                if (failed < 0) {
+                    tx.commit();
+                    committed = true;
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                tx.close();
+            }
+
+            if (committed) {
+                batches++;
+                operations += batch.size();
+                for (Operation<?> operation : batch) {
+                    operation.complete();
+                }
+                return;
+            }
+
+            // If we filled the map then it isn't any one operation's fault: just make room and run everything again. If
+            // we can't make room then none of them can go in, so they all fail with the MDB_MAP_FULL.
+            if (isMapFull(failure)) {
+                if (env.growMapSize(mapSize)) {
+                    continue;
+                }
+                failed = -1;
+            }
+
+            if (failed < 0) {
+                // The commit itself failed, or the map is full
+                for (Operation<?> operation : batch) {
+                    operation.future.completeExceptionally(failure);
+                }
+                return;
+            }
+
+            // The transaction was aborted, so throw away the failed operation and run everything else again
+            batch.remove(failed).future.completeExceptionally(failure);
+        }
+    }
+
+    // Number of transactions committed so far
+    public long batches() { return batches; }
+    // Number of operations committed so far: operations() / batches() is the average batch size
+    public long operations() { return operations; }
+
+    // Commits everything submitted so far and stops the writer thread
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        queue.add(POISON);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package uk.co.omegaprime.thunder.schema;
+
+import uk.co.omegaprime.thunder.BitStream;
+
+// A single bit, so false sorts before true. Anything that follows it is no longer byte aligned.
+public class BooleanSchema implements Schema<Boolean> {
+    public static BooleanSchema INSTANCE = new BooleanSchema();
+
+    public Boolean read(BitStream bs) { return bs.getBoolean(); }
+    public int maximumSizeBits() { return 1; }
+    public boolean isByteAligned() { return false; }
+    public int sizeBits(Boolean x) { return maximumSizeBits(); }
+    public void write(BitStream bs, Boolean x) { bs.putBoolean(x); }
+}
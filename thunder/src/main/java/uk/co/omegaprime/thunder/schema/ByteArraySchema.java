@@ -2,25 +2,23 @@ package uk.co.omegaprime.thunder.schema;
 
 import uk.co.omegaprime.thunder.BitStream;
 
+import java.util.Arrays;
+
 public class ByteArraySchema implements Schema<byte[]> {
     public static Schema<byte[]> INSTANCE = new ByteArraySchema();
 
     public byte[] read(BitStream bs) {
-        final long mark = bs.mark();
+        // Every element is a 1 bit followed by the byte, so we can pick both up with one peekBits
+        byte[] xs = bs.scratch(0);
         int count = 0;
-        while (bs.getBoolean()) {
-            count++;
-            bs.getByte();
-        }
-        bs.reset(mark);
-
-        final byte[] xs = new byte[count];
-        for (int i = 0; i < xs.length; i++) {
-            if (!bs.getBoolean()) throw new IllegalStateException("ByteArraySchema.read: impossible");
-            xs[i] = bs.getByte();
+        int bits;
+        while (((bits = bs.peekBits(9)) & 0x100) != 0) {
+            if (count == xs.length) xs = bs.growScratch(xs, count);
+            xs[count++] = (byte)bits;
+            bs.advanceBits(9);
         }
-        if (bs.getBoolean()) throw new IllegalStateException("ByteArraySchema.read: impossible");
-        return xs;
+        bs.advanceBits(1);
+        return Arrays.copyOf(xs, count);
     }
 
     public int maximumSizeBits() { return -1; }
@@ -0,0 +1,27 @@
+package uk.co.omegaprime.thunder.schema;
+
+import uk.co.omegaprime.thunder.BitStream;
+
+// A compact byte-aligned alternative to ByteArraySchema for values. It doesn't preserve order, so don't use it for keys:
+// see BytesKeySchema for that.
+public class BytesValueSchema extends LengthPrefixedBytesSchema<byte[]> {
+    public static BytesValueSchema INSTANCE = new BytesValueSchema();
+
+    @Override
+    public byte[] read(BitStream bs) {
+        final byte[] xs = new byte[getVarint(bs)];
+        bs.getBytes(xs, 0, xs.length);
+        return xs;
+    }
+
+    @Override
+    public int sizeBits(byte[] x) {
+        return prefixedSizeBits(x.length);
+    }
+
+    @Override
+    public void write(BitStream bs, byte[] x) {
+        putVarint(bs, x.length);
+        bs.putBytes(x, 0, x.length);
+    }
+}
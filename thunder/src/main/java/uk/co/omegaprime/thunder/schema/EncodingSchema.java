@@ -0,0 +1,58 @@
+package uk.co.omegaprime.thunder.schema;
+
+import uk.co.omegaprime.thunder.BitStream;
+
+import java.util.function.Function;
+
+// A schema that has to do some real work (e.g. UTF-8 encoding a string) before it can even say how big a value
+// will be. Every write to the database asks for sizeBits(x) and then write(x), so such schemas would otherwise do
+// that work twice: implementing this interface lets the database layer encode once and hang on to the result E
+// between the two calls.
+//
+// encode should be a pure function of x, and the encoding must not be used after x has been mutated.
+public interface EncodingSchema<T, E> extends Schema<T> {
+    E encode(T x);
+    int encodedSizeBits(E encoded);
+    void writeEncoded(BitStream bs, E encoded);
+
+    @Override
+    default int sizeBits(T x) {
+        return encodedSizeBits(encode(x));
+    }
+
+    @Override
+    default void write(BitStream bs, T x) {
+        writeEncoded(bs, encode(x));
+    }
+
+    // Mapping over an encoding schema should also only apply f once per value
+    @Override
+    default <U> EncodingSchema<U, E> map(Function<U, T> f, Function<T, U> g) {
+        final EncodingSchema<T, E> parent = this;
+        return new EncodingSchema<U, E>() {
+            public U read(BitStream bs) {
+                return g.apply(parent.read(bs));
+            }
+
+            public int maximumSizeBits() {
+                return parent.maximumSizeBits();
+            }
+
+            public boolean isByteAligned() {
+                return parent.isByteAligned();
+            }
+
+            public E encode(U x) {
+                return parent.encode(f.apply(x));
+            }
+
+            public int encodedSizeBits(E encoded) {
+                return parent.encodedSizeBits(encoded);
+            }
+
+            public void writeEncoded(BitStream bs, E encoded) {
+                parent.writeEncoded(bs, encoded);
+            }
+        };
+    }
+}
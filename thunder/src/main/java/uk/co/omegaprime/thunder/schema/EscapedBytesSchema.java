@@ -0,0 +1,89 @@
+package uk.co.omegaprime.thunder.schema;
+
+import uk.co.omegaprime.thunder.BitStream;
+
+// Byte strings encoded so that their encodings sort just like the unencoded bytes (unsigned, shorter prefixes first),
+// but without ByteArraySchema's continuation bit before every byte: each 0x00 is escaped as 0x00 0xFF and the whole
+// thing is terminated by 0x00 0x01. Since the encoding is byte aligned we can move the bytes between the stream and
+// the heap with copyMemory, scanning for zeroes a word at a time.
+abstract class EscapedBytesSchema<T> implements Schema<T> {
+    static final byte ESCAPE = (byte)0xFF;
+    static final byte TERMINATOR = (byte)0x01;
+
+    // Interpret the first length bytes of the array. The array is scratch space, so don't hang on to it.
+    abstract T fromBytes(byte[] bytes, int length);
+
+    @Override
+    public T read(BitStream bs) {
+        byte[] bytes = bs.scratch(0);
+        int count = 0;
+        while (true) {
+            // Corrupt (or wrongly migrated) data mustn't make us read past the end of the value: as well as the run there
+            // must be room for the 0x00 and the byte after it
+            int run = bs.nextZeroByteOffset();
+            if (run < 0) {
+                // Not byte aligned, so we'll have to go slowly
+                run = 0;
+                final long mark = bs.mark();
+                final long maximumRemainingBits = bs.maximumRemainingBits();
+                while (true) {
+                    if ((run + 2) * 8L > maximumRemainingBits) {
+                        throw new IllegalStateException("EscapedBytesSchema.read(): missing terminator");
+                    }
+                    if (bs.getByte() == 0) break;
+                    run++;
+                }
+                bs.reset(mark);
+            } else if (run + 2 > bs.remainingBytes()) {
+                throw new IllegalStateException("EscapedBytesSchema.read(): missing terminator");
+            }
+
+            while (count + run + 1 > bytes.length) bytes = bs.growScratch(bytes, count);
+            bs.getBytes(bytes, count, run);
+            count += run;
+
+            bs.getByte(); // The 0x00 itself
+            final byte next = bs.getByte();
+            if (next == TERMINATOR) {
+                return fromBytes(bytes, count);
+            } else if (next == ESCAPE) {
+                bytes[count++] = 0;
+            } else {
+                throw new IllegalStateException("EscapedBytesSchema.read(): bad escape sequence 0x00 " + next);
+            }
+        }
+    }
+
+    @Override
+    public int maximumSizeBits() {
+        return -1;
+    }
+
+    @Override
+    public boolean isByteAligned() {
+        return true;
+    }
+
+    static int escapedSizeBits(byte[] xs) {
+        int size = xs.length + 2;
+        for (byte x : xs) {
+            if (x == 0) size++;
+        }
+        return size * 8;
+    }
+
+    static void writeEscaped(BitStream bs, byte[] xs) {
+        int from = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (xs[i] == 0) {
+                bs.putBytes(xs, from, i - from);
+                bs.putByte((byte)0);
+                bs.putByte(ESCAPE);
+                from = i + 1;
+            }
+        }
+        bs.putBytes(xs, from, xs.length - from);
+        bs.putByte((byte)0);
+        bs.putByte(TERMINATOR);
+    }
+}
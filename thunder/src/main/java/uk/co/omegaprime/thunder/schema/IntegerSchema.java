@@ -9,6 +9,7 @@ public class IntegerSchema implements Schema<Integer> {
 
     public Integer read(BitStream bs) { return swapSign(bs.getInt()); }
     public int maximumSizeBits() { return Integer.BYTES * 8; }
+    public boolean isByteAligned() { return true; }
     public int sizeBits(Integer x) { return maximumSizeBits(); }
     public void write(BitStream bs, Integer x) { bs.putInt(swapSign(x)); }
 }
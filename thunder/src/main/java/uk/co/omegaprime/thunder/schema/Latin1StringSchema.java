@@ -2,9 +2,13 @@ package uk.co.omegaprime.thunder.schema;
 
 import uk.co.omegaprime.thunder.BitStream;
 
+import java.nio.charset.Charset;
+
 public class Latin1StringSchema implements Schema<String> {
     public static Latin1StringSchema INSTANCE = new Latin1StringSchema();
 
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
     private final int maximumLength;
 
     public Latin1StringSchema() { this(-1); }
@@ -12,21 +16,17 @@ public class Latin1StringSchema implements Schema<String> {
 
     @Override
     public String read(BitStream bs) {
-        final long mark = bs.mark();
+        // Every character is a 1 bit followed by the byte, so we can pick both up with one peekBits
+        byte[] cs = bs.scratch(0);
         int count = 0;
-        while (bs.getBoolean()) {
-            count++;
-            bs.getByte();
-        }
-        bs.reset(mark);
-
-        final char[] cs = new char[count];
-        for (int i = 0; i < cs.length; i++) {
-            if (!bs.getBoolean()) throw new IllegalStateException("Latin1StringSchema.read: impossible");
-            cs[i] = (char)bs.getByte();
+        int bits;
+        while (((bits = bs.peekBits(9)) & 0x100) != 0) {
+            if (count == cs.length) cs = bs.growScratch(cs, count);
+            cs[count++] = (byte)bits;
+            bs.advanceBits(9);
         }
-        if (bs.getBoolean()) throw new IllegalStateException("Latin1StringSchema.read: impossible");
-        return new String(cs);
+        bs.advanceBits(1);
+        return new String(cs, 0, count, LATIN1);
     }
 
     @Override
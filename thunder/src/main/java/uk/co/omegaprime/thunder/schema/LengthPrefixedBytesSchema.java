@@ -0,0 +1,48 @@
+package uk.co.omegaprime.thunder.schema;
+
+import uk.co.omegaprime.thunder.BitStream;
+
+// Byte strings prefixed with their length as a varint (7 bits per byte, least significant group first, high bit set on
+// all but the last byte). This doesn't sort sensibly, so is only suitable for values, but it is as compact as it gets and
+// lets us read the bytes with a single copyMemory.
+abstract class LengthPrefixedBytesSchema<T> implements Schema<T> {
+    @Override
+    public int maximumSizeBits() {
+        return -1;
+    }
+
+    @Override
+    public boolean isByteAligned() {
+        return true;
+    }
+
+    static int varintSizeBytes(int x) {
+        int size = 1;
+        while ((x >>>= 7) != 0) size++;
+        return size;
+    }
+
+    static void putVarint(BitStream bs, int x) {
+        while ((x & ~0x7F) != 0) {
+            bs.putByte((byte)((x & 0x7F) | 0x80));
+            x >>>= 7;
+        }
+        bs.putByte((byte)x);
+    }
+
+    static int getVarint(BitStream bs) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = bs.getByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("LengthPrefixedBytesSchema.getVarint(): varint too long");
+    }
+
+    static int prefixedSizeBits(int length) {
+        return (varintSizeBytes(length) + length) * 8;
+    }
+}
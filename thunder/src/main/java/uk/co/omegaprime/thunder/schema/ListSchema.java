@@ -7,14 +7,14 @@ import java.util.List;
 
 public class ListSchema {
     public static <T> Schema<List<T>> of(Schema<T> schema) {
+        if (schema instanceof EncodingSchema) {
+            return ofEncoding((EncodingSchema<T, ?>)schema);
+        }
+
         return new Schema<List<T>>() {
             @Override
             public List<T> read(BitStream bs) {
-                final ArrayList<T> xs = new ArrayList<>();
-                while (bs.getBoolean()) {
-                    xs.add(schema.read(bs));
-                }
-                return xs;
+                return readList(schema, bs);
             }
 
             @Override
@@ -24,7 +24,8 @@ public class ListSchema {
 
             @Override
             public int sizeBits(List<T> xs) {
-                int size = 0;
+                // Each element is preceded by a 1 bit, and the list is terminated by a 0 bit
+                int size = xs.size() + 1;
                 for (T x : xs) {
                     size += schema.sizeBits(x);
                 }
@@ -41,4 +42,54 @@ public class ListSchema {
             }
         };
     }
+
+    // Encode each element once, rather than once to size it and once to write it
+    private static <T, E> Schema<List<T>> ofEncoding(EncodingSchema<T, E> schema) {
+        return new EncodingSchema<List<T>, List<E>>() {
+            @Override
+            public List<T> read(BitStream bs) {
+                return readList(schema, bs);
+            }
+
+            @Override
+            public int maximumSizeBits() {
+                return -1;
+            }
+
+            @Override
+            public List<E> encode(List<T> xs) {
+                final List<E> encoded = new ArrayList<>(xs.size());
+                for (T x : xs) {
+                    encoded.add(schema.encode(x));
+                }
+                return encoded;
+            }
+
+            @Override
+            public int encodedSizeBits(List<E> encoded) {
+                int size = encoded.size() + 1;
+                for (E e : encoded) {
+                    size += schema.encodedSizeBits(e);
+                }
+                return size;
+            }
+
+            @Override
+            public void writeEncoded(BitStream bs, List<E> encoded) {
+                for (E e : encoded) {
+                    bs.putBoolean(true);
+                    schema.writeEncoded(bs, e);
+                }
+                bs.putBoolean(false);
+            }
+        };
+    }
+
+    private static <T> List<T> readList(Schema<T> schema, BitStream bs) {
+        final ArrayList<T> xs = new ArrayList<>();
+        while (bs.getBoolean()) {
+            xs.add(schema.read(bs));
+        }
+        return xs;
+    }
 }
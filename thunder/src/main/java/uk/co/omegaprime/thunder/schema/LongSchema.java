@@ -9,6 +9,7 @@ public class LongSchema implements Schema<Long> {
 
     public Long read(BitStream bs) { return swapSign(bs.getLong()); }
     public int maximumSizeBits() { return Long.BYTES * 8; }
+    public boolean isByteAligned() { return true; }
     public int sizeBits(Long x) { return maximumSizeBits(); }
     public void write(BitStream bs, Long x) { bs.putLong(swapSign(x)); }
 }
@@ -5,40 +5,32 @@ import uk.co.omegaprime.thunder.BitStream;
 import java.nio.charset.Charset;
 
 // XXX: should this be the default?
-public class NullFreeStringSchema implements Schema<String> {
+public class NullFreeStringSchema implements EncodingSchema<String, byte[]> {
     public static NullFreeStringSchema INSTANCE = new NullFreeStringSchema();
 
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
     @Override
     public String read(BitStream bs) {
-        final long mark = bs.mark();
-        int count = 0;
-        do {
-            byte b = bs.getByte();
-            if (b == 0) {
-                break;
-            } else if ((b & 0xF0) == 0xF0) {
-                bs.getByte();
-                bs.getByte();
-                bs.getByte();
-            } else if ((b & 0xE0) == 0xE0) {
-                bs.getByte();
-                bs.getByte();
-            } else if ((b & 0xC0) == 0xC0) {
-                bs.getByte();
+        byte[] bytes;
+        int count = bs.nextZeroByteOffset();
+        if (count >= 0) {
+            // Found the terminator a word at a time, so we can copy the whole lot out in one go
+            if (count >= bs.remainingBytes()) throw new IllegalStateException("NullFreeStringSchema.read(): missing terminator");
+            bytes = bs.scratch(count);
+            bs.getBytes(bytes, 0, count);
+            if (bs.getByte() != 0) throw new IllegalStateException("NullFreeStringSchema.read(): impossible");
+        } else {
+            bytes = bs.scratch(0);
+            count = 0;
+            byte b;
+            while ((b = bs.getByte()) != 0) {
+                if (count == bytes.length) bytes = bs.growScratch(bytes, count);
+                bytes[count++] = b;
             }
-            count++;
-        } while (true);
-        bs.reset(mark);
-
-        final byte[] bytes = new byte[count];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = bs.getByte();
         }
-        if (bs.getByte() != 0) throw new IllegalStateException("NullFreeStringSchema.read(): impossible");
 
-        return new String(bytes, UTF8);
+        return new String(bytes, 0, count, UTF8);
     }
 
     @Override
@@ -47,19 +39,29 @@ public class NullFreeStringSchema implements Schema<String> {
     }
 
     @Override
-    public int sizeBits(String x) {
-        return x.getBytes(UTF8).length * 8 + 8;
+    public boolean isByteAligned() {
+        return true;
     }
 
     @Override
-    public void write(BitStream bs, String x) {
+    public byte[] encode(String x) {
         final byte[] bytes = x.getBytes(UTF8);
         for (int i = 0; i < bytes.length; i++) {
             if (bytes[i] == 0) {
                 throw new IllegalArgumentException("Input string " + x + " contained a null byte");
             }
-            bs.putByte(bytes[i]);
         }
+        return bytes;
+    }
+
+    @Override
+    public int encodedSizeBits(byte[] bytes) {
+        return bytes.length * 8 + 8;
+    }
+
+    @Override
+    public void writeEncoded(BitStream bs, byte[] bytes) {
+        bs.putBytes(bytes, 0, bytes.length);
         bs.putByte((byte)0);
     }
 }
@@ -17,7 +17,7 @@ public interface Schema<T> {
 
             @Override
             public int maximumSizeBits() {
-                return (leftSchema.maximumSizeBits() >= 0 && rightSchema.maximumSizeBits() >= 0) ? Math.max(leftSchema.maximumSizeBits(), rightSchema.maximumSizeBits()) : -1;
+                return (leftSchema.maximumSizeBits() >= 0 && rightSchema.maximumSizeBits() >= 0) ? leftSchema.maximumSizeBits() + rightSchema.maximumSizeBits() : -1;
             }
 
             @Override
@@ -25,6 +25,11 @@ public interface Schema<T> {
                 return leftSchema.sizeBits(leftProj.apply(x)) + rightSchema.sizeBits(rightProj.apply(x));
             }
 
+            @Override
+            public boolean isByteAligned() {
+                return leftSchema.isByteAligned() && rightSchema.isByteAligned();
+            }
+
             @Override
             public void write(BitStream bs, V x) {
                 leftSchema.write (bs, leftProj .apply(x));
@@ -56,7 +61,7 @@ public interface Schema<T> {
 
             @Override
             public int maximumSizeBits() {
-                return 2 + schema.maximumSizeBits();
+                return schema.maximumSizeBits() >= 0 ? 1 + schema.maximumSizeBits() : -1;
             }
 
             @Override
@@ -81,6 +86,10 @@ public interface Schema<T> {
     int sizeBits(T x);
     void write(BitStream bs, T x);
 
+    // True if every value is encoded as a whole number of bytes, so that a BitStream that starts byte aligned stays that
+    // way. This lets BitStream take its fast paths throughout, and lets BufferedSchema skip padding out the last byte.
+    default boolean isByteAligned() { return false; }
+
     default <U> Schema<U> map(Function<U, T> f, Function<T, U> g) {
         final Schema<T> parent = this;
         return new Schema<U>() {
@@ -96,6 +105,10 @@ public interface Schema<T> {
                 return parent.sizeBits(f.apply(x));
             }
 
+            public boolean isByteAligned() {
+                return parent.isByteAligned();
+            }
+
             public void write(BitStream bs, U x) {
                 parent.write(bs, f.apply(x));
             }
@@ -1,10 +1,20 @@
 package uk.co.omegaprime.thunder.schema;
 
+import uk.co.omegaprime.thunder.BitStream;
+
 import java.nio.charset.Charset;
 
-public class StringSchema {
+// Encoded exactly as ByteArraySchema would encode the UTF-8 bytes
+public class StringSchema implements EncodingSchema<String, byte[]> {
+    public static StringSchema INSTANCE = new StringSchema();
+
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
     // XXX: due to the structure of UTF-8 it's actually possible to have less overhead than this
-    public static Schema<String> INSTANCE = ByteArraySchema.INSTANCE.map((String x) -> x.getBytes(UTF8), (byte[] xs) -> new String(xs, UTF8));
+    public String read(BitStream bs) { return new String(ByteArraySchema.INSTANCE.read(bs), UTF8); }
+    public int maximumSizeBits() { return -1; }
+
+    public byte[] encode(String x) { return x.getBytes(UTF8); }
+    public int encodedSizeBits(byte[] xs) { return ByteArraySchema.INSTANCE.sizeBits(xs); }
+    public void writeEncoded(BitStream bs, byte[] xs) { ByteArraySchema.INSTANCE.write(bs, xs); }
 }
@@ -7,6 +7,7 @@ public class UnsignedLongSchema implements Schema<Long> {
 
     public Long read(BitStream bs) { return bs.getLong(); }
     public int maximumSizeBits() { return Long.BYTES * 8; }
+    public boolean isByteAligned() { return true; }
     public int sizeBits(Long x) { return maximumSizeBits(); }
     public void write(BitStream bs, Long x) { bs.putLong(x); }
 }
@@ -0,0 +1,31 @@
+package uk.co.omegaprime.thunder.schema;
+
+import java.nio.charset.Charset;
+
+final class Utf8 {
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private Utf8() {}
+
+    // The length of x.getBytes(CHARSET), without actually encoding it. Like getBytes, we count an unpaired surrogate as
+    // the single byte '?' it gets replaced with.
+    static int length(String x) {
+        int length = 0;
+        for (int i = 0; i < x.length(); i++) {
+            final char c = x.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < x.length() && Character.isLowSurrogate(x.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
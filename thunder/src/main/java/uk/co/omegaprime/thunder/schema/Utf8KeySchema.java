@@ -0,0 +1,43 @@
+package uk.co.omegaprime.thunder.schema;
+
+import uk.co.omegaprime.thunder.BitStream;
+
+// Strings that sort by code point, like StringSchema, but with the compact byte-aligned encoding of BytesKeySchema.
+// Unlike NullFreeStringSchema, strings may contain \0.
+public class Utf8KeySchema extends EscapedBytesSchema<String> implements EncodingSchema<String, byte[]> {
+    public static Utf8KeySchema INSTANCE = new Utf8KeySchema();
+
+    @Override
+    String fromBytes(byte[] bytes, int length) {
+        return new String(bytes, 0, length, Utf8.CHARSET);
+    }
+
+    @Override
+    public int sizeBits(String x) {
+        int zeroes = 0;
+        for (int i = 0; i < x.length(); i++) {
+            if (x.charAt(i) == 0) zeroes++;
+        }
+        return (Utf8.length(x) + zeroes + 2) * 8;
+    }
+
+    @Override
+    public void write(BitStream bs, String x) {
+        writeEscaped(bs, encode(x));
+    }
+
+    @Override
+    public byte[] encode(String x) {
+        return x.getBytes(Utf8.CHARSET);
+    }
+
+    @Override
+    public int encodedSizeBits(byte[] bytes) {
+        return escapedSizeBits(bytes);
+    }
+
+    @Override
+    public void writeEncoded(BitStream bs, byte[] bytes) {
+        writeEscaped(bs, bytes);
+    }
+}
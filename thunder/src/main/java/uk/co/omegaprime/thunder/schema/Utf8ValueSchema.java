@@ -0,0 +1,43 @@
+package uk.co.omegaprime.thunder.schema;
+
+import uk.co.omegaprime.thunder.BitStream;
+
+// A compact byte-aligned alternative to StringSchema for values. It doesn't preserve order, so don't use it for keys:
+// see Utf8KeySchema for that.
+public class Utf8ValueSchema extends LengthPrefixedBytesSchema<String> implements EncodingSchema<String, byte[]> {
+    public static Utf8ValueSchema INSTANCE = new Utf8ValueSchema();
+
+    @Override
+    public String read(BitStream bs) {
+        final int length = getVarint(bs);
+        final byte[] bytes = bs.scratch(length);
+        bs.getBytes(bytes, 0, length);
+        return new String(bytes, 0, length, Utf8.CHARSET);
+    }
+
+    @Override
+    public int sizeBits(String x) {
+        return prefixedSizeBits(Utf8.length(x));
+    }
+
+    @Override
+    public void write(BitStream bs, String x) {
+        writeEncoded(bs, encode(x));
+    }
+
+    @Override
+    public byte[] encode(String x) {
+        return x.getBytes(Utf8.CHARSET);
+    }
+
+    @Override
+    public int encodedSizeBits(byte[] bytes) {
+        return prefixedSizeBits(bytes.length);
+    }
+
+    @Override
+    public void writeEncoded(BitStream bs, byte[] bytes) {
+        putVarint(bs, bytes.length);
+        bs.putBytes(bytes, 0, bytes.length);
+    }
+}
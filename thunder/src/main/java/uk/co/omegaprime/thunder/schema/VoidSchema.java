@@ -7,6 +7,7 @@ public class VoidSchema implements Schema<Void> {
 
     public Void read(BitStream bs) { return null; }
     public int maximumSizeBits() { return 0; }
+    public boolean isByteAligned() { return true; }
     public int sizeBits(Void x) { return maximumSizeBits(); }
     public void write(BitStream bs, Void x) { }
 }
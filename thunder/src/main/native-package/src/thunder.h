@@ -59,6 +59,59 @@
 extern "C" {
 #endif
 
+/* Rounds up to the next multiple of sizeof(size_t), so that arena entries stay word aligned */
+#define THUNDER_ALIGN(sz) (((sz) + sizeof(size_t) - 1) & ~(sizeof(size_t) - 1))
+
+/*
+ * Puts count key/value pairs that have been serialized into a single arena, so that the Java side only
+ * has to cross into native code once per batch. Each entry is laid out as:
+ *
+ *   [size_t key size][size_t value size][key bytes][value bytes][padding up to a multiple of sizeof(size_t)]
+ *
+ * Stops at the first failing mdb_put, storing its index in *failed and returning its error code.
+ */
+static int thunder_put_batch(MDB_txn *txn, MDB_dbi dbi, char *arena, size_t count, unsigned int flags, size_t *failed) {
+    MDB_val key, data;
+    size_t i;
+    int rc;
+    for (i = 0; i < count; i++) {
+        key.mv_size  = ((size_t *)arena)[0];
+        data.mv_size = ((size_t *)arena)[1];
+        key.mv_data  = arena + 2 * sizeof(size_t);
+        data.mv_data = (char *)key.mv_data + key.mv_size;
+        rc = mdb_put(txn, dbi, &key, &data, flags);
+        if (rc != MDB_SUCCESS) {
+            *failed = i;
+            return rc;
+        }
+        arena += THUNDER_ALIGN(2 * sizeof(size_t) + key.mv_size + data.mv_size);
+    }
+    return MDB_SUCCESS;
+}
+
+/*
+ * Looks up count keys with a single cursor, storing the value found for keys[i] in values[i]. Missing keys get a
+ * value with a NULL mv_data. If the keys are sorted then MDB_SET_KEY can often find the next key on the leaf page
+ * the cursor is already positioned on, rather than descending the B-tree from the root every time.
+ */
+static int thunder_get_batch(MDB_txn *txn, MDB_dbi dbi, MDB_val *keys, MDB_val *values, size_t count) {
+    MDB_cursor *cursor;
+    size_t i;
+    int rc = mdb_cursor_open(txn, dbi, &cursor);
+    if (rc != MDB_SUCCESS) return rc;
+    for (i = 0; i < count; i++) {
+        rc = mdb_cursor_get(cursor, &keys[i], &values[i], MDB_SET_KEY);
+        if (rc == MDB_NOTFOUND) {
+            values[i].mv_size = 0;
+            values[i].mv_data = NULL;
+        } else if (rc != MDB_SUCCESS) {
+            break;
+        }
+    }
+    mdb_cursor_close(cursor);
+    return rc == MDB_NOTFOUND ? MDB_SUCCESS : rc;
+}
+
 #ifdef __cplusplus
 } /* extern "C" */
 #endif
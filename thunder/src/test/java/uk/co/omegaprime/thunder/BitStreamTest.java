@@ -1,10 +1,19 @@
 package uk.co.omegaprime.thunder;
 
 import org.junit.Test;
+import sun.misc.Unsafe;
+import uk.co.omegaprime.thunder.schema.*;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 import static org.junit.Assert.*;
 
 public class BitStreamTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     @Test
     public void muchTestWow() {
         final long ptr = Bits.unsafe.allocateMemory(16);
@@ -164,4 +173,345 @@ public class BitStreamTest {
 
         Bits.unsafe.freeMemory(ptr);
     }
+
+    @Test
+    public void alignedAndUnalignedBytesAgree() {
+        final byte[] xs = new byte[] { 1, -2, 3, 0, 127, -128, 42 };
+        final long ptr = Bits.unsafe.allocateMemory(32);
+
+        for (boolean unaligned : new boolean[] { false, true }) {
+            {
+                final BitStream bs = new BitStream(ptr, 32);
+                if (unaligned) bs.putBoolean(true);
+                assertEquals(!unaligned, bs.isByteAligned());
+                bs.putLong(-1337);
+                bs.putBytes(xs, 1, 5);
+                bs.putInt(-7);
+                bs.putByte((byte)9);
+            }
+
+            {
+                final BitStream bs = new BitStream(ptr, 32);
+                if (unaligned) assertTrue(bs.getBoolean());
+                assertEquals(-1337, bs.getLong());
+                final byte[] ys = new byte[7];
+                bs.getBytes(ys, 1, 5);
+                assertArrayEquals(new byte[] { 0, -2, 3, 0, 127, -128, 0 }, ys);
+                assertEquals(-7, bs.getInt());
+                assertEquals(9, bs.getByte());
+            }
+        }
+
+        Bits.unsafe.freeMemory(ptr);
+    }
+
+    @Test
+    public void alignedWritesDoNotTouchFollowingBytes() {
+        final long ptr = Bits.unsafe.allocateMemory(16);
+        Bits.unsafe.setMemory(ptr, 16, (byte)0x55);
+
+        final BitStream bs = new BitStream(ptr, 16);
+        bs.putInt(1);
+        bs.putByte((byte)2);
+        assertEquals((byte)0x55, Bits.unsafe.getByte(ptr + 5));
+
+        Bits.unsafe.freeMemory(ptr);
+    }
+
+    @Test
+    public void nextZeroByteOffsetScansWordsAndBytes() {
+        final long ptr = Bits.unsafe.allocateMemory(32);
+        Bits.unsafe.setMemory(ptr, 32, (byte)0x80);
+        Bits.unsafe.putByte(ptr + 19, (byte)0);
+
+        final BitStream bs = new BitStream(ptr, 32);
+        assertEquals(19, bs.nextZeroByteOffset());
+        bs.advance(3);
+        assertEquals(16, bs.nextZeroByteOffset());
+        bs.advance(17);
+        assertEquals(12, bs.nextZeroByteOffset());
+        bs.advanceBits(1);
+        assertEquals(-1, bs.nextZeroByteOffset());
+
+        Bits.unsafe.freeMemory(ptr);
+    }
+
+    @Test
+    public void variableLengthSchemasRoundTripInOnePass() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append((char)('a' + i % 26)).append(i % 7 == 0 ? "\u00e9\u20ac" : "");
+        }
+        final String unicode = sb.toString();
+        final String latin1 = "caf\u00e9 \u00fe" + unicode.replaceAll("[^a-z]", "");
+        final byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte)(i * 31);
+
+        // Wrapping in an optional knocks the string off byte alignment
+        assertEquals(unicode, roundTrip(NullFreeStringSchema.INSTANCE, unicode));
+        assertEquals(Optional.of(unicode), roundTrip(Schema.optional(NullFreeStringSchema.INSTANCE), Optional.of(unicode)));
+        assertEquals(latin1, roundTrip(Latin1StringSchema.INSTANCE, latin1));
+        assertArrayEquals(bytes, roundTrip(ByteArraySchema.INSTANCE, bytes));
+        assertArrayEquals(new byte[0], roundTrip(ByteArraySchema.INSTANCE, new byte[0]));
+    }
+
+    @Test
+    public void compactSchemasRoundTripAndKeysSortLikeTheirBytes() {
+        final String[] strings = new String[] { "", "\u0000", "\u0000\u0000a", "a", "a\u0000", "a\u0000b", "ab", "caf\u00e9", "\ud83d\ude00", "\u20ac" };
+        for (String x : strings) {
+            assertEquals(x, roundTrip(Utf8KeySchema.INSTANCE, x));
+            assertEquals(x, roundTrip(Utf8ValueSchema.INSTANCE, x));
+            assertEquals(Optional.of(x), roundTrip(Schema.optional(Utf8KeySchema.INSTANCE), Optional.of(x)));
+            assertArrayEquals(x.getBytes(UTF8), roundTrip(BytesKeySchema.INSTANCE, x.getBytes(UTF8)));
+            assertArrayEquals(x.getBytes(UTF8), roundTrip(BytesValueSchema.INSTANCE, x.getBytes(UTF8)));
+        }
+
+        final byte[] big = new byte[300];
+        for (int i = 0; i < big.length; i++) big[i] = (byte)i;
+        assertArrayEquals(big, roundTrip(BytesKeySchema.INSTANCE, big));
+        assertArrayEquals(big, roundTrip(BytesValueSchema.INSTANCE, big));
+
+        for (String x : strings) {
+            for (String y : strings) {
+                final int expected = Integer.signum(Bits.compareBytes(x.getBytes(UTF8), y.getBytes(UTF8)));
+                assertEquals(x + " vs " + y, expected, Integer.signum(Bits.compareBytes(encode(Utf8KeySchema.INSTANCE, x), encode(Utf8KeySchema.INSTANCE, y))));
+            }
+        }
+    }
+
+    @Test
+    public void escapedBytesStopAtTheEndOfACorruptValue() {
+        // No zero at all, a zero with nothing after it, and the same after an escaped zero
+        final byte[][] corrupt = new byte[][] { { 1, 2, 3 }, { 1, 2, 0 }, { 0 }, { 0, (byte)0xFF, 7, 0 } };
+        for (byte[] bytes : corrupt) {
+            for (boolean aligned : new boolean[] { true, false }) {
+                final int sz = bytes.length + (aligned ? 0 : 1);
+                final long ptr = Bits.unsafe.allocateMemory(sz);
+                try {
+                    final BitStream out = new BitStream(ptr, sz);
+                    if (!aligned) out.putBoolean(true);
+                    out.putBytes(bytes, 0, bytes.length);
+                    out.zeroFill();
+
+                    final BitStream in = new BitStream(ptr, sz);
+                    if (!aligned) in.getBoolean();
+                    try {
+                        BytesKeySchema.INSTANCE.read(in);
+                        fail(Arrays.toString(bytes) + (aligned ? " aligned" : " unaligned"));
+                    } catch (IllegalStateException e) {
+                        // Expected
+                    }
+                } finally {
+                    Bits.unsafe.freeMemory(ptr);
+                }
+            }
+        }
+    }
+
+    private static class Trade {
+        @RecordSchema.Field(2) double price;
+        @RecordSchema.Field(0) long id;
+        @RecordSchema.Field(1) boolean buy;
+        @RecordSchema.Field(3) String venue;
+        @RecordSchema.Field(4) int quantity;
+    }
+
+    private static class Flags {
+        @RecordSchema.Field(0) final boolean first;
+        @RecordSchema.Field(1) final Boolean second;
+        @RecordSchema.Field(2) final long third;
+
+        Flags(boolean first, Boolean second, long third) {
+            this.first = first;
+            this.second = second;
+            this.third = third;
+        }
+    }
+
+    @Test
+    public void recordSchemasEncodeLikeTheEquivalentZipWithChain() {
+        final Schema<Trade> recordSchema = RecordSchema.of(Trade.class);
+        final Schema<Pair<Pair<Long, Boolean>, Pair<Double, Pair<String, Integer>>>> zipSchema =
+                Schema.zip(Schema.zip(LongSchema.INSTANCE, BooleanSchema.INSTANCE),
+                           Schema.zip(DoubleSchema.INSTANCE, Schema.zip(StringSchema.INSTANCE, IntegerSchema.INSTANCE)));
+
+        final Trade trade = new Trade();
+        trade.id = -12345678901L;
+        trade.buy = true;
+        trade.price = -1.5;
+        trade.venue = "LSE\u00e9";
+        trade.quantity = 100;
+
+        final byte[] bytes = encode(recordSchema, trade);
+        assertArrayEquals(encode(zipSchema, new Pair<>(new Pair<>(-12345678901L, true), new Pair<>(-1.5, new Pair<>("LSE\u00e9", 100)))), bytes);
+        assertEquals(-1, recordSchema.maximumSizeBits());
+        assertFalse(recordSchema.isByteAligned());
+
+        final Trade readBack = roundTrip(recordSchema, trade);
+        assertEquals(trade.id, readBack.id);
+        assertEquals(trade.buy, readBack.buy);
+        assertEquals(trade.price, readBack.price, 0.0);
+        assertEquals(trade.venue, readBack.venue);
+        assertEquals(trade.quantity, readBack.quantity);
+
+        // Final fields can be filled in too, and boxed booleans default to BooleanSchema
+        final Schema<Flags> flagsSchema = RecordSchema.of(Flags.class);
+        assertEquals(1 + 1 + 64, flagsSchema.maximumSizeBits());
+        final Flags flags = roundTrip(flagsSchema, new Flags(true, false, -3L));
+        assertTrue(flags.first);
+        assertEquals(Boolean.FALSE, flags.second);
+        assertEquals(-3L, flags.third);
+
+        // Fixed-size compositions should know their total size
+        assertEquals(64 + 32, Schema.zip(LongSchema.INSTANCE, IntegerSchema.INSTANCE).maximumSizeBits());
+        assertEquals(1 + 64, Schema.optional(LongSchema.INSTANCE).maximumSizeBits());
+        assertEquals(-1, Schema.optional(StringSchema.INSTANCE).maximumSizeBits());
+    }
+
+    @Test
+    public void encodingSchemasOnlyEncodeOncePerWrite() {
+        final int[] encodings = new int[1];
+        final Schema<String> schema = StringSchema.INSTANCE.map((String x) -> { encodings[0]++; return x; }, (String x) -> x);
+        final BufferedSchema<String> buffer = new BufferedSchema<>(schema);
+
+        final String x = "Hello \u00e9";
+        final int sz = Bits.bitsToBytes(buffer.sizeBits(x));
+        final long bufferPtr = buffer.allocate(sz);
+        try {
+            buffer.write(bufferPtr, sz, x);
+            assertEquals(1, encodings[0]);
+            assertEquals(x, buffer.read(bufferPtr));
+        } finally {
+            buffer.free(bufferPtr);
+        }
+
+        // Same bytes as the old ByteArraySchema-based encoding
+        assertArrayEquals(encode(ByteArraySchema.INSTANCE, x.getBytes(UTF8)), encode(StringSchema.INSTANCE, x));
+
+        // Lists account for the bit before each element and the terminating bit
+        final List<String> xs = Arrays.asList("a", "", "b\u00e9");
+        assertEquals(Bits.bitsToBytes(ListSchema.of(StringSchema.INSTANCE).sizeBits(xs)), encode(ListSchema.of(StringSchema.INSTANCE), xs).length);
+        assertEquals(3 + 1 + 3 * 32, ListSchema.of(IntegerSchema.INSTANCE).sizeBits(Arrays.asList(1, 2, 3)));
+        assertEquals(xs, roundTrip(ListSchema.of(StringSchema.INSTANCE), xs));
+        assertEquals(xs, roundTrip(ListSchema.of(Utf8KeySchema.INSTANCE), xs));
+    }
+
+    @Test
+    public void variableSizeBuffersStopCallingTheAllocatorOnceWarm() {
+        final BufferedSchema<String> buffer = new BufferedSchema<>(StringSchema.INSTANCE, 1024);
+        final String[] keys = new String[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "Key number " + i * 7919;
+        }
+
+        final Runnable useEveryKey = () -> {
+            for (String key : keys) {
+                final int sz = Bits.bitsToBytes(buffer.sizeBits(key));
+                final long bufferPtr = buffer.allocate(sz);
+                try {
+                    buffer.write(bufferPtr, sz, key);
+                    assertEquals(key, buffer.read(bufferPtr));
+                } finally {
+                    buffer.free(bufferPtr);
+                }
+            }
+        };
+
+        useEveryKey.run();
+        final long warmAllocatorCalls = buffer.allocatorCalls();
+        for (int i = 0; i < 100; i++) {
+            useEveryKey.run();
+        }
+        assertEquals(warmAllocatorCalls, buffer.allocatorCalls());
+
+        // One huge value grows the arena, but once it stops turning up we give the memory back
+        final char[] huge = new char[100_000];
+        Arrays.fill(huge, 'x');
+        final String hugeKey = new String(huge);
+        final int hugeSz = Bits.bitsToBytes(buffer.sizeBits(hugeKey));
+        final long hugePtr = buffer.allocate(hugeSz);
+        buffer.write(hugePtr, hugeSz, hugeKey);
+        assertEquals(hugeKey, buffer.read(hugePtr));
+        buffer.free(hugePtr);
+
+        for (int i = 0; i < 30; i++) {
+            useEveryKey.run();
+        }
+        final long shrunkAllocatorCalls = buffer.allocatorCalls();
+        assertTrue(shrunkAllocatorCalls > warmAllocatorCalls);
+        for (int i = 0; i < 30; i++) {
+            useEveryKey.run();
+        }
+        assertEquals(shrunkAllocatorCalls, buffer.allocatorCalls());
+
+        // Copies land in the arena too
+        final long srcPtr = Bits.unsafe.allocateMemory(2 * Unsafe.ADDRESS_SIZE + 3);
+        try {
+            Bits.unsafe.putAddress(srcPtr, 3);
+            Bits.unsafe.putAddress(srcPtr + Unsafe.ADDRESS_SIZE, srcPtr + 2 * Unsafe.ADDRESS_SIZE);
+            Bits.unsafe.putByte(srcPtr + 2 * Unsafe.ADDRESS_SIZE, (byte)1);
+            Bits.unsafe.putByte(srcPtr + 2 * Unsafe.ADDRESS_SIZE + 1, (byte)2);
+            Bits.unsafe.putByte(srcPtr + 2 * Unsafe.ADDRESS_SIZE + 2, (byte)3);
+            final long copyPtr = buffer.allocateAndCopy(srcPtr);
+            try {
+                assertEquals(3, Bits.unsafe.getAddress(copyPtr));
+                final long copyDataPtr = Bits.unsafe.getAddress(copyPtr + Unsafe.ADDRESS_SIZE);
+                assertEquals(copyPtr + 2 * Unsafe.ADDRESS_SIZE, copyDataPtr);
+                assertEquals(3, Bits.unsafe.getByte(copyDataPtr + 2));
+            } finally {
+                buffer.free(copyPtr);
+            }
+        } finally {
+            Bits.unsafe.freeMemory(srcPtr);
+        }
+    }
+
+    @Test
+    public void buffersAreFreedWhenClosedOrCollected() throws InterruptedException {
+        // Only look at our own buffers: other tests, and the cleaner thread, change the global ResourceMetrics at will
+        BufferedSchema<String> forgotten = new BufferedSchema<>(StringSchema.INSTANCE);
+        forgotten.free(forgotten.allocate(100));
+        final ResourceCleaner forgottenCleaner = forgotten.cleaner();
+        forgotten = null;
+        for (int i = 0; i < 100 && !forgottenCleaner.isReleased(); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(forgottenCleaner.isReleased());
+
+        final BufferedSchema<Long> closed = new BufferedSchema<>(LongSchema.INSTANCE);
+        final ResourceCleaner closedCleaner = closed.cleaner();
+        assertFalse(closedCleaner.isReleased());
+        closed.close();
+        assertTrue(closedCleaner.isReleased());
+        closed.close();
+        assertTrue(closedCleaner.isReleased());
+    }
+
+    private static <T> byte[] encode(Schema<T> schema, T x) {
+        final byte[] result = new byte[Bits.bitsToBytes(schema.sizeBits(x))];
+        final long ptr = Bits.unsafe.allocateMemory(result.length);
+        try {
+            final BitStream bs = new BitStream(ptr, result.length);
+            schema.write(bs, x);
+            bs.zeroFill();
+            Bits.unsafe.copyMemory(null, ptr, result, Unsafe.ARRAY_BYTE_BASE_OFFSET, result.length);
+            return result;
+        } finally {
+            Bits.unsafe.freeMemory(ptr);
+        }
+    }
+
+    private static <T> T roundTrip(Schema<T> schema, T x) {
+        final int sz = Bits.bitsToBytes(schema.sizeBits(x));
+        final long ptr = Bits.unsafe.allocateMemory(sz);
+        try {
+            final BitStream bs = new BitStream(ptr, sz);
+            schema.write(bs, x);
+            bs.zeroFill();
+            return schema.read(new BitStream(ptr, sz));
+        } finally {
+            Bits.unsafe.freeMemory(ptr);
+        }
+    }
 }
@@ -1,8 +1,17 @@
 package uk.co.omegaprime.thunder;
 
 import org.junit.Test;
+import sun.misc.Unsafe;
+import uk.co.omegaprime.thunder.schema.IntegerSchema;
+import uk.co.omegaprime.thunder.schema.Schema;
 
+import java.util.Optional;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class BitsTest {
     @Test
@@ -10,4 +19,138 @@ public class BitsTest {
         assertEquals(0x4AFEBABE,          Bits.swapSign(0xCAFEBABE));
         assertEquals(0x4AFEBABEDEADBEEFl, Bits.swapSign(0xCAFEBABEDEADBEEFl));
     }
+
+    @Test
+    public void compareBytesSortsLikeLMDB() {
+        assertTrue(Bits.compareBytes(new byte[] { 1, 2 }, new byte[] { 1, 2, 0 }) < 0);
+        assertTrue(Bits.compareBytes(new byte[] { (byte)0xFF }, new byte[] { 1, 2 }) > 0);
+        assertEquals(0, Bits.compareBytes(new byte[] { 1, 2 }, new byte[] { 1, 2 }));
+
+        final long ptr = Bits.unsafe.allocateMemory(20);
+        for (int i = 0; i < 20; i++) {
+            Bits.unsafe.putByte(ptr + i, (byte)i);
+        }
+        assertEquals(0, Bits.compareBytes(ptr, 20, ptr, 20));
+        assertTrue(Bits.compareBytes(ptr, 19, ptr, 20) < 0);
+        assertTrue(Bits.compareBytes(ptr + 1, 10, ptr, 20) > 0);
+        Bits.unsafe.freeMemory(ptr);
+    }
+
+    @Test
+    public void keyMidpointsLieBetweenTheirBounds() {
+        final byte[][][] bounds = {
+            { { 0 }, { 2 } },
+            { { 1, 2 }, { 1, 2, 0, 1 } },
+            { { 'a' }, { 'b' } },
+            { { 0x10, (byte)0xFF }, { 0x11 } },
+            { {}, { (byte)0xFF, (byte)0xFF } },
+        };
+        for (byte[][] bound : bounds) {
+            final byte[] mid = KeyRangeSpliterator.midpoint(bound[0], bound[1]);
+            assertTrue(Bits.compareBytes(bound[0], mid) < 0);
+            assertTrue(Bits.compareBytes(mid, bound[1]) < 0);
+        }
+
+        // Nothing sorts strictly between these, so the midpoint can't either
+        assertTrue(Bits.compareBytes(KeyRangeSpliterator.midpoint(new byte[] { 1, 2 }, new byte[] { 1, 2, 0 }), new byte[] { 1, 2, 0 }) >= 0);
+    }
+
+    @Test
+    public void rawPredicatesMatchEncodedFields() {
+        final Schema<Optional<Integer>> schema = Schema.optional(IntegerSchema.INSTANCE);
+        final byte[] key = BufferedSchema.toBytes(schema, Optional.of(42));
+        final byte[] value = BufferedSchema.toBytes(Schema.zip(IntegerSchema.INSTANCE, IntegerSchema.INSTANCE), new Pair<>(7, 1000));
+
+        final long kPtr = Bits.unsafe.allocateMemory(key.length), vPtr = Bits.unsafe.allocateMemory(value.length);
+        try {
+            Bits.unsafe.copyMemory(key,   Unsafe.ARRAY_BYTE_BASE_OFFSET, null, kPtr, key.length);
+            Bits.unsafe.copyMemory(value, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, vPtr, value.length);
+
+            // An empty Optional is a single zero bit, so only the first bit of the key should be compared with it
+            assertFalse(RawPredicate.keyStartsWith(schema, Optional.empty()).test(kPtr, key.length, vPtr, value.length));
+            assertTrue (RawPredicate.keyStartsWith(schema, Optional.of(42)) .test(kPtr, key.length, vPtr, value.length));
+            assertFalse(RawPredicate.keyStartsWith(schema, Optional.of(43)) .test(kPtr, key.length, vPtr, value.length));
+
+            assertTrue (RawPredicate.valueFieldEquals(4, IntegerSchema.INSTANCE, 1000).test(kPtr, key.length, vPtr, value.length));
+            assertFalse(RawPredicate.valueFieldEquals(4, IntegerSchema.INSTANCE, 1001).test(kPtr, key.length, vPtr, value.length));
+            // Off the end of the value
+            assertFalse(RawPredicate.valueFieldEquals(8, IntegerSchema.INSTANCE, 0).test(kPtr, key.length, vPtr, value.length));
+            assertTrue (RawPredicate.valueStartsWith(new byte[0]).test(kPtr, key.length, vPtr, value.length));
+
+            final RawPredicate sevens = RawPredicate.valueFieldEquals(0, IntegerSchema.INSTANCE, 7);
+            assertTrue (sevens.and(RawPredicate.keyBetween(schema, Optional.of(0), Optional.of(43))).test(kPtr, key.length, vPtr, value.length));
+            assertFalse(sevens.and(RawPredicate.keyBetween(schema, Optional.of(0), Optional.of(42))).test(kPtr, key.length, vPtr, value.length));
+            assertTrue (sevens.negate().or(RawPredicate.keyBetween(schema, null, null)).test(kPtr, key.length, vPtr, value.length));
+            assertEquals(0, Bits.compareBytes(kPtr, key.length, key));
+            assertTrue(Bits.compareBytes(kPtr, key.length, new byte[] { key[0], key[1], key[2], key[3], key[4], 0 }) < 0);
+        } finally {
+            Bits.unsafe.freeMemory(kPtr);
+            Bits.unsafe.freeMemory(vPtr);
+        }
+    }
+
+    @Test
+    public void incrementedPrefixesSortAfterEverythingStartingWithThem() {
+        assertArrayEquals(new byte[] { 1, 3 },          Bits.incrementPrefix(new byte[] { 1, 2 }, 16));
+        assertArrayEquals(new byte[] { 2, 0 },          Bits.incrementPrefix(new byte[] { 1, (byte)0xFF }, 16));
+        // Only the first three bits count: 101 + 1 = 110
+        assertArrayEquals(new byte[] { (byte)0xC0 },    Bits.incrementPrefix(new byte[] { (byte)0xB7 }, 3));
+        assertArrayEquals(new byte[] { 0x01, 0x00 },    Bits.incrementPrefix(new byte[] { 0x00, (byte)0xFF }, 9));
+        assertNull(Bits.incrementPrefix(new byte[] { (byte)0xFF, (byte)0xE0 }, 11));
+        assertNull(Bits.incrementPrefix(new byte[0], 0));
+    }
+
+    @Test
+    public void bloomFilterTablesHaveNoFalseNegativesAndFewFalsePositives() {
+        final BloomFilter.Table table = BloomFilter.Table.sizedFor(10000, 0.01, 0);
+        final long ptr = Bits.unsafe.allocateMemory(4);
+        try {
+            for (int i = 0; i < 10000; i++) {
+                Bits.unsafe.putInt(ptr, i);
+                table.add(ptr, 4);
+            }
+
+            int falsePositives = 0;
+            for (int i = 0; i < 20000; i++) {
+                Bits.unsafe.putInt(ptr, i);
+                if (i < 10000) {
+                    assertTrue(table.mightContain(ptr, 4));
+                } else if (table.mightContain(ptr, 4)) {
+                    falsePositives++;
+                }
+            }
+            assertTrue(falsePositives < 300);
+
+            // Keys of different lengths hash differently even if they share their bytes
+            assertEquals(Bits.hashBytes(ptr, 3), Bits.hashBytes(ptr, 3));
+            assertFalse(Bits.hashBytes(ptr, 3) == Bits.hashBytes(ptr, 4));
+
+            final BloomFilter.Table copy = BloomFilter.Table.fromBytes(table.toBytes(7), 7);
+            assertEquals(7, BloomFilter.Table.savedAt(table.toBytes(7)));
+            for (int i = 0; i < 10000; i++) {
+                Bits.unsafe.putInt(ptr, i);
+                assertTrue(copy.mightContain(ptr, 4));
+            }
+        } finally {
+            Bits.unsafe.freeMemory(ptr);
+        }
+    }
+
+    @Test
+    public void retiredBloomFilterTablesAreFreedOnceTheLastReaderExits() {
+        final BloomFilter.Table table = BloomFilter.Table.sizedFor(1000, 0.01, 0);
+        assertTrue(table.enter());
+        assertTrue(table.enter());
+        table.retire();
+        assertFalse(table.enter());
+
+        table.exit();
+        assertFalse(table.isFreed());
+        table.exit();
+        assertTrue(table.isFreed());
+
+        final BloomFilter.Table unused = BloomFilter.Table.sizedFor(1000, 0.01, 0);
+        unused.retire();
+        assertTrue(unused.isFreed());
+    }
 }
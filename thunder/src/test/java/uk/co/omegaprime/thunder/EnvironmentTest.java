@@ -5,14 +5,26 @@ import uk.co.omegaprime.thunder.schema.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.nio.file.Files;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static uk.co.omegaprime.thunder.Bits.*;
 
 public class EnvironmentTest {
@@ -202,6 +214,450 @@ public class EnvironmentTest {
         }
     }
 
+    @Test
+    public void canPutAll() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final Database<Integer, String> database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+
+                final List<Pair<Integer, String>> kvs = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    kvs.add(new Pair<>(i, "Value " + i));
+                }
+                database.putAll(tx, kvs);
+                database.putAll(tx, new Integer[] { 5, 2000 }, new String[] { "Five", "Two thousand" });
+
+                assertEquals("Value 0", database.get(tx, 0));
+                assertEquals("Five", database.get(tx, 5));
+                assertEquals("Value 999", database.get(tx, 999));
+                assertEquals("Two thousand", database.get(tx, 2000));
+                assertEquals(1001, iteratorToList(database.keys(tx)).size());
+            }
+        }
+    }
+
+    @Test
+    public void putAllReportsWhichEntryFailed() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final Database<String, String> database = env.createDatabase(tx, "Test", StringSchema.INSTANCE, StringSchema.INSTANCE);
+
+                final char[] tooLong = new char[1000];
+                Arrays.fill(tooLong, 'x');
+                try {
+                    database.putAll(tx, Arrays.asList(new Pair<>("a", "1"), new Pair<>("b", "2"), new Pair<>(new String(tooLong), "3")));
+                    fail();
+                } catch (LMDBException e) {
+                    assertTrue(e.getMessage().startsWith("Entry 2 of the batch"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void canPutAllIntoDatabaseWithDuplicateKeys() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final DatabaseWithDuplicateKeys<Integer, Integer> database = env.createDatabaseWithDuplicateKeys(tx, "Test", IntegerSchema.INSTANCE, IntegerSchema.INSTANCE);
+
+                database.putAll(tx, Arrays.asList(new Pair<>(1, 100), new Pair<>(2, 200), new Pair<>(2, 300), new Pair<>(1, 100)));
+
+                assertEquals(Arrays.asList(new Pair<>(1, 100), new Pair<>(2, 200), new Pair<>(2, 300)),
+                             iteratorToList(database.keyValues(tx)));
+            }
+        }
+    }
+
+    @Test
+    public void rangesRespectTheirBoundsInEitherDirection() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final Database<Integer, String> database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                for (int i = -5; i <= 5; i++) {
+                    database.put(tx, i * 10, "Value " + i);
+                }
+
+                final Function<Iterator<Pair<Integer, String>>, List<Integer>> keys = it -> iteratorToList(it).stream().map(kv -> kv.k).collect(Collectors.toList());
+                assertEquals(Arrays.asList(-20, -10, 0, 10),  keys.apply(database.range(tx, -20, true,  10, true,  Direction.ASCENDING)));
+                assertEquals(Arrays.asList(-10, 0),           keys.apply(database.range(tx, -20, false, 10, false, Direction.ASCENDING)));
+                assertEquals(Arrays.asList(10, 0, -10, -20),  keys.apply(database.range(tx, -20, true,  10, true,  Direction.DESCENDING)));
+                assertEquals(Arrays.asList(0, -10),           keys.apply(database.range(tx, -20, false, 10, false, Direction.DESCENDING)));
+                assertEquals(Arrays.asList(-10, 0),           keys.apply(database.range(tx, -15, true,  5,  true,  Direction.ASCENDING)));
+                assertEquals(Arrays.asList(40, 50),           keys.apply(database.range(tx, 35,  true,  null, false, Direction.ASCENDING)));
+                assertEquals(Arrays.asList(-40, -50),         keys.apply(database.range(tx, null, false, -35, true, Direction.DESCENDING)));
+                assertEquals(Collections.emptyList(),         keys.apply(database.range(tx, 10, false, 10, true, Direction.ASCENDING)));
+                assertEquals(Collections.emptyList(),         keys.apply(database.range(tx, 60, true, null, true, Direction.ASCENDING)));
+                assertEquals(11, keys.apply(database.range(tx, null, true, null, true, Direction.DESCENDING)).size());
+
+                try (final Stream<Pair<Integer, String>> stream = database.rangeStream(tx, 0, true, null, true, Direction.ASCENDING)) {
+                    assertEquals("Value 0", stream.findFirst().get().v);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rangesIncludeEveryValueOfTheirBoundaryKeys() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final DatabaseWithDuplicateKeys<Integer, Integer> database = env.createDatabaseWithDuplicateKeys(tx, "Test", IntegerSchema.INSTANCE, IntegerSchema.INSTANCE);
+                database.putAll(tx, Arrays.asList(new Pair<>(1, 100), new Pair<>(1, 200), new Pair<>(2, 200), new Pair<>(2, 300), new Pair<>(3, 300)));
+
+                assertEquals(Arrays.asList(new Pair<>(1, 100), new Pair<>(1, 200), new Pair<>(2, 200), new Pair<>(2, 300)),
+                             iteratorToList(database.range(tx, 1, true, 2, true, Direction.ASCENDING)));
+                assertEquals(Arrays.asList(new Pair<>(2, 300), new Pair<>(2, 200), new Pair<>(1, 200), new Pair<>(1, 100)),
+                             iteratorToList(database.range(tx, 1, true, 2, true, Direction.DESCENDING)));
+                assertEquals(Arrays.asList(new Pair<>(3, 300)),
+                             iteratorToList(database.range(tx, 2, false, null, false, Direction.ASCENDING)));
+                assertEquals(Arrays.asList(new Pair<>(1, 200), new Pair<>(1, 100)),
+                             iteratorToList(database.range(tx, null, false, 2, false, Direction.DESCENDING)));
+            }
+        }
+    }
+
+    @Test
+    public void rawPredicatesFilterWithoutDecoding() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final int[] decodes = new int[1];
+                final Schema<Integer> countingSchema = IntegerSchema.INSTANCE.map(x -> x, x -> { decodes[0]++; return x; });
+                final Database<Integer, Pair<Integer, Integer>> database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, Schema.zip(countingSchema, IntegerSchema.INSTANCE));
+                for (int i = 0; i < 1000; i++) {
+                    database.put(tx, i, new Pair<>(i % 100, i));
+                }
+
+                try (final Cursor<Integer, Pair<Integer, Integer>> cursor = database.createCursor(tx)) {
+                    final FilteredView<Integer, Pair<Integer, Integer>> view = new FilteredView<>(cursor, RawPredicate.valueFieldEquals(0, IntegerSchema.INSTANCE, 7));
+                    final List<Integer> matches = new ArrayList<>();
+                    decodes[0] = 0;
+                    for (boolean positioned = view.moveFirst(); positioned; positioned = view.moveNext()) {
+                        matches.add(view.getValue().v);
+                    }
+                    assertEquals(Arrays.asList(7, 107, 207, 307, 407, 507, 607, 707, 807, 907), matches);
+                    assertEquals(10, decodes[0]);
+
+                    final FilteredView<Integer, Pair<Integer, Integer>> both = new FilteredView<>(cursor, RawPredicate.valueFieldEquals(0, IntegerSchema.INSTANCE, 7), (k, v) -> k > 500);
+                    assertTrue(both.moveFirst());
+                    assertEquals(Integer.valueOf(507), both.getKey());
+                    assertTrue(both.moveLast());
+                    assertEquals(Integer.valueOf(907), both.getKey());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void secondaryIndexesFollowEveryWrite() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final IndexedDatabase<Integer, String> database = new IndexedDatabase<>(env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE));
+                database.put(tx, 1, "One");
+                database.put(tx, 2, "Two");
+                database.put(tx, 3, "Three");
+
+                // Populated from what is already there
+                final SecondaryIndex<Integer, Integer, String> byLength = database.index(tx, "ByLength", IntegerSchema.INSTANCE, String::length);
+                final Function<Stream<Pair<Integer, String>>, List<Integer>> keys = stream -> stream.map(kv -> kv.k).collect(Collectors.toList());
+                assertEquals(Arrays.asList(1, 2), keys.apply(database.getByIndex(tx, byLength, 3)));
+
+                database.put(tx, 2, "Deux");
+                assertNull(database.putIfAbsent(tx, 4, "Four"));
+                assertEquals("Four", database.putIfAbsent(tx, 4, "Quatre"));
+                assertEquals(Arrays.asList(1),    keys.apply(database.getByIndex(tx, byLength, 3)));
+                assertEquals(Arrays.asList(2, 4), keys.apply(database.getByIndex(tx, byLength, 4)));
+
+                assertTrue(database.remove(tx, 4));
+                assertFalse(database.remove(tx, 4));
+                try (final Cursor<Integer, String> cursor = database.createCursor(tx)) {
+                    assertTrue(cursor.moveTo(1));
+                    cursor.delete();
+                    assertTrue(cursor.moveTo(3));
+                    cursor.put("Drei");
+                    cursor.put(5, "Fuenf");
+                }
+
+                assertEquals(Arrays.asList(new Pair<>(5, "Fuenf"), new Pair<>(3, "Drei"), new Pair<>(2, "Deux")),
+                             database.rangeByIndex(tx, byLength, 3, false, null, false, Direction.DESCENDING).collect(Collectors.toList()));
+                assertEquals(Arrays.asList(new Pair<>(4, 2), new Pair<>(4, 3), new Pair<>(5, 5)),
+                             iteratorToList(byLength.getDatabase().keyValues(tx)));
+            }
+        }
+    }
+
+    @Test
+    public void coveringIndexesAnswerRangeQueriesOnTheirOwn() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                // Orders: id -> ((tenant, timestamp), (quantity, item))
+                final Schema<Pair<String, Long>> tenantTimeSchema = Schema.zip(StringSchema.INSTANCE, LongSchema.INSTANCE);
+                final Schema<Pair<Integer, String>> columnsSchema = Schema.zip(IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                final IndexedDatabase<Long, Pair<Pair<String, Long>, Pair<Integer, String>>> orders =
+                        new IndexedDatabase<>(env.createDatabase(tx, "Orders", LongSchema.INSTANCE, Schema.zip(tenantTimeSchema, columnsSchema)));
+                final CoveringIndex<Pair<String, Long>, Long, Pair<Integer, String>, Pair<Pair<String, Long>, Pair<Integer, String>>> byTenantTime =
+                        orders.coveringIndex(tx, "ByTenantTime", tenantTimeSchema, order -> order.k, columnsSchema, order -> order.v);
+
+                orders.put(tx, 1L, new Pair<>(new Pair<>("acme", 100L), new Pair<>(5, "Anvil")));
+                orders.put(tx, 2L, new Pair<>(new Pair<>("acme", 150L), new Pair<>(1, "Rocket")));
+                orders.put(tx, 3L, new Pair<>(new Pair<>("acme", 200L), new Pair<>(2, "Magnet")));
+                orders.put(tx, 4L, new Pair<>(new Pair<>("acme", 250L), new Pair<>(9, "Spring")));
+                orders.put(tx, 5L, new Pair<>(new Pair<>("zeta", 150L), new Pair<>(7, "Widget")));
+                // Changing only a projected column must still be seen by the index
+                orders.put(tx, 2L, new Pair<>(new Pair<>("acme", 150L), new Pair<>(3, "Rocket")));
+
+                assertEquals(Arrays.asList(new Pair<>(new Pair<>(new Pair<>("acme", 100L), 1L), new Pair<>(5, "Anvil")),
+                                           new Pair<>(new Pair<>(new Pair<>("acme", 150L), 2L), new Pair<>(3, "Rocket")),
+                                           new Pair<>(new Pair<>(new Pair<>("acme", 200L), 3L), new Pair<>(2, "Magnet"))),
+                             iteratorToList(byTenantTime.range(tx, new Pair<>("acme", 100L), true, new Pair<>("acme", 200L), true, Direction.ASCENDING)));
+                assertEquals(Arrays.asList(3L, 2L),
+                             iteratorToList(byTenantTime.range(tx, new Pair<>("acme", 100L), false, new Pair<>("acme", 250L), false, Direction.DESCENDING))
+                                     .stream().map(entry -> entry.k.v).collect(Collectors.toList()));
+
+                orders.remove(tx, 2L);
+                try (final Cursor<Pair<Pair<String, Long>, Long>, Pair<Integer, String>> cursor = byTenantTime.getDatabase().createCursor(tx)) {
+                    final SubcursorView<Pair<String, Long>, Long, Pair<Integer, String>> view = byTenantTime.view(cursor, new Pair<>("zeta", 150L));
+                    assertTrue(view.moveFirst());
+                    assertEquals(Long.valueOf(5), view.getKey());
+                    assertEquals(new Pair<>(7, "Widget"), view.getValue());
+                    assertFalse(view.moveNext());
+                }
+                assertEquals(4, iteratorToList(byTenantTime.getDatabase().keys(tx)).size());
+            }
+        }
+    }
+
+    @Test
+    public void bloomFiltersNeverHideKeysAndSurviveReopening() {
+        final Supplier<Environment> dbSupplier = prepareEnvironment();
+        try (final Environment env = dbSupplier.get()) {
+            final Database<Integer, String> database = env.write(tx -> env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE));
+            env.write(tx -> { database.put(tx, 1, "Before"); return null; });
+
+            // Built from the existing keys
+            final BloomFilter filter = BloomFilter.attach(env, database, "TestBloom", 1000, 0.01);
+            assertEquals(1, filter.rebuilds());
+            env.write(tx -> {
+                for (int i = 2; i < 100; i += 2) {
+                    database.put(tx, i, "Even");
+                }
+                assertNull(database.putIfAbsent(tx, 101, "Odd"));
+                try (final Cursor<Integer, String> cursor = database.createCursor(tx)) {
+                    cursor.put(103, "Odd");
+                }
+                assertTrue(database.remove(tx, 2));
+                return null;
+            });
+
+            try (final Transaction tx = env.transaction(true)) {
+                assertEquals("Before", database.get(tx, 1));
+                assertTrue(database.contains(tx, 101));
+                assertTrue(database.contains(tx, 103));
+                assertFalse(database.contains(tx, 2));
+                for (int i = 4; i < 100; i++) {
+                    assertEquals(i % 2 == 0 ? "Even" : null, database.get(tx, i));
+                }
+            }
+
+            filter.rebuild();
+            assertFalse(filter.rebuildIfStale());
+            assertEquals(2, filter.rebuilds());
+            filter.save();
+        }
+
+        try (final Environment env = dbSupplier.get()) {
+            final Database<Integer, String> database = env.write(tx -> env.database(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE));
+            // Loaded from the saved copy rather than rebuilt, since nothing has been written since
+            try (final BloomFilter filter = BloomFilter.attach(env, database, "TestBloom", 1000, 0.01)) {
+                assertEquals(0, filter.rebuilds());
+                try (final Transaction tx = env.transaction(true)) {
+                    assertEquals("Even", database.get(tx, 98));
+                    assertNull(database.get(tx, 99));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void valueCachesShareDecodedValuesUntilTheyAreWritten() {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database = env.write(tx -> env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE));
+            try (final DecodedValueCache<String> cache = database.cacheValues(100)) {
+                env.write(tx -> { database.put(tx, 1, "One"); database.put(tx, 2, "Two"); return null; });
+
+                try (final Transaction tx = env.transaction(true)) {
+                    final String first = database.get(tx, 1);
+                    assertEquals("One", first);
+                    assertTrue(first == database.get(tx, 1));
+                    assertNull(database.get(tx, 3));
+                }
+                assertEquals(1, cache.hits());
+
+                // An old reader must not see the new value, nor a new reader the old one
+                try (final Transaction old = env.readTransactionPool().transaction()) {
+                    assertEquals("One", database.get(old, 1));
+                    env.write(tx -> {
+                        database.put(tx, 1, "Uno");
+                        // Nor may a write transaction miss its own writes
+                        assertEquals("Uno", database.get(tx, 1));
+                        return null;
+                    });
+                    assertEquals("One", database.get(old, 1));
+                }
+                try (final Transaction tx = env.transaction(true)) {
+                    assertEquals("Uno", database.get(tx, 1));
+                    assertEquals("Uno", database.get(tx, 1));
+                }
+
+                env.write(tx -> {
+                    try (final Cursor<Integer, String> cursor = database.createCursor(tx)) {
+                        assertTrue(cursor.moveTo(2));
+                        cursor.delete();
+                    }
+                    return null;
+                });
+                try (final Transaction tx = env.transaction(true)) {
+                    assertNull(database.get(tx, 2));
+                }
+
+                env.write(tx -> {
+                    for (int i = 0; i < 1000; i++) {
+                        database.put(tx, i, Integer.toString(i));
+                    }
+                    return null;
+                });
+                try (final Transaction tx = env.transaction(true)) {
+                    for (int i = 0; i < 1000; i++) {
+                        assertEquals(Integer.toString(i), database.get(tx, i));
+                    }
+                }
+                assertTrue(cache.size() <= 100 + 16);
+                assertTrue(cache.evictions() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void canGetAll() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final Database<String, Integer> database = env.createDatabase(tx, "Test", StringSchema.INSTANCE, IntegerSchema.INSTANCE);
+
+                database.put(tx, "One", 1);
+                database.put(tx, "Two", 2);
+                database.put(tx, "Three", 3);
+
+                assertEquals(Arrays.asList(3, null, 1, 2, 1), database.getAll(tx, new String[] { "Three", "Four", "One", "Two", "One" }));
+                assertEquals(Collections.emptyList(), database.getAll(tx, new String[0]));
+            }
+        }
+    }
+
+    @Test
+    public void canGetAllDuplicates() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final DatabaseWithDuplicateKeys<Integer, Integer> database = env.createDatabaseWithDuplicateKeys(tx, "Test", IntegerSchema.INSTANCE, IntegerSchema.INSTANCE);
+
+                database.put(tx, 1, 100);
+                database.put(tx, 2, 200);
+                database.put(tx, 2, 300);
+
+                assertEquals(Arrays.asList(Arrays.asList(200, 300), Collections.emptyList(), Arrays.asList(100)),
+                             database.getAllDuplicates(tx, new Integer[] { 2, 3, 1 }));
+                assertEquals(Arrays.asList(200, null, 100), database.getAll(tx, new Integer[] { 2, 3, 1 }));
+            }
+        }
+    }
+
+    @Test
+    public void bulkLoaderHandlesSortedAndUnsortedInput() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final Database<Integer, String> database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                database.put(tx, 0, "Existing");
+
+                // Tiny buffer so that the unsorted tail gets spilled to several runs
+                try (BulkLoader<Integer, String> loader = new BulkLoader<>(tx, database, 256)) {
+                    for (int i = 1; i <= 100; i++) {
+                        loader.add(i, "Sorted " + i);
+                    }
+                    for (int i = 200; i > 50; i--) {
+                        loader.add(i, "Unsorted " + i);
+                    }
+                    loader.add(-1, "Negative");
+                }
+
+                assertEquals("Existing", database.get(tx, 0));
+                assertEquals("Sorted 1", database.get(tx, 1));
+                assertEquals("Unsorted 51", database.get(tx, 51));
+                assertEquals("Unsorted 200", database.get(tx, 200));
+                assertEquals("Negative", database.get(tx, -1));
+                assertEquals(202, iteratorToList(database.keys(tx)).size());
+            }
+        }
+    }
+
+    private static int bulkLoaderRuns() {
+        final String[] names = new File(System.getProperty("java.io.tmpdir")).list((dir, name) -> name.startsWith("thunder-bulkload"));
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void bulkLoaderDeletesItsRunsAsSoonAsAnAddFails() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final Schema<String> picky = StringSchema.INSTANCE.map((String x) -> {
+                    if (x.equals("Bad")) throw new IllegalArgumentException("Bad");
+                    return x;
+                }, (String x) -> x);
+                final Database<Integer, String> database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, picky);
+
+                final int runsBefore = bulkLoaderRuns();
+                try (BulkLoader<Integer, String> loader = new BulkLoader<>(tx, database, 256)) {
+                    for (int i = 100; i > 0; i--) {
+                        loader.add(i, "Unsorted " + i);
+                    }
+                    assertTrue(bulkLoaderRuns() > runsBefore);
+
+                    try {
+                        loader.add(0, "Bad");
+                        fail();
+                    } catch (IllegalArgumentException e) {
+                        // Expected
+                    }
+                    assertEquals(runsBefore, bulkLoaderRuns());
+
+                    try {
+                        loader.add(0, "Good");
+                        fail();
+                    } catch (IllegalStateException e) {
+                        // Expected
+                    }
+                }
+                assertEquals(runsBefore, bulkLoaderRuns());
+            }
+        }
+    }
+
+    @Test
+    public void bulkLoaderWorksWithDuplicateKeys() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final DatabaseWithDuplicateKeys<Integer, Integer> database = env.createDatabaseWithDuplicateKeys(tx, "Test", IntegerSchema.INSTANCE, IntegerSchema.INSTANCE);
+
+                try (BulkLoader<Integer, Integer> loader = new BulkLoader<>(tx, database)) {
+                    loader.add(1, 100);
+                    loader.add(1, 200);
+                    loader.add(1, 200);
+                    loader.add(2, 100);
+                    loader.add(1, 150);
+                }
+
+                assertEquals(Arrays.asList(new Pair<>(1, 100), new Pair<>(1, 150), new Pair<>(1, 200), new Pair<>(2, 100)),
+                             iteratorToList(database.keyValues(tx)));
+            }
+        }
+    }
+
     @Test
     public void deletionLeavesCursorPointingAtNextItem() {
         try (final Environment env = createEnvironment()) {
@@ -488,6 +944,38 @@ public class EnvironmentTest {
         }
     }
 
+    @Test
+    public void putIfAbsentWritesVariableSizeValuesIntoTheReservedSpace() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final int[] encodes = new int[1];
+                final Schema<String> countingSchema = StringSchema.INSTANCE.map(x -> { encodes[0]++; return x; }, x -> x);
+                final Database<Integer, String> database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, countingSchema);
+
+                // Descending, so that each value lands just before the previous one in the page: writing past the
+                // reserved space would clobber it
+                for (int i = 20; i > 10; i--) {
+                    assertNull(database.putIfAbsent(tx, i, "Value " + i));
+                }
+                assertEquals(10, encodes[0]);
+
+                try (Cursor<Integer, String> cursor = database.createCursor(tx)) {
+                    for (int i = 10; i > 0; i--) {
+                        assertNull(cursor.putIfAbsent(i, "Value " + i));
+                        assertEquals("Value " + i, cursor.getValue());
+                    }
+                    assertEquals(20, encodes[0]);
+                    assertEquals("Value 5", cursor.putIfAbsent(5, "Other"));
+                }
+
+                for (int i = 1; i <= 20; i++) {
+                    assertEquals("Value " + i, database.get(tx, i));
+                }
+                assertEquals("Value 15", database.putIfAbsent(tx, 15, "Other"));
+            }
+        }
+    }
+
     @Test
     public void putIfAbsentShouldWorkOnDatabaseWithDuplicates() {
         try (final Environment env = createEnvironment()) {
@@ -722,6 +1210,745 @@ public class EnvironmentTest {
         }
     }
 
+    @Test
+    public void readTransactionPoolRecyclesTransactionsAndCursors() {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database;
+            try (final Transaction tx = env.transaction(false)) {
+                database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                database.put(tx, 1, "One");
+                tx.commit();
+            }
+
+            final ReadTransactionPool pool = env.readTransactionPool();
+            try (final Transaction tx = pool.transaction()) {
+                assertEquals("One", database.get(tx, 1));
+                assertEquals(Arrays.asList(1), iteratorToList(database.keys(tx)));
+            }
+            assertEquals(0, pool.hits());
+            assertEquals(1, pool.misses());
+
+            try (final Transaction tx = env.transaction(false)) {
+                database.put(tx, 2, "Two");
+                tx.commit();
+            }
+
+            // The renewed transaction (and the cursor that keys() recycles) must see the new snapshot
+            try (final Transaction tx = pool.transaction()) {
+                assertEquals("Two", database.get(tx, 2));
+                assertEquals(Arrays.asList(1, 2), iteratorToList(database.keys(tx)));
+            }
+            assertEquals(1, pool.hits());
+            assertEquals(1, pool.misses());
+        }
+    }
+
+    @Test
+    public void readTransactionPoolCanBeClosedWhileOtherThreadsHoldItsTransactions() throws Exception {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database = env.write(tx -> {
+                final Database<Integer, String> result = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                result.put(tx, 1, "One");
+                return result;
+            });
+
+            final ReadTransactionPool pool = env.readTransactionPool();
+            final CountDownLatch ready = new CountDownLatch(2);
+            final CountDownLatch poolClosed = new CountDownLatch(1);
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+            // One thread leaves an idle transaction behind, the other is still using its transaction when the pool closes
+            final Thread idle = new Thread(() -> {
+                try {
+                    try (final Transaction tx = pool.transaction()) {
+                        assertEquals("One", database.get(tx, 1));
+                    }
+                    ready.countDown();
+                    poolClosed.await();
+                    try {
+                        pool.transaction();
+                        fail();
+                    } catch (IllegalStateException e) {
+                        // Expected
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            final Thread inUse = new Thread(() -> {
+                try {
+                    try (final Transaction tx = pool.transaction()) {
+                        ready.countDown();
+                        poolClosed.await();
+                        assertEquals("One", database.get(tx, 1));
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            idle.start();
+            inUse.start();
+
+            ready.await();
+            pool.close();
+            poolClosed.countDown();
+            idle.join();
+            inUse.join();
+
+            assertEquals(Collections.emptyList(), failures);
+        }
+    }
+
+    @Test
+    public void idleCursorsDoNotPileUpAcrossThreadsOrReopenedDatabases() throws InterruptedException {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE).put(tx, 1, "One");
+                tx.commit();
+            }
+
+            // Opening the database afresh every time reuses the thread's idle cursor
+            for (int i = 0; i < 10; i++) {
+                try (final Transaction tx = env.transaction(true)) {
+                    assertEquals(Arrays.asList(1), iteratorToList(env.database(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE).keys(tx)));
+                }
+            }
+            assertEquals(1, env.idleCursors.size());
+
+            for (int i = 0; i < 100; i++) {
+                final Thread thread = new Thread(() -> {
+                    try (final Transaction tx = env.transaction(true)) {
+                        iteratorToList(env.database(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE).keys(tx));
+                    }
+                });
+                thread.start();
+                thread.join();
+            }
+            for (int i = 0; i < 100 && env.idleCursors.size() > 1; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            // Only this thread's cursor is left: the dead threads' ones have been closed
+            assertEquals(1, env.idleCursors.size());
+        }
+    }
+
+    @Test
+    public void closingARecycledCursorTwiceLeavesItsNextOwnerAlone() {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database;
+            try (final Transaction tx = env.transaction(false)) {
+                database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                database.put(tx, 1, "One");
+                tx.commit();
+            }
+
+            try (final Transaction tx = env.transaction(true)) {
+                final Cursor<Integer, String> first = database.createCursor(tx);
+                first.close();
+
+                try (final Cursor<Integer, String> second = database.createCursor(tx)) {
+                    assertTrue(first.getUntypedCursor() == second.getUntypedCursor());
+                    first.close();
+
+                    // Had the stale close parked the cursor again, this would be handed the one second is using
+                    try (final Cursor<Integer, String> third = database.createCursor(tx)) {
+                        assertFalse(third.getUntypedCursor() == second.getUntypedCursor());
+                        assertTrue(second.moveFirst());
+                        assertTrue(third.moveLast());
+                        assertEquals(1, (int)second.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cursorsCanBeRenewedIntoNewReadTransactions() {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database;
+            try (final Transaction tx = env.transaction(false)) {
+                database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                database.put(tx, 1, "One");
+                tx.commit();
+            }
+
+            try (final Transaction tx = env.transaction(true)) {
+                try (final Cursor<Integer, String> cursor = database.createCursor(tx)) {
+                    assertTrue(cursor.moveFirst());
+                    assertEquals("One", cursor.getValue());
+
+                    try (final Transaction wtx = env.transaction(false)) {
+                        database.put(wtx, 2, "Two");
+                        wtx.commit();
+                    }
+
+                    tx.abort();
+                    try (final Transaction tx2 = env.transaction(true)) {
+                        cursor.renew(tx2);
+                        assertTrue(cursor.moveLast());
+                        assertEquals("Two", cursor.getValue());
+                    }
+                }
+            }
+
+            // Closing a read-only cursor parks it for the next createCursor on this thread, which must still see fresh data
+            for (int i = 3; i < 6; i++) {
+                try (final Transaction wtx = env.transaction(false)) {
+                    database.put(wtx, i, Integer.toString(i));
+                    wtx.commit();
+                }
+
+                try (final Transaction tx = env.transaction(true);
+                     final Cursor<Integer, String> cursor = database.createCursor(tx)) {
+                    assertTrue(cursor.moveLast());
+                    assertEquals(i, (int)cursor.getKey());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void writeCoordinatorCommitsOperationsFromManyThreads() throws Exception {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database;
+            try (final Transaction tx = env.transaction(false)) {
+                database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                tx.commit();
+            }
+
+            final WriteCoordinator coordinator = env.writeCoordinator();
+            final List<CompletableFuture<Integer>> futures = Collections.synchronizedList(new ArrayList<>());
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int offset = t * 100;
+                threads.add(new Thread(() -> {
+                    for (int i = offset; i < offset + 100; i++) {
+                        final int k = i;
+                        futures.add(coordinator.submit(tx -> { database.put(tx, k, Integer.toString(k)); return k; }));
+                    }
+                }));
+            }
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join();
+
+            final CompletableFuture<Integer> failure = coordinator.submit(tx -> { throw new IllegalStateException("Boom"); });
+            final CompletableFuture<Integer> success = coordinator.submit(tx -> { database.put(tx, 400, "400"); return 400; });
+
+            for (CompletableFuture<Integer> future : futures) {
+                future.get();
+            }
+            assertEquals(400, (int)success.get());
+            try {
+                failure.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+
+            assertEquals(401, coordinator.operations());
+            assertTrue(coordinator.batches() <= coordinator.operations());
+
+            try (final Transaction tx = env.transaction(true)) {
+                for (int i = 0; i <= 400; i++) {
+                    assertEquals(Integer.toString(i), database.get(tx, i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelStreamsSeeEveryItemOnceInOrder() {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database;
+            try (final Transaction tx = env.transaction(false)) {
+                database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                for (int i = 0; i < 10000; i++) {
+                    database.put(tx, i * 7, "Value " + i);
+                }
+                tx.commit();
+            }
+
+            final List<Integer> sequential;
+            try (final Transaction tx = env.transaction(true)) {
+                sequential = database.stream(tx).map(kv -> kv.k).collect(Collectors.toList());
+            }
+            assertEquals(10000, sequential.size());
+
+            assertEquals(sequential, database.parallelStream(env.readTransactionPool()::transaction).map(kv -> kv.k).collect(Collectors.toList()));
+            assertEquals(sequential, database.parallelStream(() -> env.transaction(true)).map(kv -> kv.k).collect(Collectors.toList()));
+            assertEquals(sequential.stream().mapToLong(i -> i).sum(),
+                         database.parallelStream(() -> env.transaction(true)).mapToLong(kv -> kv.k).sum());
+            // Short-circuiting leaves no transaction open, or the next stream on this thread would fail to begin one
+            assertEquals(Integer.valueOf(0), database.parallelStream(() -> env.transaction(true)).map(kv -> kv.k).findFirst().get());
+            assertEquals(Integer.valueOf(7), database.parallelStream(() -> env.transaction(true)).map(kv -> kv.k).filter(k -> k > 0).findFirst().get());
+        }
+    }
+
+    @Test
+    public void parallelStreamsSeeOneSnapshotWhileWritesCommit() throws Exception {
+        final File envDirectory = Files.createTempDirectory("DatabaseTest").toFile();
+        envDirectory.deleteOnExit();
+        try (final Environment env = new Environment(envDirectory, new EnvironmentOptions().mapSize(256 * 1024 * 1024).noTLS(true))) {
+            final Database<Integer, String> database = env.write(tx -> {
+                final Database<Integer, String> result = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                for (int i = 0; i < 10000; i++) {
+                    result.put(tx, i, "Value " + i);
+                }
+                return result;
+            });
+
+            // Adds one key per commit, after all the original ones, so any snapshot holds a prefix of them
+            final AtomicLong commits = new AtomicLong();
+            final AtomicBoolean stop = new AtomicBoolean();
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; !stop.get(); i++) {
+                        final int k = 1_000_000 + i;
+                        env.write(tx -> { database.put(tx, k, "Writer " + k); return null; });
+                        commits.incrementAndGet();
+                        // Every commit while a traversal holds on to its snapshot grows the file, so don't overdo it
+                        Thread.sleep(1);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+            writer.start();
+            try {
+                for (int n = 0; n < 5; n++) {
+                    // Hold up every item after the first until a write has committed, so that later pieces start after it
+                    final AtomicLong commitsAtFirstItem = new AtomicLong(-1);
+                    final List<Integer> keys;
+                    try (final Stream<Pair<Integer, String>> stream = database.parallelStream(env.readTransactionPool()::transaction)) {
+                        keys = stream.map(kv -> {
+                            commitsAtFirstItem.compareAndSet(-1, commits.get());
+                            while (failures.isEmpty() && commits.get() <= commitsAtFirstItem.get()) {
+                                Thread.yield();
+                            }
+                            return kv.k;
+                        }).collect(Collectors.toList());
+                    }
+
+                    assertTrue(keys.size() >= 10000);
+                    for (int i = 0; i < keys.size(); i++) {
+                        assertEquals(i < 10000 ? i : 1_000_000 + i - 10000, (int)keys.get(i));
+                    }
+                }
+            } finally {
+                stop.set(true);
+                writer.join();
+            }
+            assertEquals(Collections.emptyList(), failures);
+            assertTrue(commits.get() > 0);
+        }
+    }
+
+    @Test
+    public void parallelStreamsLeaveNoTransactionsOpenOnceClosed() throws Exception {
+        final File envDirectory = Files.createTempDirectory("DatabaseTest").toFile();
+        envDirectory.deleteOnExit();
+        try (final Environment env = new Environment(envDirectory, new EnvironmentOptions().mapSize(1024 * 1024).noTLS(true))) {
+            final Database<Integer, String> database = env.write(tx -> {
+                final Database<Integer, String> result = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE);
+                for (int i = 0; i < 10000; i++) {
+                    result.put(tx, i, "Value " + i);
+                }
+                return result;
+            });
+
+            final long liveBefore = ResourceMetrics.live(ResourceMetrics.Kind.TRAVERSAL);
+            assertEquals(10000, database.parallelStream(env.readTransactionPool()::transaction).count());
+            assertEquals(liveBefore, ResourceMetrics.live(ResourceMetrics.Kind.TRAVERSAL));
+            try (final Stream<Pair<Integer, String>> stream = database.parallelStream(env.readTransactionPool()::transaction)) {
+                assertEquals(Integer.valueOf(0), stream.map(kv -> kv.k).findFirst().get());
+            }
+            assertEquals(liveBefore, ResourceMetrics.live(ResourceMetrics.Kind.TRAVERSAL));
+
+            // Any transaction left open would keep the map from growing
+            final long initialMapSize = env.mapSize();
+            final char[] chars = new char[1000];
+            Arrays.fill(chars, 'x');
+            final String value = new String(chars);
+            env.write(tx -> {
+                for (int i = 0; i < 4000; i++) {
+                    database.put(tx, i, value);
+                }
+                return null;
+            });
+            assertTrue(env.mapSize() > initialMapSize);
+        }
+    }
+
+    @Test
+    public void oneDatabaseCanBeSharedByManyThreads() throws Exception {
+        try (final Environment env = createEnvironment()) {
+            final Database<String, String> database;
+            final LongLongDatabase primitiveDatabase;
+            try (final Transaction tx = env.transaction(false)) {
+                database = env.createDatabase(tx, "Test", StringSchema.INSTANCE, StringSchema.INSTANCE);
+                primitiveDatabase = new LongLongDatabase(env.createDatabase(tx, "Primitive", LongSchema.INSTANCE, LongSchema.INSTANCE));
+                for (int i = 0; i < 1000; i++) {
+                    database.put(tx, "Key " + i, "Value " + i);
+                    primitiveDatabase.put(tx, i, -i);
+                }
+                tx.commit();
+            }
+
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            final List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int seed = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        final Random random = new Random(seed);
+                        for (int n = 0; n < 20; n++) {
+                            try (final Transaction tx = env.transaction(true)) {
+                                for (int j = 0; j < 100; j++) {
+                                    final int i = random.nextInt(1000);
+                                    assertEquals("Value " + i, database.get(tx, "Key " + i));
+                                    assertEquals(-i, primitiveDatabase.get(tx, i, 1));
+                                }
+
+                                try (final Cursor<String, String> cursor = database.createCursor(tx)) {
+                                    final int i = random.nextInt(1000);
+                                    assertTrue(cursor.moveTo("Key " + i));
+                                    assertEquals("Value " + i, cursor.getValue());
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join();
+
+            assertEquals(Collections.emptyList(), failures);
+        }
+    }
+
+    @Test
+    public void databaseHandlesKeepTheirScratchSpaceUntilTheyAreDropped() throws Exception {
+        try (final Environment env = createEnvironment()) {
+            env.write(tx -> env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, IntegerSchema.INSTANCE));
+
+            // Schemas built afresh at each call site, and plenty of handles over the one dbi, mustn't mean allocating
+            // scratch space for every operation
+            final List<Database<Integer, Pair<Integer, Integer>>> handles = new ArrayList<>();
+            final List<Database.Scratch<Integer, Pair<Integer, Integer>>> scratches = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                final Database<Integer, Pair<Integer, Integer>> handle = env.write(tx -> env.database(tx, "Test", IntegerSchema.INSTANCE, Schema.zip(IntegerSchema.INSTANCE, IntegerSchema.INSTANCE)));
+                handles.add(handle);
+                scratches.add(handle.scratch());
+            }
+            for (int n = 0; n < 3; n++) {
+                for (int i = 0; i < handles.size(); i++) {
+                    assertTrue(scratches.get(i) == handles.get(i).scratch());
+                }
+            }
+            assertFalse(scratches.get(0) == scratches.get(1));
+
+            // Other threads get their own
+            final Database<Integer, Pair<Integer, Integer>> second = handles.get(1);
+            assertFalse(scratches.get(1) == readOnNewThread(env, tx -> second.scratch()));
+
+            // Once a handle has been dropped, the next new handle on the thread frees its scratch space, or takes it
+            // over if it is for the very same schemas
+            final Database.Scratch<Integer, Pair<Integer, Integer>> droppedScratch = scratches.get(0);
+            final WeakReference<Database<Integer, Pair<Integer, Integer>>> dropped = new WeakReference<>(handles.set(0, null));
+            for (int i = 0; i < 100 && dropped.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull(dropped.get());
+            final Database<Integer, Pair<Integer, Integer>> reopened = env.write(tx -> env.database(tx, "Test", IntegerSchema.INSTANCE, Schema.zip(IntegerSchema.INSTANCE, IntegerSchema.INSTANCE)));
+            assertFalse(droppedScratch == reopened.scratch());
+            assertTrue(droppedScratch.kBuffer.cleaner().isReleased());
+            assertTrue(droppedScratch.vBuffer.cleaner().isReleased());
+
+            final Database.Scratch<Integer, Pair<Integer, Integer>> reopenedScratch = reopened.scratch();
+            final Schema<Pair<Integer, Integer>> vSchema = reopened.getValueSchema();
+            final WeakReference<Database<Integer, Pair<Integer, Integer>>> droppedAgain = new WeakReference<>(reopened);
+            handles.clear();
+            for (int i = 0; i < 100 && droppedAgain.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull(droppedAgain.get());
+            assertTrue(reopenedScratch == env.write(tx -> env.database(tx, "Test", IntegerSchema.INSTANCE, vSchema)).scratch());
+        }
+    }
+
+    // Each thread's scratch buffers start out empty, so these are the first lookups to use them
+    @Test
+    public void lookupsWorkAsTheFirstOperationOnANewThread() throws Exception {
+        try (final Environment env = createEnvironment()) {
+            final Database<String, String> database = env.write(tx -> {
+                final Database<String, String> result = env.createDatabase(tx, "Test", StringSchema.INSTANCE, StringSchema.INSTANCE);
+                result.put(tx, "Key", "Value");
+                return result;
+            });
+
+            assertEquals("Value", readOnNewThread(env, tx -> database.get(tx, "Key")));
+            assertEquals(null, readOnNewThread(env, tx -> database.get(tx, "Missing")));
+            assertTrue(readOnNewThread(env, tx -> database.contains(tx, "Key")));
+            assertFalse(readOnNewThread(env, tx -> database.contains(tx, "Missing")));
+            assertEquals("Value", readOnNewThread(env, tx -> database.getView(tx, "Key").read(StringSchema.INSTANCE)));
+            assertEquals(null, readOnNewThread(env, tx -> database.getView(tx, "Missing")));
+        }
+    }
+
+    private static <T> T readOnNewThread(Environment env, Function<Transaction, T> function) throws Exception {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Thread thread = new Thread(() -> {
+            try (final Transaction tx = env.transaction(true)) {
+                result.complete(function.apply(tx));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        return result.get();
+    }
+
+    @Test
+    public void writeGrowsTheMapWhenItFillsUp() {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database = env.write(tx -> env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE));
+
+            final long initialMapSize = env.mapSize();
+            final char[] chars = new char[1000];
+            Arrays.fill(chars, 'x');
+            final String value = new String(chars);
+
+            // Several times the initial 1MB map, all in a single transaction
+            final int count = env.write(tx -> {
+                for (int i = 0; i < 4000; i++) {
+                    database.put(tx, i, value);
+                }
+                return 4000;
+            });
+
+            assertTrue(env.mapSize() > initialMapSize);
+            try (final Transaction tx = env.transaction(true)) {
+                assertEquals(count, iteratorToList(database.keys(tx)).size());
+                assertEquals(value, database.get(tx, count - 1));
+            }
+        }
+    }
+
+    @Test
+    public void growingTheMapFailsFastWhileAReaderIsOpen() throws Exception {
+        try (final Environment env = createEnvironment()) {
+            final Database<Integer, String> database = env.write(tx -> env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE));
+
+            final long initialMapSize = env.mapSize();
+            final char[] chars = new char[1000];
+            Arrays.fill(chars, 'x');
+            final String value = new String(chars);
+            final Function<Transaction, Integer> fillTheMap = tx -> {
+                for (int i = 0; i < 4000; i++) {
+                    database.put(tx, i, value);
+                }
+                return 4000;
+            };
+
+            // A long scan on another thread used to hold up the resize, and every new reader with it, for the whole
+            // resize timeout before the write failed anyway
+            final CountDownLatch readerOpen = new CountDownLatch(1);
+            final CountDownLatch writeFailed = new CountDownLatch(1);
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            final Thread reader = new Thread(() -> {
+                try (final Transaction tx = env.transaction(true)) {
+                    readerOpen.countDown();
+                    writeFailed.await();
+                    assertEquals(null, database.get(tx, 0));
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            reader.start();
+            readerOpen.await();
+
+            final long start = System.nanoTime();
+            try {
+                env.write(fillTheMap);
+                fail();
+            } catch (LMDBException e) {
+                assertEquals(LMDBException.MAP_FULL, e.getErrorCode());
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(initialMapSize, env.mapSize());
+            assertEquals(null, readOnNewThread(env, tx -> database.get(tx, 0)));
+
+            writeFailed.countDown();
+            reader.join();
+            assertEquals(Collections.emptyList(), failures);
+
+            // Once the reader has gone the same write goes through
+            assertEquals(4000, (int)env.write(fillTheMap));
+            assertTrue(env.mapSize() > initialMapSize);
+        }
+    }
+
+    @Test
+    public void writeCoordinatorFailsWithMapFullIfItCannotGrowTheMap() throws Exception {
+        final File envDirectory = Files.createTempDirectory("DatabaseTest").toFile();
+        envDirectory.deleteOnExit();
+        try (final Environment env = new Environment(envDirectory, new EnvironmentOptions().mapSize(1024 * 1024).mapResizeTimeout(100, TimeUnit.MILLISECONDS))) {
+            final Database<Integer, String> database = env.write(tx -> env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, StringSchema.INSTANCE));
+
+            final long initialMapSize = env.mapSize();
+            final char[] chars = new char[1000];
+            Arrays.fill(chars, 'x');
+            final String value = new String(chars);
+            final Function<Transaction, Integer> fillTheMap = tx -> {
+                for (int i = 0; i < 4000; i++) {
+                    database.put(tx, i, value);
+                }
+                return 4000;
+            };
+
+            // Waiting on the batch while holding a transaction used to deadlock: the resize waited for our transaction to
+            // finish, and we waited for the resize
+            final CompletableFuture<Integer> stuck;
+            try (final Transaction tx = env.transaction(true)) {
+                stuck = env.writeCoordinator().submit(fillTheMap);
+                try {
+                    stuck.get(10, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof LMDBException);
+                    assertEquals(LMDBException.MAP_FULL, ((LMDBException)e.getCause()).getErrorCode());
+                }
+                assertEquals(null, database.get(tx, 0));
+            }
+            assertEquals(initialMapSize, env.mapSize());
+
+            // Once nothing is in the way the same batch goes through
+            assertEquals(4000, (int)env.writeCoordinator().submit(fillTheMap).get(10, TimeUnit.SECONDS));
+            assertTrue(env.mapSize() > initialMapSize);
+        }
+    }
+
+    @Test
+    public void valueViewsReadStraightOutOfTheMap() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final Database<Integer, Pair<Long, Double>> database = env.createDatabase(tx, "Test", IntegerSchema.INSTANCE, Schema.zip(LongSchema.INSTANCE, DoubleSchema.INSTANCE));
+                database.put(tx, 1, new Pair<>(-10L, 1.5));
+                database.put(tx, 2, new Pair<>(20L, -2.5));
+
+                final ValueView view = database.getView(tx, 1);
+                assertEquals(16, view.size());
+                assertEquals(-10L, view.getLong(0));
+                assertEquals(1.5, view.getDouble(8), 0.0);
+                assertEquals(new Pair<>(-10L, 1.5), view.read(database.getValueSchema()));
+                assertEquals(null, database.getView(tx, 3));
+
+                try (final Cursor<Integer, Pair<Long, Double>> cursor = database.createCursor(tx)) {
+                    long total = 0;
+                    for (boolean ok = cursor.moveFirst(); ok; ok = cursor.moveNext()) {
+                        total += cursor.getValueView().getLong(0);
+                    }
+                    assertEquals(10L, total);
+
+                    // Updates move things around in the map, so must invalidate outstanding views
+                    final ValueView cursorView = cursor.getValueView();
+                    assertTrue(cursorView.isValid());
+                    database.put(tx, 3, new Pair<>(30L, 0.0));
+                    assertFalse(cursorView.isValid());
+                    try {
+                        cursorView.getLong(0);
+                        fail();
+                    } catch (IllegalStateException e) {
+                        // Expected
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void primitiveDatabasesAgreeWithBoxedOnes() {
+        try (final Environment env = createEnvironment()) {
+            try (final Transaction tx = env.transaction(false)) {
+                final LongLongDatabase longs = new LongLongDatabase(env.createDatabase(tx, "Longs", LongSchema.INSTANCE, LongSchema.INSTANCE));
+                longs.put(tx, -5, 50);
+                longs.put(tx, 3, 30);
+                longs.asDatabase().put(tx, 1L, 10L);
+
+                assertEquals(50, longs.get(tx, -5, -1));
+                assertEquals(-1, longs.get(tx, 2, -1));
+                assertEquals(Long.valueOf(30), longs.asDatabase().get(tx, 3L));
+                assertTrue(longs.remove(tx, 3));
+                assertFalse(longs.contains(tx, 3));
+
+                final List<Long> keys = new ArrayList<>();
+                longs.keys(tx).forEachRemaining((long k) -> keys.add(k));
+                assertEquals(Arrays.asList(-5L, 1L), keys);
+
+                try (final LongLongCursor cursor = longs.createCursor(tx)) {
+                    assertTrue(cursor.moveFloor(0));
+                    assertEquals(-5, cursor.getLongKey());
+                    cursor.put(55);
+                    assertTrue(cursor.moveCeiling(0));
+                    assertEquals(1, cursor.getLongKey());
+                    assertEquals(10, cursor.getLongValue());
+                    assertFalse(cursor.moveTo(0));
+                }
+                assertEquals(55, longs.get(tx, -5, -1));
+
+                final IntDoubleDatabase doubles = new IntDoubleDatabase(env.createDatabase(tx, "Doubles", IntegerSchema.INSTANCE, DoubleSchema.INSTANCE));
+                doubles.put(tx, 2, -1.5);
+                doubles.put(tx, -2, 2.5);
+                assertEquals(-1.5, doubles.get(tx, 2, 0.0), 0.0);
+                assertEquals(Double.valueOf(2.5), doubles.asDatabase().get(tx, -2));
+                final PrimitiveIterator.OfDouble values = doubles.values(tx);
+                assertEquals(2.5,  values.nextDouble(), 0.0);
+                assertEquals(-1.5, values.nextDouble(), 0.0);
+                assertFalse(values.hasNext());
+
+                final LongObjectDatabase<String> strings = new LongObjectDatabase<>(env.createDatabase(tx, "Strings", LongSchema.INSTANCE, StringSchema.INSTANCE));
+                strings.put(tx, 7, "Seven");
+                try (final LongObjectCursor<String> cursor = strings.createCursor(tx)) {
+                    cursor.put(8, "Eight");
+                    assertTrue(cursor.moveTo(7));
+                    cursor.put("Sept");
+                }
+                assertEquals("Sept", strings.get(tx, 7));
+                assertEquals(Arrays.asList(new Pair<>(7L, "Sept"), new Pair<>(8L, "Eight")), iteratorToList(strings.asDatabase().keyValues(tx)));
+            }
+        }
+    }
+
+    @Test
+    public void schemaMigrationRewritesIntoCompactEncodings() {
+        try (final Environment env = createEnvironment()) {
+            final Database<String, String> from = env.write(tx -> env.createDatabase(tx, "Old", StringSchema.INSTANCE, StringSchema.INSTANCE));
+            final Database<String, String> to   = env.write(tx -> env.createDatabase(tx, "New", Utf8KeySchema.INSTANCE, Utf8ValueSchema.INSTANCE));
+
+            final List<Pair<String, String>> expected = new ArrayList<>();
+            env.write(tx -> {
+                for (int i = 0; i < 25; i++) {
+                    final String k = "Key\u0000" + (char)('a' + i) + "\u00e9";
+                    from.put(tx, k, "Value " + i);
+                    expected.add(new Pair<>(k, "Value " + i));
+                }
+                return null;
+            });
+
+            assertEquals(25, SchemaMigration.migrate(env, from, to, Function.identity(), Function.identity(), 7));
+            try (final Transaction tx = env.transaction(true)) {
+                assertEquals(expected, iteratorToList(to.keyValues(tx)));
+            }
+        }
+    }
+
     @Test
     public void singleTransaction() {
         try (final Environment env = createEnvironment()) {